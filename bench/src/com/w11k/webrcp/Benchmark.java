@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A measured code path. The runner calls setUp once, then run for the warmup
+ * and the measured iterations, each preceded by prepare, and finally
+ * tearDown. Only run is timed. Every iteration reports the amount of work it
+ * did, so the score is a throughput independent of the iteration size.
+ */
+abstract class Benchmark
+{
+	/**
+	 * Unit of the work reported by run
+	 */
+	enum Unit
+	{
+		BYTES("MB/s", 1024 * 1024), OPERATIONS("ops/s", 1);
+
+		final String label;
+
+		final double scale;
+
+		Unit(String label, double scale)
+		{
+			this.label = label;
+			this.scale = scale;
+		}
+	}
+
+	private final String              name;
+
+	private final Unit                unit;
+
+	private final Map<String, Object> params = new LinkedHashMap<String, Object>();
+
+	Benchmark(String name, Unit unit)
+	{
+		this.name = name;
+		this.unit = unit;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public Unit getUnit()
+	{
+		return unit;
+	}
+
+	/**
+	 * Parameters of the benchmark, recorded with the results
+	 */
+	public Map<String, Object> getParams()
+	{
+		return params;
+	}
+
+	/*
+	 * Record a parameter and return its value
+	 */
+	protected int param(String key, int value)
+	{
+		params.put(key, value);
+		return value;
+	}
+
+	protected boolean param(String key, boolean value)
+	{
+		params.put(key, value);
+		return value;
+	}
+
+	/**
+	 * Create the input shared by all iterations
+	 */
+	public void setUp(File workDir) throws Exception
+	{
+	}
+
+	/**
+	 * Reset the state changed by the previous iteration, not timed
+	 */
+	public void prepare() throws Exception
+	{
+	}
+
+	/**
+	 * Execute one iteration and return the amount of work done in the unit
+	 * of the benchmark
+	 */
+	public abstract long run() throws Exception;
+
+	/**
+	 * Release the resources of setUp
+	 */
+	public void tearDown() throws Exception
+	{
+	}
+
+	/*
+	 * Delete a file or a directory tree
+	 */
+	static void delete(File file) throws IOException
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child: children)
+				delete(child);
+		}
+		if(file.exists() && !file.delete())
+			throw new IOException("Couldn't delete " + file);
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Runs the benchmarks of the download, extraction and shortcut code paths
+ * and writes the results as JSON, one file per release, so they can be
+ * compared between releases. Every benchmark runs a number of warmup
+ * iterations to let the JIT compile the code paths, followed by the
+ * measured iterations. The console output of the measured code is
+ * discarded.
+ *
+ * Usage: BenchmarkRunner outFile release
+ *
+ * System properties: bench.filter (only run benchmarks whose name contains
+ * it), bench.warmup, bench.iterations, bench.dir (directory for the
+ * synthetic archives), bench.latency (milliseconds) and bench.bandwidth
+ * (KB/s per connection) of the simulated WAN.
+ */
+public class BenchmarkRunner
+{
+	/*
+	 * Result of a benchmark, the throughput of every measured iteration
+	 */
+	private static class Result
+	{
+		final Benchmark benchmark;
+
+		final double[]  scores;
+
+		Result(Benchmark benchmark, double[] scores)
+		{
+			this.benchmark = benchmark;
+			this.scores = scores;
+		}
+
+		double mean()
+		{
+			double sum = 0;
+			for(double score: scores)
+				sum += score;
+			return sum / scores.length;
+		}
+
+		double stddev()
+		{
+			if(scores.length < 2)
+				return 0;
+			double mean = mean(), sum = 0;
+			for(double score: scores)
+				sum += (score - mean) * (score - mean);
+			return Math.sqrt(sum / (scores.length - 1));
+		}
+
+		double min()
+		{
+			double min = Double.MAX_VALUE;
+			for(double score: scores)
+				min = Math.min(min, score);
+			return min;
+		}
+
+		double max()
+		{
+			double max = 0;
+			for(double score: scores)
+				max = Math.max(max, score);
+			return max;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length != 2)
+		{
+			System.out.println("Usage: BenchmarkRunner outFile release");
+			System.exit(2);
+		}
+
+		File outFile = new File(args[0]);
+		String filter = System.getProperty("bench.filter", "");
+		int warmup = Integer.getInteger("bench.warmup", 2);
+		int iterations = Math.max(1, Integer.getInteger("bench.iterations", 5));
+		int latency = Integer.getInteger("bench.latency", 50);
+		int bandwidth = Integer.getInteger("bench.bandwidth", 4096) * 1024;
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new ExtractBenchmark("extract.smallFiles", 20000, 500, 8000));
+		benchmarks.add(new ExtractBenchmark("extract.largeFiles", 8, 16 * 1024 * 1024, 16 * 1024 * 1024));
+		benchmarks.add(new DownloadBenchmark("download.lan", 8, 8 * 1024 * 1024, 0, 0, true));
+		benchmarks.add(new DownloadBenchmark("download.lan.noDigest", 8, 8 * 1024 * 1024, 0, 0, false));
+		benchmarks.add(new DownloadBenchmark("download.wan", 2, 32 * 1024 * 1024, latency, bandwidth, true));
+		benchmarks.add(new DownloadBenchmark("download.wan.noDigest", 2, 32 * 1024 * 1024, latency, bandwidth, false));
+		benchmarks.add(new ShortcutBenchmark("shortcut.getBytes", ShortcutBenchmark.Mode.SERIALIZE, 20000));
+		benchmarks.add(new ShortcutBenchmark("shortcut.provision", ShortcutBenchmark.Mode.PROVISION, 2000));
+		benchmarks.add(new ShortcutBenchmark("shortcut.scan", ShortcutBenchmark.Mode.SCAN, 10000));
+		benchmarks.add(new ShortcutBenchmark("shortcut.load", ShortcutBenchmark.Mode.LOAD, 5000));
+		benchmarks.add(new ShortcutBenchmark("shortcut.parse", ShortcutBenchmark.Mode.PARSE, 100000));
+
+		File dir = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")));
+		File workDir = Files.createTempDirectory(dir.toPath(), "webrcp-bench").toFile();
+		PrintStream console = System.out;
+		PrintStream discard = new PrintStream(new OutputStream() {
+			public void write(int b)
+			{
+			}
+
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		});
+
+		List<Result> results = new ArrayList<Result>();
+		try
+		{
+			for(Benchmark benchmark: benchmarks)
+			{
+				if(!benchmark.getName().contains(filter))
+					continue;
+
+				console.println(benchmark.getName() + " " + benchmark.getParams());
+				double[] scores = new double[iterations];
+				System.setOut(discard);
+				try
+				{
+					benchmark.setUp(workDir);
+					for(int i = -warmup; i < iterations; ++i)
+					{
+						benchmark.prepare();
+						long start = System.nanoTime();
+						long work = benchmark.run();
+						double seconds = (System.nanoTime() - start) / 1e9;
+						double score = work / benchmark.getUnit().scale / seconds;
+						if(i >= 0)
+							scores[i] = score;
+						console.println(String.format(Locale.ROOT, "  %s %d: %.2f %s",
+						        (i < 0)
+						                ? "warmup"
+						                : "iteration", (i < 0)
+						                ? i + warmup + 1
+						                : i + 1, score, benchmark.getUnit().label));
+					}
+				}
+				finally
+				{
+					System.setOut(console);
+					benchmark.tearDown();
+				}
+
+				Result result = new Result(benchmark, scores);
+				results.add(result);
+				console.println(String.format(Locale.ROOT, "  %.2f +- %.2f %s", result.mean(), result.stddev(),
+				        benchmark.getUnit().label));
+			}
+		}
+		finally
+		{
+			Benchmark.delete(workDir);
+		}
+
+		File parent = outFile.getAbsoluteFile().getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
+		try
+		{
+			writeJson(out, args[1], warmup, iterations, results);
+		}
+		finally
+		{
+			out.close();
+		}
+		console.println("Results written to " + outFile);
+	}
+
+	/*
+	 * Write the results together with the environment they were measured in
+	 */
+	private static void writeJson(Writer out, String release, int warmup, int iterations, List<Result> results)
+	        throws IOException
+	{
+		SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+		date.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		out.write("{\n");
+		out.write("  \"release\": " + quote(release) + ",\n");
+		out.write("  \"date\": " + quote(date.format(new Date())) + ",\n");
+		out.write("  \"java\": " + quote(System.getProperty("java.version")) + ",\n");
+		out.write("  \"os\": " + quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")) + ",\n");
+		out.write("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+		out.write("  \"warmup\": " + warmup + ",\n");
+		out.write("  \"iterations\": " + iterations + ",\n");
+		out.write("  \"benchmarks\": [");
+		for(int i = 0; i < results.size(); ++i)
+		{
+			Result result = results.get(i);
+			Benchmark benchmark = result.benchmark;
+			out.write((i > 0)
+			        ? ",\n"
+			        : "\n");
+			out.write("    {\n");
+			out.write("      \"name\": " + quote(benchmark.getName()) + ",\n");
+			out.write("      \"unit\": " + quote(benchmark.getUnit().label) + ",\n");
+			out.write("      \"params\": {");
+			String separator = "";
+			for(Map.Entry<String, Object> param: benchmark.getParams().entrySet())
+			{
+				out.write(separator + quote(param.getKey()) + ": " + param.getValue());
+				separator = ", ";
+			}
+			out.write("},\n");
+			out.write("      \"score\": " + number(result.mean()) + ",\n");
+			out.write("      \"stddev\": " + number(result.stddev()) + ",\n");
+			out.write("      \"min\": " + number(result.min()) + ",\n");
+			out.write("      \"max\": " + number(result.max()) + ",\n");
+			out.write("      \"samples\": [");
+			for(int j = 0; j < result.scores.length; ++j)
+				out.write(((j > 0)
+				        ? ", "
+				        : "") + number(result.scores[j]));
+			out.write("]\n");
+			out.write("    }");
+		}
+		out.write("\n  ]\n");
+		out.write("}\n");
+	}
+
+	private static String number(double value)
+	{
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String quote(String value)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+		for(int i = 0; i < value.length(); ++i)
+		{
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if(c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Download and extraction of a set of archives through the DownloadScheduler
+ * from an embedded HTTP server on the loopback interface. The server delays
+ * every response by a latency and limits the bandwidth of every connection,
+ * so the effect of parallel and segmented downloads shows like on a real
+ * link. Range requests are honored. The archives are hashed while they are
+ * downloaded, unless the digest is disabled to measure its cost.
+ */
+class DownloadBenchmark extends Benchmark
+{
+	private static final Pattern RANGE  = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	private final int            archives, archiveSize;
+
+	private final int            latency, bandwidth;
+
+	private final int            parallelism, segments;
+
+	private final boolean        digest;
+
+	private final Map<String, byte[]> content = new HashMap<String, byte[]>();
+
+	private HttpServer           server;
+
+	private ExecutorService      executor;
+
+	private String               baseURL;
+
+	private File                 workDir, tempDir, destDir;
+
+	private long                 bytes;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name name of the benchmark
+	 * @param archives number of archives
+	 * @param archiveSize size of every archive
+	 * @param latency delay of every response (milliseconds)
+	 * @param bandwidth bytes per second of a single connection, 0 for
+	 *            unlimited
+	 * @param digest hash the archives while downloading them
+	 */
+	DownloadBenchmark(String name, int archives, int archiveSize, int latency, int bandwidth, boolean digest)
+	{
+		super(name, Unit.BYTES);
+		this.archives = param("archives", archives);
+		this.archiveSize = param("archiveSize", archiveSize);
+		this.latency = param("latency", latency);
+		this.bandwidth = param("bandwidth", bandwidth);
+		parallelism = param("parallelism", Integer.getInteger("bench.downloadParallelism", 4));
+		segments = param("segments", Integer.getInteger("bench.segments", 4));
+		this.digest = param("digest", digest);
+	}
+
+	public void setUp(File workDir) throws IOException
+	{
+		this.workDir = workDir;
+
+		// Jars are compressed already, so the archives are hardly smaller
+		// than their content
+		Random random = new Random(1);
+		for(int i = 0; i < archives; ++i)
+		{
+			ByteArrayOutputStream archive = new ByteArrayOutputStream(archiveSize + 1024);
+			ZipOutputStream out = new ZipOutputStream(archive);
+			out.setLevel(0);
+			for(int size = 0; size < archiveSize; size += 1024 * 1024)
+			{
+				byte[] jar = new byte[Math.min(1024 * 1024, archiveSize - size)];
+				random.nextBytes(jar);
+				out.putNextEntry(new ZipEntry("plugins/com.example.archive" + i + ".bundle" + size + ".jar"));
+				out.write(jar);
+				out.closeEntry();
+			}
+			out.close();
+			content.put("/archive" + i + ".zip", archive.toByteArray());
+			bytes += archive.size();
+		}
+
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				try
+				{
+					serve(exchange);
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		baseURL = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+	}
+
+	public void prepare() throws IOException
+	{
+		tempDir = new File(workDir, getName() + "-archives");
+		destDir = new File(workDir, getName());
+		delete(tempDir);
+		delete(destDir);
+		tempDir.mkdirs();
+		destDir.mkdirs();
+	}
+
+	public long run() throws IOException
+	{
+		Progress progress = new Progress();
+		UnpackThread unpackThread = new UnpackThread(destDir, Runtime.getRuntime().availableProcessors(), progress);
+		ArchiveValidators validators = new ArchiveValidators(new File(tempDir, "archives.properties"));
+		DownloadScheduler scheduler = new DownloadScheduler(parallelism, unpackThread, validators, progress);
+		scheduler.setMaxSegments(segments);
+		scheduler.setDigest(digest);
+		for(int i = 0; i < archives; ++i)
+			scheduler.schedule(new URL(baseURL + "archive" + i + ".zip"), new File(tempDir, "archive" + i + ".zip"));
+		scheduler.finish();
+		unpackThread.finish();
+		return bytes;
+	}
+
+	public void tearDown() throws IOException
+	{
+		server.stop(0);
+		executor.shutdownNow();
+		delete(tempDir);
+		delete(destDir);
+	}
+
+	/*
+	 * Answer a GET or HEAD request for an archive after the latency, the
+	 * body is throttled to the bandwidth
+	 */
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		sleep(latency);
+
+		byte[] file = content.get(exchange.getRequestURI().getPath());
+		if(file == null)
+		{
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+
+		int start = 0, end = file.length;
+		int code = 200;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		Matcher matcher = (range != null)
+		        ? RANGE.matcher(range)
+		        : null;
+		if(matcher != null && matcher.matches())
+		{
+			start = Integer.parseInt(matcher.group(1));
+			if(matcher.group(2).length() > 0)
+				end = Math.min(end, Integer.parseInt(matcher.group(2)) + 1);
+			if(start >= end)
+			{
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + file.length);
+				exchange.sendResponseHeaders(416, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Range",
+			        "bytes " + start + "-" + (end - 1) + "/" + file.length);
+			code = 206;
+		}
+
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		exchange.getResponseHeaders().set("ETag", "\"" + exchange.getRequestURI().getPath().hashCode() + "\"");
+		exchange.getResponseHeaders().set("Content-Type", "application/zip");
+		if("HEAD".equals(exchange.getRequestMethod()))
+		{
+			exchange.sendResponseHeaders(code, -1);
+			return;
+		}
+
+		exchange.sendResponseHeaders(code, end - start);
+		OutputStream out = exchange.getResponseBody();
+		int chunk = (bandwidth > 0)
+		        ? Math.max(1024, bandwidth / 100)
+		        : 65536;
+		long begin = System.nanoTime();
+		for(int position = start; position < end; position += chunk)
+		{
+			out.write(file, position, Math.min(chunk, end - position));
+			if(bandwidth > 0)
+			{
+				long due = (long) (position + chunk - start) * 1000 / bandwidth;
+				sleep(due - (System.nanoTime() - begin) / 1000000);
+			}
+		}
+		out.close();
+	}
+
+	private static void sleep(long millis) throws IOException
+	{
+		if(millis <= 0)
+			return;
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extraction of a synthetic RCP-like archive by the UnpackThread into an
+ * empty directory. The archive either consists of many small class files in
+ * plugin directories, which stresses the per entry overhead, or of a few
+ * large jars stored without compression, which stresses the write path.
+ */
+class ExtractBenchmark extends Benchmark
+{
+	private final int  entries, minSize, maxSize;
+
+	private final int  parallelism;
+
+	private final Random random = new Random(1);
+
+	private File       archive, destDir;
+
+	private long       bytes;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name name of the benchmark
+	 * @param entries number of entries in the archive
+	 * @param minSize minimum size of an entry
+	 * @param maxSize maximum size of an entry
+	 */
+	ExtractBenchmark(String name, int entries, int minSize, int maxSize)
+	{
+		super(name, Unit.BYTES);
+		this.entries = param("entries", entries);
+		this.minSize = param("minSize", minSize);
+		this.maxSize = param("maxSize", maxSize);
+		parallelism = param("parallelism",
+		        Integer.getInteger("bench.unpackParallelism", Runtime.getRuntime().availableProcessors()));
+	}
+
+	public void setUp(File workDir) throws IOException
+	{
+		archive = new File(workDir, getName() + ".zip");
+		destDir = new File(workDir, getName());
+
+		// Small entries are class files which compress well, large ones are
+		// jars which are compressed already
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+		try
+		{
+			for(int i = 0; i < entries; ++i)
+			{
+				byte[] content = new byte[minSize + random.nextInt(maxSize - minSize + 1)];
+				boolean jar = content.length >= 1024 * 1024;
+				if(jar)
+				{
+					random.nextBytes(content);
+					out.setLevel(0);
+					out.putNextEntry(new ZipEntry("plugins/com.example.bundle" + i + ".jar"));
+				}
+				else
+				{
+					for(int j = 0; j < content.length; ++j)
+						content[j] = (byte) ('a' + random.nextInt(16));
+					out.setLevel(-1);
+					out.putNextEntry(new ZipEntry("plugins/com.example.bundle" + (i / 200) + "/Class" + i + ".class"));
+				}
+				out.write(content);
+				out.closeEntry();
+				bytes += content.length;
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public void prepare() throws IOException
+	{
+		delete(destDir);
+		destDir.mkdirs();
+	}
+
+	public long run()
+	{
+		UnpackThread unpackThread = new UnpackThread(destDir, parallelism, new Progress());
+		unpackThread.addNextFile(archive);
+		unpackThread.finish();
+		return bytes;
+	}
+
+	public void tearDown() throws IOException
+	{
+		delete(destDir);
+		delete(archive);
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serialization of a shortcut by getBytes, writing of shortcut files by the
+ * ShortcutProvisioner, scanning them into a ShortcutIndex, parsing of a
+ * shortcut file by loadShortcut or parsing of a shortcut in memory by the
+ * ShortcutParser, which only decodes the fields of an index entry. The shortcut resembles the desktop shortcut
+ * created for an application, with description, command line and icon.
+ */
+class ShortcutBenchmark extends Benchmark
+{
+	enum Mode
+	{
+		SERIALIZE, PROVISION, SCAN, LOAD, PARSE
+	}
+
+	private final Mode                       mode;
+
+	private final int                        operations;
+
+	private final ShortcutParser             parser = new ShortcutParser();
+
+	private final ShortcutProvisioner        provisioner;
+
+	private final ShortcutScanner            scanner;
+
+	private Shortcut                         shortcut;
+
+	private File                             file;
+
+	private ByteBuffer                       bytes;
+
+	private List<ShortcutProvisioner.Target> targets;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name name of the benchmark
+	 * @param mode code path to measure
+	 * @param operations number of shortcuts processed per iteration
+	 */
+	ShortcutBenchmark(String name, Mode mode, int operations)
+	{
+		super(name, Unit.OPERATIONS);
+		this.mode = mode;
+		this.operations = param("operations", operations);
+		int parallelism = Integer.getInteger("bench.shortcutParallelism", Runtime.getRuntime().availableProcessors());
+		if(mode == Mode.PROVISION || mode == Mode.SCAN)
+			param("parallelism", parallelism);
+		provisioner = new ShortcutProvisioner(parallelism);
+		scanner = new ShortcutScanner(parallelism);
+	}
+
+	public void setUp(File workDir) throws IOException, InterruptedException
+	{
+		shortcut = createShortcut();
+		bytes = ByteBuffer.wrap(shortcut.getBytes());
+		targets = new ArrayList<ShortcutProvisioner.Target>();
+		if(mode == Mode.PROVISION || mode == Mode.SCAN)
+		{
+			// Desktop and start menu of a profile per directory
+			for(int i = 0; i < operations / 2; ++i)
+			{
+				File profile = new File(workDir, getName() + "/profile" + i);
+				targets.add(new ShortcutProvisioner.Target(new File(profile, "Desktop/example.lnk"), shortcut));
+				targets.add(new ShortcutProvisioner.Target(new File(profile, "Start Menu/example.lnk"), shortcut));
+			}
+			if(mode == Mode.SCAN)
+				provisioner.provision(targets);
+		}
+		file = new File(workDir, getName() + ".lnk");
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(bytes.array());
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public long run() throws IOException, MalformedShortcutException, InterruptedException
+	{
+		if(mode == Mode.PROVISION)
+		{
+			ShortcutProvisioner.Result result = provisioner.provision(targets);
+			if(!result.getFailures().isEmpty())
+				throw new IOException(result.getFailures().get(0).toString());
+			return result.getWritten();
+		}
+		if(mode == Mode.SCAN)
+		{
+			ShortcutIndex index = new ShortcutIndex();
+			ShortcutScanner.Result result = scanner.scan(new File(file.getParentFile(), getName()), index);
+			if(result.getFailed() > 0 || index.findReferencing("C:\\Users").size() != targets.size())
+				throw new IOException("Scan failed: " + result);
+			return result.getFound();
+		}
+
+		long size = 0;
+		for(int i = 0; i < operations; ++i)
+		{
+			if(mode == Mode.LOAD)
+				size += Shortcut.loadShortcut(file).fileLength;
+			else if(mode == Mode.PARSE)
+				size += parser.parse(bytes).getRelativePath().length() + parser.getWorkingDirectory().length()
+				        + parser.getCommandLine().length() + parser.getIconFileName().length();
+			else
+				size += shortcut.getBytes().length;
+		}
+		// Keep the results alive
+		if(size < 0)
+			throw new IllegalStateException();
+		return operations;
+	}
+
+	public void tearDown() throws IOException
+	{
+		delete(file);
+		delete(new File(file.getParentFile(), getName()));
+	}
+
+	static Shortcut createShortcut()
+	{
+		Shortcut shortcut = new Shortcut("C:\\Users\\user\\AppData\\Local\\Temp\\webrcp\\example\\current\\example.exe",
+		        "C:\\Users\\user\\AppData\\Local\\Temp\\webrcp\\example\\current");
+		shortcut.description = "Example RCP Application";
+		shortcut.commandLine = "-data @user.home\\example -clean";
+		shortcut.iconFileName = "C:\\Users\\user\\AppData\\Local\\Temp\\webrcp\\example\\current\\example.ico";
+		return shortcut;
+	}
+}
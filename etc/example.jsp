@@ -39,6 +39,8 @@
 	   	<property name="jnlp.WebRCP.executable" value="@EXECUTABLE@"/>
 	   	<property name="jnlp.WebRCP.singleInstance" value="false"/>
 	   	<property name="jnlp.WebRCP.launcherjar" value="@EQUINOX_LAUNCHER@"/>
+	   	<property name="jnlp.WebRCP.downloadParallelism" value="4"/>
+	   	<property name="jnlp.WebRCP.streamUnpack" value="false"/>
 		
 		<!-- more custom properties -->
 		<!-- will be loaded and set as System Property without the jnlp.custom part -->
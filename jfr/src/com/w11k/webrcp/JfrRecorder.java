@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emits startup spans as Java Flight Recorder events. Only loaded by
+ * StartupMetrics.enableJfr, so JREs without JFR never touch this class. It
+ * has a source folder of its own, which is only compiled if the JDK has
+ * jdk.jfr, the launcher itself builds without it.
+ */
+class JfrRecorder implements StartupMetrics.Recorder
+{
+	@Name("com.w11k.webrcp.Span")
+	@Label("WebRCP Startup Span")
+	@Category("WebRCP")
+	static class SpanEvent extends Event
+	{
+		@Label("Name")
+		String name;
+
+		@Label("Detail")
+		String detail;
+
+		@Label("Bytes")
+		@DataAmount
+		long   bytes;
+	}
+
+	public Object begin(String name, String detail)
+	{
+		SpanEvent event = new SpanEvent();
+		event.name = name;
+		event.detail = detail;
+		event.begin();
+		return event;
+	}
+
+	public void end(Object handle, long bytes)
+	{
+		SpanEvent event = (SpanEvent) handle;
+		event.bytes = bytes;
+		event.end();
+		event.commit();
+	}
+}
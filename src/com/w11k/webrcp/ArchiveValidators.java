@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Validators of the downloaded archives. For every archive the ETag, the
+ * Last-Modified date and the SHA-256 hash of the content are recorded, so an
+ * update only needs to fetch and extract the archives which really changed.
+ * The list of archives is recorded as well, if it changes the unpacked
+ * directory can't be updated archive by archive.
+ */
+class ArchiveValidators
+{
+	private static final String KEY_ARCHIVES      = "archives";
+	private static final String KEY_ETAG          = ".etag";
+	private static final String KEY_LAST_MODIFIED = ".lastModified";
+	private static final String KEY_SHA256        = ".sha256";
+
+	private final File          file;
+
+	private final Properties    properties        = new Properties();
+
+	/**
+	 * Constructor. Loads the validators stored in file if it exists.
+	 */
+	public ArchiveValidators(File file)
+	{
+		this.file = file;
+		try
+		{
+			InputStream in = new FileInputStream(file);
+			properties.load(in);
+			in.close();
+		}
+		catch(IOException ex)
+		{
+			// No error. File doesn't already exists.
+		}
+	}
+
+	/**
+	 * Check if the recorded archives equal the given archive list
+	 */
+	public synchronized boolean hasArchives(String archives)
+	{
+		return archives.equals(properties.getProperty(KEY_ARCHIVES));
+	}
+
+	/**
+	 * Record the archive list
+	 */
+	public synchronized void setArchives(String archives)
+	{
+		properties.setProperty(KEY_ARCHIVES, archives);
+	}
+
+	public synchronized String getETag(String archive)
+	{
+		return properties.getProperty(archive + KEY_ETAG);
+	}
+
+	public synchronized String getLastModified(String archive)
+	{
+		return properties.getProperty(archive + KEY_LAST_MODIFIED);
+	}
+
+	public synchronized String getSHA256(String archive)
+	{
+		return properties.getProperty(archive + KEY_SHA256);
+	}
+
+	/**
+	 * Record the validators of an archive. Null values remove the validator.
+	 */
+	public synchronized void put(String archive, String etag, String lastModified, String sha256)
+	{
+		set(archive + KEY_ETAG, etag);
+		set(archive + KEY_LAST_MODIFIED, lastModified);
+		set(archive + KEY_SHA256, sha256);
+	}
+
+	/**
+	 * Forget all validators, e.g. if the installed content is removed
+	 */
+	public synchronized void clear()
+	{
+		properties.clear();
+	}
+
+	/**
+	 * Store validators
+	 */
+	public synchronized void save()
+	{
+		try
+		{
+			OutputStream out = new FileOutputStream(file);
+			properties.store(out, "WebRCP archive validators");
+			out.close();
+		}
+		catch(IOException ex)
+		{
+			// Not too bad. The next update fetches all archives.
+			file.delete();
+		}
+	}
+
+	private void set(String key, String value)
+	{
+		if(value != null)
+			properties.setProperty(key, value);
+		else
+			properties.remove(key);
+	}
+}
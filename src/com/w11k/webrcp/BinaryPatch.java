@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Binary patch of a single file, used for large jars which changed by a few
+ * classes only. A patch is a sequence of instructions which build the new
+ * file from ranges copied from the old file and literal bytes. The header
+ * carries length and SHA-256 hash of the old and the new file, so a patch is
+ * never applied to the wrong file and its result is verified. Patches are
+ * created by the PatchGenerator tool.
+ *
+ * Format (big endian): MAGIC, old length (long), old hash (32 bytes), new
+ * length (long), new hash (32 bytes), then instructions: COPY offset (long)
+ * length (int), ADD length (int) bytes, END.
+ */
+class BinaryPatch
+{
+	/**
+	 * Suffix of a patch inside a delta, appended to the name of the patched
+	 * entry
+	 */
+	public static final String SUFFIX     = ".webrcp-patch";
+
+	static final int           MAGIC      = 0x57525031;
+
+	static final int           END        = 0;
+
+	static final int           COPY       = 1;
+
+	static final int           ADD        = 2;
+
+	static final int           HASH_SIZE  = 32;
+
+	private BinaryPatch()
+	{
+	}
+
+	/**
+	 * Apply the patch read from in to base and write the new file to out.
+	 *
+	 * @throws IOException if the patch doesn't belong to base, is corrupt or
+	 *             doesn't produce the expected file
+	 */
+	public static void apply(File base, InputStream in, OutputStream out) throws IOException
+	{
+		DataInputStream patch = new DataInputStream(in);
+		if(patch.readInt() != MAGIC)
+			throw new IOException("Not a patch");
+
+		long baseLength = patch.readLong();
+		byte[] baseHash = readHash(patch);
+		long targetLength = patch.readLong();
+		byte[] targetHash = readHash(patch);
+
+		if(base.length() != baseLength || !Arrays.equals(hash(base), baseHash))
+			throw new IOException("Patch doesn't match the old file");
+
+		MessageDigest digest = DownloadScheduler.createDigest();
+		byte[] buffer = new byte[32768];
+		long written = 0;
+		RandomAccessFile source = new RandomAccessFile(base, "r");
+		try
+		{
+			int op;
+			while((op = patch.readByte()) != END)
+			{
+				if(op == COPY)
+				{
+					long offset = patch.readLong();
+					int length = patch.readInt();
+					if(offset < 0 || length < 0 || offset + length > baseLength)
+						throw new IOException("Invalid patch: copy beyond end of file");
+
+					source.seek(offset);
+					while(length > 0)
+					{
+						int count = Math.min(length, buffer.length);
+						source.readFully(buffer, 0, count);
+						digest.update(buffer, 0, count);
+						out.write(buffer, 0, count);
+						length -= count;
+						written += count;
+					}
+				}
+				else if(op == ADD)
+				{
+					int length = patch.readInt();
+					if(length < 0)
+						throw new IOException("Invalid patch: negative length");
+
+					while(length > 0)
+					{
+						int count = Math.min(length, buffer.length);
+						patch.readFully(buffer, 0, count);
+						digest.update(buffer, 0, count);
+						out.write(buffer, 0, count);
+						length -= count;
+						written += count;
+					}
+				}
+				else
+				{
+					throw new IOException("Invalid patch: unknown instruction " + op);
+				}
+			}
+		}
+		catch(EOFException ex)
+		{
+			throw new IOException("Patch truncated");
+		}
+		finally
+		{
+			source.close();
+		}
+
+		if(written != targetLength || !Arrays.equals(digest.digest(), targetHash))
+			throw new IOException("Patch result doesn't match its expected hash");
+	}
+
+	/*
+	 * Compute the SHA-256 hash of a file
+	 */
+	static byte[] hash(File file) throws IOException
+	{
+		MessageDigest digest = DownloadScheduler.createDigest();
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[32768];
+			int size;
+			while((size = in.read(buffer)) > 0)
+				digest.update(buffer, 0, size);
+		}
+		finally
+		{
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	private static byte[] readHash(DataInputStream in) throws IOException
+	{
+		byte[] hash = new byte[HASH_SIZE];
+		in.readFully(hash);
+		return hash;
+	}
+}
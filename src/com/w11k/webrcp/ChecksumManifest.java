@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 checksums of the archives published next to them on the server.
+ * The format is the one of sha256sum: one line per archive with the hex
+ * encoded hash, whitespace and the file name (optionally prefixed by '*').
+ * Lines starting with '#' are comments.
+ */
+class ChecksumManifest
+{
+	private final Map<String, String> checksums = new HashMap<String, String>();
+
+	/**
+	 * Load the manifest from url
+	 */
+	public ChecksumManifest(URL url) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+		try
+		{
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				String[] field = line.split("\\s+", 2);
+				if(field.length < 2 || field[0].length() != 64)
+					throw new IOException("Invalid checksum line: " + line);
+
+				String name = field[1].startsWith("*")
+				        ? field[1].substring(1)
+				        : field[1];
+				checksums.put(name, field[0].toLowerCase());
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Expected hash of an archive (hex encoded, lower case) or null if the
+	 * manifest doesn't list it
+	 */
+	public String get(String archive)
+	{
+		return checksums.get(archive);
+	}
+
+	/**
+	 * Number of listed archives
+	 */
+	public int size()
+	{
+		return checksums.size();
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+/**
+ * Reports the progress as lines on standard output and errors on standard
+ * error, used in headless mode. A progress line is only written for every
+ * few percent, so logs of unattended installations stay short. Public, so
+ * it can also be configured as jnlp.WebRCP.reporter to get console output
+ * while a display is available.
+ */
+public class ConsoleReporter implements Reporter
+{
+	/*
+	 * Percentage between two progress lines
+	 */
+	private static final int STEP = 5;
+
+	private int              reported = -STEP;
+
+	public void started(String task)
+	{
+		System.out.println(task);
+	}
+
+	public synchronized void progressChanged(double fraction, String status)
+	{
+		int percent = (int) (fraction * 100);
+		if(percent < reported + STEP)
+			return;
+
+		reported = percent - percent % STEP;
+		System.out.println(percent + "% " + status);
+	}
+
+	public boolean isCanceled()
+	{
+		return false;
+	}
+
+	public synchronized void finished()
+	{
+		System.out.println("100% Done");
+	}
+
+	public void error(int exitCode, String title, String message)
+	{
+		System.err.println("Error " + exitCode + ": " + title + ": " + message);
+	}
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Set;
+
+/**
+ * Content-addressed store shared by all applications and versions. Every
+ * stored file is named by the SHA-256 hash of its content, installations
+ * reference it by hard links (or copies where the file system doesn't
+ * support them). Products sharing plugins store each plugin only once, and
+ * a plugin already stored by another product doesn't have to be written
+ * again. Only jars are shared, they are never modified in place, unlike
+ * configuration files which must stay private to an installation.
+ *
+ * The store is private to its user: on POSIX file systems it is only
+ * accessible by its owner, and a store owned by someone else is refused.
+ * Stored objects are hashed again before they are used, an object which
+ * was modified after it was stored is replaced.
+ */
+class ContentStore
+{
+	private static final String                   OBJECTS        = "objects";
+
+	/*
+	 * Permissions of the store directories on POSIX file systems
+	 */
+	private static final Set<PosixFilePermission> OWNER_ONLY     = PosixFilePermissions.fromString("rwx------");
+
+	private final File                            dir;
+
+	private volatile boolean                      linksSupported = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dir root of the store, may be used by several applications
+	 *            concurrently
+	 */
+	public ContentStore(File dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Check if entries with the given name are shared
+	 */
+	public boolean accepts(String name)
+	{
+		return name.endsWith(".jar");
+	}
+
+	/**
+	 * Create the store if it doesn't exist yet. On POSIX file systems it is
+	 * made accessible by its owner only.
+	 *
+	 * @throws IOException if the store can't be created or belongs to
+	 *             another user
+	 */
+	public void open() throws IOException
+	{
+		File objects = new File(dir, OBJECTS);
+		objects.mkdirs();
+		if(!objects.isDirectory())
+			throw new IOException("Couldn't create content store " + dir);
+
+		restrict(dir.toPath());
+		restrict(objects.toPath());
+	}
+
+	/**
+	 * Check if content with the given hash is stored. The stored object is
+	 * hashed again, an object whose content doesn't match its name doesn't
+	 * count.
+	 */
+	public boolean contains(String hash) throws IOException
+	{
+		File objectFile = objectFile(hash);
+		if(!objectFile.isFile())
+			return false;
+
+		InputStream in = new FileInputStream(objectFile);
+		try
+		{
+			return hash.equals(hash(in));
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Store the content read from in and return its hash. The content is
+	 * written to a temporary file first and moved to its final name, so
+	 * concurrent writers of the same content don't disturb each other. A
+	 * stored object which doesn't match its hash is replaced.
+	 */
+	public String add(InputStream in) throws IOException
+	{
+		File objects = new File(dir, OBJECTS);
+		objects.mkdirs();
+		File tmpFile = File.createTempFile("add", ".tmp", objects);
+		try
+		{
+			MessageDigest digest = DownloadScheduler.createDigest();
+			OutputStream out = new FileOutputStream(tmpFile);
+			try
+			{
+				byte[] buffer = new byte[32768];
+				int size;
+				while((size = in.read(buffer)) > 0)
+				{
+					digest.update(buffer, 0, size);
+					out.write(buffer, 0, size);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			String hash = DownloadScheduler.toHex(digest.digest());
+			File objectFile = objectFile(hash);
+			if(!contains(hash))
+			{
+				objectFile.getParentFile().mkdirs();
+				try
+				{
+					Files.move(tmpFile.toPath(), objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch(FileAlreadyExistsException ex)
+				{
+					// Stored concurrently by someone else
+				}
+			}
+			return hash;
+		}
+		finally
+		{
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Make target reference the stored content with the given hash. An
+	 * existing target is replaced.
+	 */
+	public void link(String hash, File target) throws IOException
+	{
+		File objectFile = objectFile(hash);
+		Files.deleteIfExists(target.toPath());
+
+		if(linksSupported)
+		{
+			try
+			{
+				Files.createLink(target.toPath(), objectFile.toPath());
+				return;
+			}
+			catch(UnsupportedOperationException ex)
+			{
+				linksSupported = false;
+			}
+			catch(IOException ex)
+			{
+				// E.g. store on another file system, copy instead
+			}
+		}
+
+		Files.copy(objectFile.toPath(), target.toPath());
+	}
+
+	/**
+	 * Compute the SHA-256 hash of the content read from in
+	 */
+	public static String hash(InputStream in) throws IOException
+	{
+		MessageDigest digest = DownloadScheduler.createDigest();
+		byte[] buffer = new byte[32768];
+		int size;
+		while((size = in.read(buffer)) > 0)
+			digest.update(buffer, 0, size);
+		return DownloadScheduler.toHex(digest.digest());
+	}
+
+	/*
+	 * Make a directory of the store accessible by its owner only, refuse
+	 * directories of other users. Other file systems, e.g. on Windows, have
+	 * no POSIX permissions, the store is expected in the user's profile
+	 * there.
+	 */
+	private static void restrict(Path path) throws IOException
+	{
+		PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+		if(view == null)
+			return;
+
+		String owner = view.getOwner().getName();
+		if(!owner.equals(System.getProperty("user.name")))
+			throw new IOException("Content store " + path + " belongs to " + owner);
+		if(!view.readAttributes().permissions().equals(OWNER_ONLY))
+			view.setPermissions(OWNER_ONLY);
+	}
+
+	/*
+	 * Objects are spread over subdirectories named by the first two hex
+	 * digits, so no directory grows too large
+	 */
+	private File objectFile(String hash)
+	{
+		return new File(new File(new File(dir, OBJECTS), hash.substring(0, 2)), hash);
+	}
+}
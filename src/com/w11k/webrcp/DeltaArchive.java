@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Delta between two versions of an archive. A delta is a zip file which
+ * contains the added and changed entries of the new version and an index of
+ * all its entries (CRC, size and name). Together with the old version of the
+ * archive the new version is rebuilt entry by entry, every entry taken from
+ * the old archive must match the index, so a delta applied to the wrong base
+ * fails instead of producing a broken archive. Entries which are not in the
+ * index anymore are dropped. Large changed entries may be contained as
+ * binary patch against their old version instead (see BinaryPatch). Deltas
+ * are created by the DeltaGenerator tool.
+ */
+class DeltaArchive
+{
+	/**
+	 * Name of the index entry inside a delta
+	 */
+	public static final String INDEX = ".webrcp-delta-index";
+
+	private DeltaArchive()
+	{
+	}
+
+	/**
+	 * File name of the delta of an archive (without .zip) between two
+	 * application versions
+	 */
+	public static String fileName(String archive, String fromVersion, String toVersion)
+	{
+		return archive + "-" + encode(fromVersion) + "-" + encode(toVersion) + ".delta.zip";
+	}
+
+	/**
+	 * Write the index of archive
+	 */
+	public static void writeIndex(ZipFile archive, Writer out) throws IOException
+	{
+		Enumeration<? extends ZipEntry> entries = archive.entries();
+		while(entries.hasMoreElements())
+		{
+			ZipEntry entry = entries.nextElement();
+			out.write(Long.toHexString(Math.max(entry.getCrc(), 0)) + "\t" + Math.max(entry.getSize(), 0) + "\t"
+			        + entry.getName() + "\n");
+		}
+	}
+
+	/**
+	 * Rebuild the new version of an archive from its old version and a delta.
+	 * The entries are stored uncompressed: no time is spent on compression
+	 * and the entries are mostly compressed jars anyway.
+	 *
+	 * @throws IOException if the delta doesn't match the old version
+	 */
+	public static void apply(File base, File delta, File result) throws IOException
+	{
+		ZipFile baseZip = new ZipFile(base);
+		try
+		{
+			ZipFile deltaZip = new ZipFile(delta);
+			try
+			{
+				ZipEntry index = deltaZip.getEntry(INDEX);
+				if(index == null)
+					throw new IOException("Delta " + delta + " has no index");
+
+				OutputStream out = new FileOutputStream(result);
+				try
+				{
+					rebuild(baseZip, deltaZip, deltaZip.getInputStream(index), new ZipOutputStream(out),
+					        result.getAbsoluteFile().getParentFile());
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			finally
+			{
+				deltaZip.close();
+			}
+		}
+		finally
+		{
+			baseZip.close();
+		}
+	}
+
+	/*
+	 * Copy the entries listed in the index. The zip stream verifies CRC and
+	 * size of every stored entry. Directories have no content, a new one is
+	 * created even if it's missing in the delta, as in the deltas of older
+	 * generators.
+	 */
+	private static void rebuild(ZipFile baseZip, ZipFile deltaZip, InputStream index, ZipOutputStream out,
+	        File tmpDir) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(index, "UTF-8"));
+		byte[] buffer = new byte[32768];
+		String line;
+		while((line = in.readLine()) != null)
+		{
+			String[] field = line.split("\t", 3);
+			long crc, size;
+			try
+			{
+				crc = Long.parseLong(field[0], 16);
+				size = Long.parseLong(field[1]);
+			}
+			catch(RuntimeException ex)
+			{
+				throw new IOException("Invalid delta index: " + line);
+			}
+			if(field.length < 3)
+				throw new IOException("Invalid delta index: " + line);
+			String name = field[2];
+
+			ZipFile source = deltaZip;
+			ZipEntry sourceEntry = deltaZip.getEntry(name);
+			ZipEntry patchEntry = null;
+			if(sourceEntry == null)
+			{
+				// Patched entries are checked by the patch itself
+				patchEntry = deltaZip.getEntry(name + BinaryPatch.SUFFIX);
+				source = baseZip;
+				sourceEntry = baseZip.getEntry(name);
+				if(sourceEntry == null && name.endsWith("/") && size == 0)
+					sourceEntry = new ZipEntry(name);
+				if(sourceEntry == null || (patchEntry == null && !sourceEntry.isDirectory()
+				        && (sourceEntry.getCrc() != crc || sourceEntry.getSize() != size)))
+					throw new IOException("Delta doesn't match the installed archive: " + name);
+			}
+
+			ZipEntry entry = new ZipEntry(name);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setCrc(crc);
+			entry.setSize(size);
+			entry.setCompressedSize(size);
+			out.putNextEntry(entry);
+
+			if(patchEntry != null)
+			{
+				patch(baseZip, sourceEntry, deltaZip.getInputStream(patchEntry), out, tmpDir);
+			}
+			else if(!sourceEntry.isDirectory())
+			{
+				InputStream entryIn = source.getInputStream(sourceEntry);
+				try
+				{
+					int count;
+					while((count = entryIn.read(buffer)) > 0)
+						out.write(buffer, 0, count);
+				}
+				finally
+				{
+					entryIn.close();
+				}
+			}
+			out.closeEntry();
+		}
+		out.finish();
+	}
+
+	/*
+	 * Patch an entry of the old archive. The patch needs random access to the
+	 * old entry, so it's unpacked into a temporary file first.
+	 */
+	private static void patch(ZipFile baseZip, ZipEntry baseEntry, InputStream patch, OutputStream out, File tmpDir)
+	        throws IOException
+	{
+		File baseFile = File.createTempFile("patch", ".tmp", tmpDir);
+		try
+		{
+			InputStream in = baseZip.getInputStream(baseEntry);
+			try
+			{
+				Files.copy(in, baseFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally
+			{
+				in.close();
+			}
+
+			try
+			{
+				BinaryPatch.apply(baseFile, patch, out);
+			}
+			catch(IOException ex)
+			{
+				throw new IOException(baseEntry.getName() + ": " + ex.getMessage());
+			}
+			finally
+			{
+				patch.close();
+			}
+		}
+		finally
+		{
+			baseFile.delete();
+		}
+	}
+
+	/*
+	 * Versions are part of the file name and the URL, so only safe
+	 * characters are kept
+	 */
+	private static String encode(String version)
+	{
+		return version.replaceAll("[^A-Za-z0-9._]", "_");
+	}
+}
@@ -0,0 +1,890 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads archives concurrently. Every completed archive is handed to the
+ * unpack thread as soon as it has been stored, so extraction of the first
+ * archive overlaps with the download of the remaining ones. The progress of
+ * all running downloads is added to the startup progress.
+ */
+class DownloadScheduler
+{
+	/*
+	 * Number of attempts per download and delay between them (milliseconds,
+	 * multiplied with the attempt number)
+	 */
+	private static final int    MAX_ATTEMPTS               = 5;
+	private static final long   RETRY_DELAY                = 1000;
+
+	private static final int    HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/*
+	 * A transfer which doesn't receive anything for this time (milliseconds)
+	 * is considered stalled and fails the attempt
+	 */
+	private static final int    READ_TIMEOUT               = 30000;
+
+	/*
+	 * Archives of at least this size are downloaded over several connections
+	 */
+	private static final long   SEGMENT_THRESHOLD          = 16 * 1024 * 1024;
+
+	/*
+	 * Outcome of a single download
+	 */
+	private enum Result
+	{
+		COMPLETE, NOT_MODIFIED, CANCELED
+	}
+
+	private final ExecutorService executor;
+
+	private final UnpackThread    unpackThread;
+
+	private final ArchiveValidators validators;
+
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	private final Progress        progress;
+
+	private final AtomicBoolean   failed         = new AtomicBoolean();
+
+	private boolean               streamUnpack;
+	private boolean               keepArchives   = true;
+
+	private volatile ChecksumManifest checksums;
+
+	private volatile Mirrors      mirrors;
+
+	private int                   maxSegments    = 1;
+
+	private boolean               digest         = true;
+
+	/*
+	 * State of a single download: its share in the aggregated progress and
+	 * the validators sent by the server. The segments of a download update
+	 * it concurrently while holding its lock. The digest of an interrupted
+	 * attempt covers the first digested bytes of the part file, the next
+	 * attempt continues it.
+	 */
+	private static class Transfer
+	{
+		long          total, downloaded, received;
+		String        etag, lastModified, sha256;
+		boolean       unpacked;
+		MessageDigest digest;
+		long          digested;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param parallelism maximum number of concurrent downloads
+	 * @param unpackThread thread which receives the completed archives
+	 * @param validators validators of the previously downloaded archives
+	 * @param progress receives the downloaded bytes, canceling it stops the
+	 *            downloads
+	 */
+	public DownloadScheduler(int parallelism, UnpackThread unpackThread, ArchiveValidators validators,
+	        Progress progress)
+	{
+		this.unpackThread = unpackThread;
+		this.validators = validators;
+		this.progress = progress;
+		executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "WebRCP-Download-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Enable extraction while downloading. The archives are decoded entry by
+	 * entry as the bytes arrive. If keepArchives is false, the downloaded
+	 * archives are not stored at all, so interrupted downloads can't be
+	 * resumed.
+	 */
+	public void setStreamUnpack(boolean streamUnpack, boolean keepArchives)
+	{
+		this.streamUnpack = streamUnpack;
+		this.keepArchives = keepArchives || !streamUnpack;
+	}
+
+	/**
+	 * Verify the downloaded archives against the published checksums. An
+	 * archive which doesn't match is downloaded again.
+	 */
+	public void setChecksums(ChecksumManifest checksums)
+	{
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Download large archives over up to maxSegments connections. The number
+	 * of connections grows as long as the throughput increases.
+	 */
+	public void setMaxSegments(int maxSegments)
+	{
+		this.maxSegments = Math.max(1, maxSegments);
+	}
+
+	/**
+	 * Hash the archives while they are downloaded, enabled by default. Only
+	 * the benchmarks disable it to measure its cost, the archives are then
+	 * neither verified nor recorded with their checksum.
+	 */
+	void setDigest(boolean digest)
+	{
+		this.digest = digest;
+	}
+
+	/**
+	 * Download from the preferred mirror instead of the codebase. Every
+	 * attempt goes to the mirror which is preferred at that time, so a
+	 * failed or stalled transfer continues at the next one.
+	 */
+	public void setMirrors(Mirrors mirrors)
+	{
+		this.mirrors = mirrors;
+	}
+
+	/**
+	 * Check if the archive stored at destFile has been installed before. If
+	 * archives are not kept, the recorded validators are checked.
+	 */
+	public boolean isInstalled(File destFile)
+	{
+		return destFile.exists() || (!keepArchives && validators.getSHA256(destFile.getName()) != null);
+	}
+
+	/**
+	 * Schedule the download of url to destFile. If destFile already exists it
+	 * is only fetched again if the server reports a modification. The file is
+	 * passed to the unpack thread after it has been downloaded completely.
+	 */
+	public synchronized void schedule(final URL url, final File destFile)
+	{
+		pending.add(executor.submit(new Runnable() {
+			public void run()
+			{
+				downloadFile(url, destFile);
+			}
+		}));
+	}
+
+	/**
+	 * Schedule the update of destFile by the delta at deltaUrl. If there is
+	 * no delta or it doesn't apply to destFile, the full archive is
+	 * downloaded from url instead.
+	 */
+	public synchronized void scheduleDelta(final URL deltaUrl, final URL url, final File destFile)
+	{
+		pending.add(executor.submit(new Runnable() {
+			public void run()
+			{
+				if(!updateFromDelta(deltaUrl, destFile))
+					downloadFile(url, destFile);
+			}
+		}));
+	}
+
+	/**
+	 * Wait for all scheduled downloads to finish
+	 */
+	public void finish()
+	{
+		List<Future<?>> futures;
+		synchronized(this)
+		{
+			futures = new ArrayList<Future<?>>(pending);
+		}
+
+		for(Future<?> future: futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch(ExecutionException ex)
+			{
+				fail(WebRCP.EXIT_DOWNLOAD, "Download Error", "Couldn't download file: " + ex.getCause());
+			}
+		}
+
+		executor.shutdown();
+	}
+
+	/*
+	 * Download a file from an url and store it at destFile and pass it to the
+	 * unpack thread. Interrupted transfers are resumed where they stopped if
+	 * the server supports range requests. The partial file is kept on cancel
+	 * or failure, so the next start can resume it as well.
+	 */
+	private void downloadFile(URL url, File destFile)
+	{
+		if(failed.get())
+			return;
+
+		System.out.println("downloadFile(" + url.toString() + ")");
+		PartialDownload part = new PartialDownload(destFile);
+		Transfer transfer = new Transfer();
+		StartupMetrics.Span span = StartupMetrics.begin("download", destFile.getName());
+		try
+		{
+			downloadFile(url, destFile, part, transfer);
+		}
+		finally
+		{
+			span.end(transfer.received);
+		}
+	}
+
+	/*
+	 * Retry loop of a single download
+	 */
+	private void downloadFile(URL url, File destFile, PartialDownload part, Transfer transfer)
+	{
+		for(int attempt = 1;; ++attempt)
+		{
+			URL source = url;
+			try
+			{
+				if(mirrors != null)
+					source = mirrors.resolve(url);
+
+				switch(transfer(source, destFile, part, transfer))
+				{
+				case CANCELED:
+					part.save();
+					fail(WebRCP.EXIT_CANCELED, "Starting canceled", "Downloading canceled. Exiting...");
+					break;
+				case NOT_MODIFIED:
+					System.out.println("Not modified: " + url);
+					if(destFile.exists())
+						unpackThread.addNextFile(destFile);
+					break;
+				case COMPLETE:
+					complete(destFile, part, transfer);
+					break;
+				}
+				return;
+			}
+			catch(IOException ex)
+			{
+				part.save();
+
+				if(failed.get())
+					return;
+
+				if(mirrors != null)
+					mirrors.demote(source);
+
+				if(attempt >= MAX_ATTEMPTS)
+				{
+					fail(WebRCP.EXIT_DOWNLOAD, "Download Error", "Couldn't download file: " + ex);
+					return;
+				}
+
+				System.out.println("Download of " + source + " interrupted (" + ex + "), retrying...");
+				try
+				{
+					Thread.sleep(RETRY_DELAY * attempt);
+				}
+				catch(InterruptedException ex2)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Move a completely downloaded archive to destFile and record its
+	 * validators once it's extracted. If the content really changed, the
+	 * unpack thread replaces the entries of the previous archive. Streamed
+	 * archives have already been extracted. An archive which doesn't match
+	 * its published checksum is discarded and fails the attempt, so it's
+	 * fetched again.
+	 */
+	private void complete(File destFile, PartialDownload part, Transfer transfer) throws IOException
+	{
+		String archive = destFile.getName();
+		String sha256 = (transfer.sha256 != null || !digest)
+		        ? transfer.sha256
+		        : sha256(part.getPartFile());
+
+		String expected = (checksums != null)
+		        ? checksums.get(archive)
+		        : null;
+		if(expected != null && !expected.equals(sha256))
+		{
+			// Start from scratch on the next attempt
+			transfer.sha256 = null;
+			if(keepArchives)
+				part.restart(null);
+			throw new ChecksumException(archive, expected, sha256);
+		}
+
+		Runnable extracted = recordValidators(archive, transfer.etag, transfer.lastModified, sha256);
+		if(transfer.unpacked)
+		{
+			if(keepArchives)
+				part.complete();
+			else
+				destFile.delete(); // Stale copy from a previous start
+			extracted.run();
+		}
+		else
+		{
+			boolean changed = !destFile.exists() || sha256 == null || !sha256.equals(validators.getSHA256(archive));
+
+			part.complete();
+			unpackThread.addNextFile(destFile, changed, extracted);
+		}
+	}
+
+	/*
+	 * Record the validators of an archive after its content has been
+	 * extracted. Until then the previous validators stay, so an extraction
+	 * interrupted by a crash isn't mistaken for an unchanged archive on the
+	 * next start, which would keep the half-written entries.
+	 */
+	private Runnable recordValidators(final String archive, final String etag, final String lastModified,
+	        final String sha256)
+	{
+		return new Runnable() {
+			public void run()
+			{
+				validators.put(archive, etag, lastModified, sha256);
+				validators.save();
+			}
+		};
+	}
+
+	/*
+	 * Rebuild destFile from its installed version and the delta at deltaUrl
+	 * and pass it to the unpack thread. Returns false if the full archive
+	 * has to be downloaded instead.
+	 */
+	private boolean updateFromDelta(URL deltaUrl, File destFile)
+	{
+		if(failed.get())
+			return true;
+
+		File deltaFile = new File(destFile.getPath() + ".delta");
+		File newFile = new File(destFile.getPath() + ".new");
+		Transfer transfer = new Transfer();
+		StartupMetrics.Span span = StartupMetrics.begin("delta", destFile.getName());
+		try
+		{
+			if(mirrors != null)
+				deltaUrl = mirrors.resolve(deltaUrl);
+
+			URLConnection conn = deltaUrl.openConnection();
+			conn.setReadTimeout(READ_TIMEOUT);
+			if(conn instanceof HttpURLConnection
+			        && ((HttpURLConnection) conn).getResponseCode() != HttpURLConnection.HTTP_OK)
+			{
+				System.out.println("No delta available: " + deltaUrl);
+				((HttpURLConnection) conn).disconnect();
+				return false;
+			}
+
+			System.out.println("Downloading delta: " + deltaUrl);
+			long contentLength = conn.getContentLengthLong();
+			setProgress(transfer, contentLength, 0);
+
+			InputStream in = conn.getInputStream();
+			FileChannel out = FileChannel.open(deltaFile.toPath(), StandardOpenOption.CREATE,
+			        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			TransferInputStream transferIn = new TransferInputStream(in, out, transfer, null);
+			try
+			{
+				transferIn.drain();
+			}
+			finally
+			{
+				in.close();
+				out.close();
+			}
+
+			if(contentLength >= 0 && transferIn.received < contentLength)
+				throw new EOFException("Delta truncated");
+
+			DeltaArchive.apply(destFile, deltaFile, newFile);
+			Files.move(newFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			// The rebuilt archive differs from the published one, its
+			// validators don't apply
+			unpackThread.addNextFile(destFile, true, recordValidators(destFile.getName(), null, null,
+			        sha256(destFile)));
+			return true;
+		}
+		catch(CanceledException ex)
+		{
+			fail(WebRCP.EXIT_CANCELED, "Starting canceled", "Downloading canceled. Exiting...");
+			return true;
+		}
+		catch(IOException ex)
+		{
+			System.out.println("Delta update of " + destFile.getName() + " failed (" + ex
+			        + "), downloading full archive");
+			// Remove the share of the delta from the progress again
+			setProgress(transfer, transfer.total, 0);
+			progress.addDownloadTotal(-transfer.total);
+			return false;
+		}
+		finally
+		{
+			span.end(transfer.received);
+			deltaFile.delete();
+			newFile.delete();
+		}
+	}
+
+	/*
+	 * Transfer the remaining bytes of url into the part file. A conditional
+	 * request is sent if the archive is installed and its validators are
+	 * known. A complete transfer is extracted on the fly in streaming mode,
+	 * otherwise a large one is split into segments if the server supports
+	 * range requests.
+	 */
+	private Result transfer(final URL url, File destFile, final PartialDownload part, final Transfer transfer)
+	        throws IOException
+	{
+		long offset = keepArchives
+		        ? part.getResumeOffset()
+		        : 0;
+		URLConnection conn = url.openConnection();
+		conn.setReadTimeout(READ_TIMEOUT);
+		HttpURLConnection http = (conn instanceof HttpURLConnection)
+		        ? (HttpURLConnection) conn
+		        : null;
+
+		// ETags are specific to a server. On another mirror the download is
+		// resumed by the Last-Modified date, without it only if the published
+		// checksum verifies the combined file.
+		String ifRange = (offset > 0)
+		        ? part.getValidator(url)
+		        : null;
+		if(ifRange == null && !hasChecksum(destFile.getName()))
+			offset = 0;
+
+		if(http != null && offset > 0)
+		{
+			http.setRequestProperty("Range", "bytes=" + offset + "-");
+			if(ifRange != null)
+				http.setRequestProperty("If-Range", ifRange);
+
+			if(http.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE)
+			{
+				// Partial file is not usable anymore -> start from scratch
+				http.disconnect();
+				part.restart(null);
+				return transfer(url, destFile, part, transfer);
+			}
+		}
+		else if(http != null && (destFile.exists() || !keepArchives) && matchesChecksum(destFile.getName()))
+		{
+			String etag = validators.getETag(destFile.getName());
+			String lastModified = validators.getLastModified(destFile.getName());
+			if(etag != null)
+				http.setRequestProperty("If-None-Match", etag);
+			if(lastModified != null)
+				http.setRequestProperty("If-Modified-Since", lastModified);
+
+			if((etag != null || lastModified != null)
+			        && http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+			{
+				http.disconnect();
+				return Result.NOT_MODIFIED;
+			}
+		}
+
+		InputStream in = conn.getInputStream();
+		transfer.etag = conn.getHeaderField("ETag");
+		transfer.lastModified = conn.getHeaderField("Last-Modified");
+
+		boolean resumed =
+		        offset > 0 && http != null && http.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+		                && String.valueOf(http.getHeaderField("Content-Range")).startsWith("bytes " + offset + "-");
+		if(resumed)
+		{
+			System.out.println("Resuming download of " + url + " at byte " + offset);
+			part.setOrigin(url, conn);
+		}
+		else
+		{
+			offset = 0;
+			if(keepArchives)
+				part.restart(url, conn);
+		}
+
+		long contentLength = conn.getContentLengthLong();
+		setProgress(transfer, (contentLength < 0)
+		        ? -1
+		        : offset + contentLength, offset);
+
+		// Only complete archives can be streamed, a resumed one is extracted
+		// after the download
+		boolean stream = streamUnpack && offset == 0;
+		boolean segmented = !stream && keepArchives && maxSegments > 1 && http != null
+		        && contentLength >= SEGMENT_THRESHOLD && part.getValidator() != null
+		        && "bytes".equals(conn.getHeaderField("Accept-Ranges"));
+
+		// A preallocated part file is cut back to the bytes received without
+		// gaps before the remaining ones are appended
+		if(resumed && !segmented)
+			part.truncate();
+
+		// Segments arrive out of order, they are hashed after the download. A
+		// resumed download continues the digest of the bytes it already has.
+		FileChannel out = (keepArchives && !segmented)
+		        ? FileChannel.open(part.getPartFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                resumed
+		                        ? StandardOpenOption.APPEND
+		                        : StandardOpenOption.TRUNCATE_EXISTING)
+		        : null;
+		TransferInputStream transferIn = new TransferInputStream(in, out, transfer, (digest && !segmented)
+		        ? resumeDigest(part, offset, transfer)
+		        : null);
+		try
+		{
+			if(stream)
+			{
+				System.out.println("Unpacking while downloading: " + url);
+				unpackThread.unpackStream(transferIn, destFile.getName(), true);
+				transfer.unpacked = true;
+			}
+
+			if(segmented)
+			{
+				SegmentedDownload.Source source = new SegmentedDownload.Source() {
+					public InputStream open(long position) throws IOException
+					{
+						return openRange(url, position, part.getValidator(), transfer);
+					}
+				};
+				new SegmentedDownload(part, offset, offset + contentLength, maxSegments, source)
+				        .run(transferIn);
+				return Result.COMPLETE;
+			}
+
+			transferIn.drain();
+		}
+		catch(CanceledException ex)
+		{
+			return Result.CANCELED;
+		}
+		finally
+		{
+			in.close();
+			if(out != null)
+				out.close();
+			transfer.digest = transferIn.digest;
+			transfer.digested = offset + transferIn.received;
+		}
+
+		if(contentLength >= 0 && transferIn.received < contentLength)
+			throw new EOFException("Connection closed after " + (offset + transferIn.received) + " of "
+			        + (offset + contentLength) + " bytes");
+
+		if(transferIn.digest != null)
+			transfer.sha256 = toHex(transferIn.digest.digest());
+
+		return Result.COMPLETE;
+	}
+
+	/*
+	 * Open an additional segment of a download, null if the server doesn't
+	 * return the requested range of the same file
+	 */
+	private InputStream openRange(URL url, long position, String validator, Transfer transfer) throws IOException
+	{
+		HttpURLConnection http = (HttpURLConnection) url.openConnection();
+		http.setReadTimeout(READ_TIMEOUT);
+		http.setRequestProperty("Range", "bytes=" + position + "-");
+		http.setRequestProperty("If-Range", validator);
+
+		if(http.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+		        || !String.valueOf(http.getHeaderField("Content-Range")).startsWith("bytes " + position + "-"))
+		{
+			http.disconnect();
+			return null;
+		}
+		return new TransferInputStream(http.getInputStream(), null, transfer, null);
+	}
+
+	private boolean hasChecksum(String archive)
+	{
+		return checksums != null && checksums.get(archive) != null;
+	}
+
+	/*
+	 * Check if the installed archive matches its published checksum. If it
+	 * doesn't, a conditional request must not confirm it.
+	 */
+	private boolean matchesChecksum(String archive)
+	{
+		String expected = (checksums != null)
+		        ? checksums.get(archive)
+		        : null;
+		return expected == null || expected.equals(validators.getSHA256(archive));
+	}
+
+	/*
+	 * Update the share of a single download in the startup progress
+	 */
+	private void setProgress(Transfer transfer, long total, long downloaded)
+	{
+		synchronized(transfer)
+		{
+			if(total > 0 && transfer.total <= 0)
+			{
+				transfer.total = total;
+				progress.addDownloadTotal(total);
+			}
+
+			progress.addDownloaded(downloaded - transfer.downloaded);
+			transfer.downloaded = downloaded;
+		}
+	}
+
+	/*
+	 * Digest of the first offset bytes of the part file. The digest of the
+	 * interrupted attempt is continued if it covers exactly these bytes,
+	 * after a restart they are read from the part file once.
+	 */
+	private static MessageDigest resumeDigest(PartialDownload part, long offset, Transfer transfer)
+	        throws IOException
+	{
+		if(offset == 0)
+			return createDigest();
+		if(transfer.digest != null && transfer.digested == offset)
+			return transfer.digest;
+
+		MessageDigest digest = createDigest();
+		InputStream in = new FileInputStream(part.getPartFile());
+		try
+		{
+			byte[] buffer = new byte[32768];
+			long remaining = offset;
+			int size;
+			while(remaining > 0 && (size = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0)
+			{
+				digest.update(buffer, 0, size);
+				remaining -= size;
+			}
+			if(remaining > 0)
+				throw new EOFException("Partial download shorter than " + offset + " bytes");
+		}
+		finally
+		{
+			in.close();
+		}
+		return digest;
+	}
+
+	/*
+	 * Compute the hex encoded SHA-256 hash of a file
+	 */
+	private static String sha256(File file) throws IOException
+	{
+		MessageDigest digest = createDigest();
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[32768];
+			int size;
+			while((size = in.read(buffer)) > 0)
+				digest.update(buffer, 0, size);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return toHex(digest.digest());
+	}
+
+	static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException ex)
+		{
+			// This shouldn't happen, every JRE supports SHA-256.
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+		for(byte b: bytes)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+
+	/*
+	 * Signals a canceled transfer
+	 */
+	private static class CanceledException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * Signals a downloaded archive which doesn't match its published checksum
+	 */
+	private static class ChecksumException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		ChecksumException(String archive, String expected, String actual)
+		{
+			super("Checksum mismatch of " + archive + ": expected " + expected + ", received " + actual);
+		}
+	}
+
+	/*
+	 * Stream of a running transfer. Every byte read is written to the part
+	 * file (if archives are kept), added to the hash and counted in the
+	 * progress, no matter if the stream is consumed by the extraction or just
+	 * drained.
+	 */
+	private class TransferInputStream extends FilterInputStream
+	{
+		private final FileChannel   out;
+
+		private final Transfer      transfer;
+
+		final MessageDigest         digest;
+
+		long                        received;
+
+		TransferInputStream(InputStream in, FileChannel out, Transfer transfer, MessageDigest digest)
+		{
+			super(in);
+			this.out = out;
+			this.transfer = transfer;
+			this.digest = digest;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) > 0)
+			        ? b[0] & 0xff
+			        : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(progress.isCanceled() || failed.get())
+				throw new CanceledException();
+
+			int size = in.read(b, off, len);
+			if(size > 0)
+			{
+				if(out != null)
+				{
+					ByteBuffer bytes = ByteBuffer.wrap(b, off, size);
+					while(bytes.hasRemaining())
+						out.write(bytes);
+				}
+				if(digest != null)
+					digest.update(b, off, size);
+				received += size;
+				synchronized(transfer)
+				{
+					transfer.received += size;
+					setProgress(transfer, transfer.total, transfer.downloaded + size);
+				}
+			}
+			return size;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			// Skipped bytes must pass through the part file and the hash too
+			byte[] buffer = new byte[(int) Math.min(n, 32768)];
+			int size = read(buffer, 0, buffer.length);
+			return Math.max(size, 0);
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		void drain() throws IOException
+		{
+			byte[] buffer = new byte[32768];
+			while(read(buffer, 0, buffer.length) >= 0)
+				;
+		}
+	}
+
+	/*
+	 * Report only the first failure, the remaining downloads are stopped.
+	 */
+	private void fail(int exitCode, String title, String message)
+	{
+		if(failed.compareAndSet(false, true))
+			WebRCP.handleError(exitCode, title, message);
+	}
+}
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manifest of the extracted entries. For every path the archive it came from,
+ * its size and its CRC32 are recorded, as stored in the zip directory. An
+ * update only writes entries whose CRC or size changed and removes entries
+ * which disappeared from their archive. The manifest is stored inside the
+ * unpack directory, one tab separated line per entry. It's replaced on save,
+ * never written into, so it may be shared with another installation by a
+ * hard link.
+ */
+class ExtractionManifest
+{
+	/**
+	 * Name of the manifest file inside the unpack directory
+	 */
+	public static final String FILE_NAME = ".webrcp.manifest";
+
+	/*
+	 * Size recorded for directories
+	 */
+	private static final long  DIRECTORY = -1;
+
+	private static class Entry
+	{
+		final String archive;
+		final long   size, crc;
+
+		Entry(String archive, long size, long crc)
+		{
+			this.archive = archive;
+			this.size = size;
+			this.crc = crc;
+		}
+	}
+
+	private final File               file;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Constructor. Loads the manifest of destDir if it exists.
+	 */
+	public ExtractionManifest(File destDir)
+	{
+		file = new File(destDir, FILE_NAME);
+		load();
+	}
+
+	/**
+	 * Check if the manifest records no entries
+	 */
+	public boolean isEmpty()
+	{
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Forget all entries
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Check if an entry with the given path is recorded
+	 */
+	public boolean contains(String path)
+	{
+		return entries.containsKey(path);
+	}
+
+	/**
+	 * Check if the recorded entry has the given size and CRC32. Unknown
+	 * values (-1) never match.
+	 */
+	public boolean matches(String path, long size, long crc)
+	{
+		Entry entry = entries.get(path);
+		return entry != null && size >= 0 && crc >= 0 && entry.size == size && entry.crc == crc;
+	}
+
+	/**
+	 * Record a file entry
+	 */
+	public void putFile(String path, String archive, long size, long crc)
+	{
+		entries.put(path, new Entry(archive, size, crc));
+	}
+
+	/**
+	 * Record a directory entry
+	 */
+	public void putDirectory(String path, String archive)
+	{
+		entries.put(path, new Entry(archive, DIRECTORY, 0));
+	}
+
+	/**
+	 * Remove the entries of archive which are not contained in names anymore.
+	 * Returns the removed paths, directories after the files they contain.
+	 */
+	public List<String> removeDropped(String archive, Set<String> names)
+	{
+		List<String> dropped = new ArrayList<String>();
+		for(Map.Entry<String, Entry> entry: entries.entrySet())
+		{
+			if(entry.getValue().archive.equals(archive) && !names.contains(entry.getKey()))
+				dropped.add(entry.getKey());
+		}
+		return remove(dropped);
+	}
+
+	/**
+	 * Remove the entries of all archives which are not contained in archives.
+	 * Returns the removed paths, directories after the files they contain.
+	 */
+	public List<String> retainArchives(Collection<String> archives)
+	{
+		List<String> dropped = new ArrayList<String>();
+		for(Map.Entry<String, Entry> entry: entries.entrySet())
+		{
+			if(!archives.contains(entry.getValue().archive))
+				dropped.add(entry.getKey());
+		}
+		return remove(dropped);
+	}
+
+	/**
+	 * Store the manifest
+	 */
+	public synchronized void save()
+	{
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try
+		{
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+			try
+			{
+				for(Map.Entry<String, Entry> entry: entries.entrySet())
+				{
+					Entry value = entry.getValue();
+					out.write(value.archive + '\t' + value.size + '\t' + Long.toHexString(value.crc) + '\t'
+					        + entry.getKey() + '\n');
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			try
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				        StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch(AtomicMoveNotSupportedException ex)
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch(IOException ex)
+		{
+			// Not too bad. The next update rewrites all entries.
+			tmpFile.delete();
+			file.delete();
+		}
+	}
+
+	/*
+	 * Remove paths from the manifest. The paths are sorted in reverse order,
+	 * so a directory is deleted after its content.
+	 */
+	private List<String> remove(List<String> paths)
+	{
+		for(String path: paths)
+			entries.remove(path);
+
+		Collections.sort(paths, new Comparator<String>() {
+			public int compare(String a, String b)
+			{
+				return b.compareTo(a);
+			}
+		});
+		return paths;
+	}
+
+	/*
+	 * Load the manifest. A broken manifest is ignored completely.
+	 */
+	private void load()
+	{
+		if(!file.exists())
+			return;
+
+		try
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{
+				String line;
+				while((line = in.readLine()) != null)
+				{
+					String[] field = line.split("\t", 4);
+					entries.put(field[3], new Entry(field[0], Long.parseLong(field[1]), Long.parseLong(field[2], 16)));
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException ex)
+		{
+			entries.clear();
+		}
+		catch(RuntimeException ex)
+		{
+			entries.clear();
+		}
+	}
+}
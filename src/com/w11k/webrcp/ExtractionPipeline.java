@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hand-off between the producers of work (e.g. the download threads) and the
+ * consumers which extract it. The pipeline is bounded: if the consumers fall
+ * behind, put blocks, so the downloads can't run unboundedly ahead of slow
+ * disks. Closing the pipeline enqueues a poison pill behind the remaining
+ * work, every consumer receives null from take after the work is done.
+ */
+class ExtractionPipeline<T>
+{
+	/*
+	 * Poison pill which terminates the consumers
+	 */
+	private static final Object         END = new Object();
+
+	private final BlockingQueue<Object> queue;
+
+	private volatile boolean            closed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity number of items which may wait for a consumer
+	 */
+	public ExtractionPipeline(int capacity)
+	{
+		queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Add work to the pipeline. Blocks while the pipeline is full. Producers
+	 * are serialized, so no work can be enqueued behind the poison pill.
+	 *
+	 * @throws IllegalStateException if the pipeline is already closed
+	 */
+	public synchronized void put(T item) throws InterruptedException
+	{
+		if(item == null)
+			throw new NullPointerException();
+		if(closed)
+			throw new IllegalStateException("Pipeline closed");
+
+		queue.put(item);
+	}
+
+	/**
+	 * Take the next item. Blocks until work is available. Returns null if the
+	 * pipeline has been closed and all work has been taken.
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() throws InterruptedException
+	{
+		Object item = queue.take();
+		if(item == END)
+		{
+			// Leave the pill for the remaining consumers
+			queue.offer(END);
+			return null;
+		}
+		return (T) item;
+	}
+
+	/**
+	 * Close the pipeline. Work added before is still processed. Blocks while
+	 * the pipeline is full.
+	 */
+	public synchronized void close() throws InterruptedException
+	{
+		if(closed)
+			return;
+
+		closed = true;
+		queue.put(END);
+	}
+
+	/**
+	 * Check if the pipeline has been closed
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Side-by-side installations. A new version is extracted into its own
+ * directory <code>versions/&lt;id&gt;</code> while the installed one stays
+ * untouched. It is activated by atomically replacing the pointer file
+ * <code>current</code>, so an interrupted update never breaks the installed
+ * version. An update starts with the content of the installed version, so
+ * only the changed entries are written, but never into the installed
+ * version itself. Directories of inactive versions are moved into the trash.
+ * An installation in <code>unpacked</code> (used by older launchers) stays
+ * active until it is replaced.
+ */
+class InstallVersions
+{
+	private static final String POINTER   = "current";
+	private static final String VERSIONS  = "versions";
+	private static final String LEGACY    = "unpacked";
+
+	/*
+	 * Directory which is carried over into a new version, it contains the
+	 * configuration
+	 */
+	private static final String WORKSPACE = "workspace";
+
+	private final File          tempDir, pointerFile, versionsDir;
+
+	private final Trash         trash;
+
+	private boolean             linksSupported = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tempDir directory which contains the installations
+	 * @param trash receives the directories of inactive versions
+	 */
+	public InstallVersions(File tempDir, Trash trash)
+	{
+		this.tempDir = tempDir;
+		this.trash = trash;
+		pointerFile = new File(tempDir, POINTER);
+		versionsDir = new File(tempDir, VERSIONS);
+	}
+
+	/**
+	 * Directory of the active version. It doesn't exist if nothing has been
+	 * installed yet.
+	 */
+	public File getCurrent()
+	{
+		String path = null;
+		try
+		{
+			BufferedReader in = new BufferedReader(new FileReader(pointerFile));
+			path = in.readLine();
+			in.close();
+		}
+		catch(IOException ex)
+		{
+			// No error. Nothing installed or installed by an older launcher.
+		}
+
+		if(path == null || path.length() == 0)
+			return new File(tempDir, LEGACY);
+		return new File(tempDir, path);
+	}
+
+	/**
+	 * Create an empty directory for a new version. It isn't used before
+	 * activate is called.
+	 */
+	public File createNext(String version) throws IOException
+	{
+		return createNext(version, null);
+	}
+
+	/**
+	 * Create a directory for a new version which contains the content of
+	 * seed (except the workspace, which is moved over by activate). The
+	 * files are hard linked if possible, which is safe as long as the new
+	 * version replaces files instead of writing into them, as the
+	 * extraction does. If seed is null or doesn't exist, the directory is
+	 * empty.
+	 */
+	public File createNext(String version, File seed) throws IOException
+	{
+		String id = version.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Long.toString(System.currentTimeMillis(), 36);
+		File dir = new File(versionsDir, id);
+		dir.mkdirs();
+		if(!dir.isDirectory())
+			throw new IOException("Couldn't create directory " + dir);
+
+		if(seed != null && seed.isDirectory())
+		{
+			long start = System.currentTimeMillis();
+			copyContent(seed.toPath(), dir.toPath());
+			System.out.println("Copied " + seed + " into " + dir + " in " + (System.currentTimeMillis() - start)
+			        + " ms");
+		}
+		return dir;
+	}
+
+	/**
+	 * Make dir the active version. The workspace of the previously active
+	 * version is moved over.
+	 */
+	public void activate(File dir) throws IOException
+	{
+		File previous = getCurrent();
+		if(previous.equals(dir))
+			return;
+
+		File workspace = new File(previous, WORKSPACE);
+		if(workspace.exists())
+			moveContent(workspace, new File(dir, WORKSPACE));
+
+		// Write the pointer next to its destination and rename it, a crash
+		// leaves either the old or the new pointer
+		File tmpFile = new File(tempDir, POINTER + ".tmp");
+		Writer out = new FileWriter(tmpFile);
+		try
+		{
+			out.write(VERSIONS + "/" + dir.getName());
+		}
+		finally
+		{
+			out.close();
+		}
+
+		try
+		{
+			Files.move(tmpFile.toPath(), pointerFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+			        StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException ex)
+		{
+			Files.move(tmpFile.toPath(), pointerFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		System.out.println("Activated " + dir);
+	}
+
+	/**
+	 * Remove the directories of all inactive versions, e.g. the one replaced
+	 * by an update or an incomplete one left by an interrupted update. The
+	 * directories are only moved into the trash, which is emptied in the
+	 * background, so the startup doesn't wait for the deletion. A directory
+	 * which can't be moved (e.g. a file is still locked) is tried again on
+	 * the next start.
+	 */
+	public void removeInactive()
+	{
+		File current = getCurrent();
+		List<File> inactive = new ArrayList<File>();
+
+		File legacy = new File(tempDir, LEGACY);
+		if(legacy.exists() && !legacy.equals(current))
+			inactive.add(legacy);
+
+		File[] versions = versionsDir.listFiles();
+		if(versions != null)
+		{
+			for(File version: versions)
+			{
+				if(!version.equals(current))
+					inactive.add(version);
+			}
+		}
+
+		for(File dir: inactive)
+		{
+			try
+			{
+				trash.discard(dir);
+				System.out.println("Moved inactive version " + dir + " into the trash");
+			}
+			catch(IOException ex)
+			{
+				System.out.println("Couldn't remove inactive version " + dir + ": " + ex);
+			}
+		}
+
+		trash.empty();
+	}
+
+	/*
+	 * Link or copy the files below from into the existing directory to
+	 */
+	private void copyContent(final Path from, final Path to) throws IOException
+	{
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				if(dir.equals(from))
+					return FileVisitResult.CONTINUE;
+				if(dir.getParent().equals(from) && dir.getFileName().toString().equals(WORKSPACE))
+					return FileVisitResult.SKIP_SUBTREE;
+
+				Files.createDirectory(to.resolve(from.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Path target = to.resolve(from.relativize(file));
+				if(linksSupported && attrs.isRegularFile())
+				{
+					try
+					{
+						Files.createLink(target, file);
+						return FileVisitResult.CONTINUE;
+					}
+					catch(UnsupportedOperationException ex)
+					{
+						linksSupported = false;
+					}
+					catch(IOException ex)
+					{
+						// E.g. not supported by the file system, copy instead
+					}
+				}
+
+				Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/*
+	 * Move the content of from into to. Directories are renamed if possible,
+	 * files of from win over existing files.
+	 */
+	private void moveContent(File from, File to) throws IOException
+	{
+		if(!to.exists())
+		{
+			to.getParentFile().mkdirs();
+			Files.move(from.toPath(), to.toPath());
+			return;
+		}
+
+		if(from.isDirectory() && to.isDirectory())
+		{
+			File[] file = from.listFiles();
+			if(file != null)
+			{
+				for(int i = 0; i < file.length; ++i)
+					moveContent(file[i], new File(to, file[i].getName()));
+			}
+			return;
+		}
+
+		trash.discard(to);
+		Files.move(from.toPath(), to.toPath());
+	}
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Alternative base URLs serving the same archives as the codebase, e.g. a
+ * server in every branch office. The mirrors are ranked by a short probe, so
+ * downloads go to the fastest one. A mirror which fails or stalls during a
+ * download is moved to the end of the list, the next attempt continues at
+ * the following one.
+ */
+class Mirrors
+{
+	/*
+	 * Bytes fetched from every mirror by the probe
+	 */
+	private static final int   PROBE_SIZE = 256 * 1024;
+
+	private final String       primary;
+
+	private final List<String> bases      = new ArrayList<String>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param primary base URL of the codebase, the URLs passed to resolve
+	 *            start with it
+	 * @param mirrors alternative base URLs, in order of preference
+	 */
+	public Mirrors(String primary, String[] mirrors)
+	{
+		this.primary = primary;
+		bases.add(primary);
+		for(String mirror: mirrors)
+		{
+			if(mirror.length() == 0)
+				continue;
+
+			String base = mirror.endsWith("/")
+			        ? mirror
+			        : mirror + "/";
+			if(!bases.contains(base))
+				bases.add(base);
+		}
+	}
+
+	/**
+	 * Rank the base URLs by the time it takes to fetch the start of resource
+	 * (relative to the base URL), which covers latency and throughput. All
+	 * base URLs are probed concurrently, those which don't answer within
+	 * timeout (milliseconds) are ranked last.
+	 */
+	public void probe(final String resource, long timeout)
+	{
+		final Map<String, Long> times = new HashMap<String, Long>();
+		List<Thread> probes = new ArrayList<Thread>();
+		for(final String base: getBases())
+		{
+			Thread probe = new Thread("WebRCP-Probe") {
+				public void run()
+				{
+					long time = probe(base + resource);
+					synchronized(times)
+					{
+						times.put(base, time);
+					}
+				}
+			};
+			probe.setDaemon(true);
+			probe.start();
+			probes.add(probe);
+		}
+
+		long end = System.currentTimeMillis() + timeout;
+		try
+		{
+			for(Thread probe: probes)
+				probe.join(Math.max(1, end - System.currentTimeMillis()));
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized(times)
+		{
+			for(String base: getBases())
+			{
+				Long time = times.get(base);
+				System.out.println("Mirror " + base + ": " + ((time == null || time == Long.MAX_VALUE)
+				        ? "unavailable"
+				        : time + " ms"));
+			}
+
+			synchronized(this)
+			{
+				// Stable sort, equally fast mirrors keep their configured order
+				Collections.sort(bases, new Comparator<String>() {
+					public int compare(String a, String b)
+					{
+						return Long.compare(timeOf(a), timeOf(b));
+					}
+
+					private long timeOf(String base)
+					{
+						Long time = times.get(base);
+						return (time != null)
+						        ? time
+						        : Long.MAX_VALUE;
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Map url from the codebase to the currently preferred base URL
+	 */
+	public synchronized URL resolve(URL url) throws MalformedURLException
+	{
+		String spec = url.toString();
+		if(!spec.startsWith(primary) || bases.get(0).equals(primary))
+			return url;
+		return new URL(bases.get(0) + spec.substring(primary.length()));
+	}
+
+	/**
+	 * Rank the base URL of url last, because a download from it failed
+	 */
+	public synchronized void demote(URL url)
+	{
+		String spec = url.toString();
+		for(String base: bases)
+		{
+			if(spec.startsWith(base))
+			{
+				if(bases.size() > 1)
+				{
+					System.out.println("Mirror " + base + " failed, switching to " + bases.get(
+					        (bases.get(0).equals(base))
+					                ? 1
+					                : 0));
+					bases.remove(base);
+					bases.add(base);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Base URLs, the preferred one first
+	 */
+	public synchronized List<String> getBases()
+	{
+		return new ArrayList<String>(bases);
+	}
+
+	/*
+	 * Time to fetch the start of the resource at spec in milliseconds,
+	 * Long.MAX_VALUE if it fails
+	 */
+	private static long probe(String spec)
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			URLConnection conn = new URL(spec).openConnection();
+			conn.setConnectTimeout(5000);
+			conn.setReadTimeout(5000);
+			conn.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+			if(conn instanceof HttpURLConnection)
+			{
+				int code = ((HttpURLConnection) conn).getResponseCode();
+				if(code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL)
+					return Long.MAX_VALUE;
+			}
+
+			InputStream in = conn.getInputStream();
+			try
+			{
+				byte[] buffer = new byte[32768];
+				int total = 0, size;
+				while(total < PROBE_SIZE && (size = in.read(buffer)) > 0)
+					total += size;
+			}
+			finally
+			{
+				in.close();
+			}
+			return System.currentTimeMillis() - start;
+		}
+		catch(IOException ex)
+		{
+			return Long.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * State of an interrupted download. The received bytes are kept in
+ * <code>&lt;name&gt;.part</code>, the sidecar file
+ * <code>&lt;name&gt;.part.state</code> records the validator (ETag or
+ * Last-Modified) of the server response and the byte offset reached. A
+ * download can only be resumed if a validator is known, otherwise the server
+ * couldn't tell us whether the remaining bytes still belong to the same file.
+ *
+ * ETags are specific to a server, mirrors serving the same file send
+ * different ones. The URL the bytes were received from and the
+ * Last-Modified date are recorded as well, so a download continued at
+ * another mirror is validated by the date instead.
+ *
+ * A sequentially written part file ends at the last byte received, a
+ * preallocated one already has the length of the complete file. For the
+ * latter the end of the bytes received without gaps is recorded as well,
+ * the length of the file would still claim the whole file after the
+ * process was killed.
+ */
+class PartialDownload
+{
+	private static final String KEY_VALIDATOR     = "validator";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_SOURCE        = "source";
+	private static final String KEY_OFFSET        = "offset";
+	private static final String KEY_CONTIGUOUS    = "contiguousEnd";
+
+	private final File          destFile, partFile, stateFile;
+
+	private String              validator, lastModified, source;
+
+	/*
+	 * End of the bytes received without gaps in a preallocated part file, -1
+	 * if the part file is written sequentially
+	 */
+	private long                contiguousEnd = -1;
+
+	/**
+	 * Constructor. Loads the state of a previous download of destFile if
+	 * there is one.
+	 */
+	public PartialDownload(File destFile)
+	{
+		this.destFile = destFile;
+		partFile = new File(destFile.getPath() + ".part");
+		stateFile = new File(destFile.getPath() + ".part.state");
+		load();
+	}
+
+	/**
+	 * File which receives the downloaded bytes
+	 */
+	public File getPartFile()
+	{
+		return partFile;
+	}
+
+	/**
+	 * Validator of the partial content or null if unknown
+	 */
+	public String getValidator()
+	{
+		return validator;
+	}
+
+	/**
+	 * Validator for resuming the download from url with If-Range. On the
+	 * server the partial content was received from it's the recorded
+	 * validator, on another one the Last-Modified date. Null if the partial
+	 * content can't be validated by the server at url.
+	 */
+	public String getValidator(URL url)
+	{
+		if(source == null || source.equals(url.toString()))
+			return validator;
+		return lastModified;
+	}
+
+	/**
+	 * Offset at which the download can be resumed, 0 if it has to start from
+	 * the beginning.
+	 */
+	public long getResumeOffset()
+	{
+		if(validator == null || !partFile.exists())
+			return 0;
+		if(contiguousEnd >= 0)
+			return Math.min(contiguousEnd, partFile.length());
+		return partFile.length();
+	}
+
+	/**
+	 * Record the end of the bytes received without gaps in the preallocated
+	 * part file
+	 */
+	public void setContiguousEnd(long contiguousEnd)
+	{
+		if(this.contiguousEnd == contiguousEnd)
+			return;
+		this.contiguousEnd = contiguousEnd;
+		save();
+	}
+
+	/**
+	 * Truncate the part file to the resume offset, it is continued by
+	 * appending the remaining bytes
+	 */
+	public void truncate() throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+		try
+		{
+			raf.setLength(getResumeOffset());
+		}
+		finally
+		{
+			raf.close();
+		}
+		setContiguousEnd(-1);
+	}
+
+	/**
+	 * Start from the beginning with a new validator (may be null)
+	 */
+	public void restart(String validator) throws IOException
+	{
+		this.validator = validator;
+		lastModified = null;
+		source = null;
+		contiguousEnd = -1;
+		new FileOutputStream(partFile).close();
+		save();
+	}
+
+	/**
+	 * Start from the beginning with the content of the response of conn to
+	 * a request of url
+	 */
+	public void restart(URL url, URLConnection conn) throws IOException
+	{
+		restart(validatorOf(conn));
+		setOrigin(url, conn);
+	}
+
+	/**
+	 * Record the response of conn to a request of url as origin of the
+	 * partial content, after the download has been resumed from it
+	 */
+	public void setOrigin(URL url, URLConnection conn)
+	{
+		String validator = validatorOf(conn);
+		if(validator == null)
+			return;
+
+		this.validator = validator;
+		lastModified = conn.getHeaderField("Last-Modified");
+		source = url.toString();
+		save();
+	}
+
+	/**
+	 * Record the resume offset in the sidecar file
+	 */
+	public void save()
+	{
+		if(validator == null)
+		{
+			stateFile.delete();
+			return;
+		}
+
+		Properties state = new Properties();
+		state.setProperty(KEY_VALIDATOR, validator);
+		if(lastModified != null)
+			state.setProperty(KEY_LAST_MODIFIED, lastModified);
+		if(source != null)
+			state.setProperty(KEY_SOURCE, source);
+		state.setProperty(KEY_OFFSET, Long.toString(getResumeOffset()));
+		if(contiguousEnd >= 0)
+			state.setProperty(KEY_CONTIGUOUS, Long.toString(contiguousEnd));
+		try
+		{
+			OutputStream out = new FileOutputStream(stateFile);
+			state.store(out, "WebRCP partial download of " + destFile.getName());
+			out.close();
+		}
+		catch(IOException ex)
+		{
+			// Not too bad. The download just can't be resumed.
+			stateFile.delete();
+		}
+	}
+
+	/**
+	 * Move the completely downloaded file to its destination
+	 */
+	public void complete() throws IOException
+	{
+		Files.move(partFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		stateFile.delete();
+	}
+
+	/**
+	 * Determine the validator of a response, the ETag is preferred
+	 */
+	public static String validatorOf(URLConnection conn)
+	{
+		String etag = conn.getHeaderField("ETag");
+		if(etag != null && !etag.startsWith("W/"))
+			return etag;
+		return conn.getHeaderField("Last-Modified");
+	}
+
+	/*
+	 * Load state of a previous download. The part file must contain at least
+	 * the recorded number of bytes, otherwise the state is discarded.
+	 */
+	private void load()
+	{
+		if(!stateFile.exists() || !partFile.exists())
+			return;
+
+		Properties state = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(stateFile);
+			state.load(in);
+			in.close();
+
+			long offset = Long.parseLong(state.getProperty(KEY_OFFSET, "-1"));
+			long contiguous = Long.parseLong(state.getProperty(KEY_CONTIGUOUS, "-1"));
+			if(offset >= 0 && offset <= partFile.length())
+			{
+				validator = state.getProperty(KEY_VALIDATOR);
+				lastModified = state.getProperty(KEY_LAST_MODIFIED);
+				source = state.getProperty(KEY_SOURCE);
+				contiguousEnd = contiguous;
+			}
+		}
+		catch(IOException ex)
+		{
+			// No error. Download starts from the beginning.
+		}
+		catch(NumberFormatException ex)
+		{
+			// No error. Download starts from the beginning.
+		}
+	}
+}
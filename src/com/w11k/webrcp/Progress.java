@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the whole startup. Downloads and extraction only add to
+ * counters, which is cheap enough for every buffer read. The counters are
+ * combined into one weighted fraction with throughput and estimated remaining
+ * time by a ticker thread, which notifies the listeners at a fixed rate.
+ */
+class Progress
+{
+	/**
+	 * Phases of the startup and their weight in the overall progress. The
+	 * phases overlap, the current phase is the first one not completed.
+	 */
+	public enum Phase
+	{
+		DOWNLOAD("Downloading", 60), EXTRACT("Extracting", 35), LAUNCH("Starting", 5);
+
+		private final String text;
+		private final int    weight;
+
+		private Phase(String text, int weight)
+		{
+			this.text = text;
+			this.weight = weight;
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+	}
+
+	/**
+	 * Receives the progress. Called by the ticker thread.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called periodically while the progress is running
+		 */
+		void progressChanged(Progress progress);
+
+		/**
+		 * Called once after the last update
+		 */
+		void progressClosed(Progress progress);
+	}
+
+	/*
+	 * Milliseconds between two notifications of the listeners
+	 */
+	private static final long           UPDATE_INTERVAL = 200;
+
+	/*
+	 * Weight of the latest measurement in the smoothed rates
+	 */
+	private static final double         SMOOTHING       = 0.2;
+
+	private final AtomicLong            downloadTotal   = new AtomicLong();
+	private final AtomicLong            downloaded      = new AtomicLong();
+	private final AtomicLong            extractTotal    = new AtomicLong();
+	private final AtomicLong            extracted       = new AtomicLong();
+	private final AtomicLong            entries         = new AtomicLong();
+
+	private final boolean[]             completed       = new boolean[Phase.values().length];
+
+	private final List<Listener>        listeners       = new CopyOnWriteArrayList<Listener>();
+
+	private volatile boolean            canceled;
+
+	private ScheduledExecutorService    ticker;
+
+	/*
+	 * Values computed by the ticker
+	 */
+	private volatile double             fraction, bytesPerSecond;
+	private volatile long               remainingMillis = -1;
+	private double                      fractionPerSecond;
+	private long                        lastTick, lastBytes;
+
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Start notifying the listeners
+	 */
+	public synchronized void start()
+	{
+		if(ticker != null)
+			return;
+
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "WebRCP-Progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			public void run()
+			{
+				tick();
+				for(Listener listener: listeners)
+					listener.progressChanged(Progress.this);
+			}
+		}, 0, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop notifying the listeners after a final update
+	 */
+	public void close()
+	{
+		synchronized(this)
+		{
+			if(ticker != null)
+			{
+				ticker.shutdown();
+				try
+				{
+					ticker.awaitTermination(UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		tick();
+		for(Listener listener: listeners)
+			listener.progressClosed(this);
+	}
+
+	public void addDownloadTotal(long bytes)
+	{
+		downloadTotal.addAndGet(bytes);
+	}
+
+	public void addDownloaded(long bytes)
+	{
+		downloaded.addAndGet(bytes);
+	}
+
+	public void addExtractTotal(long bytes)
+	{
+		extractTotal.addAndGet(bytes);
+	}
+
+	/**
+	 * Count an extracted (or unchanged and therefore skipped) entry
+	 */
+	public void entryExtracted(long bytes)
+	{
+		if(bytes > 0)
+			extracted.addAndGet(bytes);
+		entries.incrementAndGet();
+	}
+
+	/**
+	 * Mark a phase as completed, even if its totals were never known
+	 */
+	public synchronized void complete(Phase phase)
+	{
+		completed[phase.ordinal()] = true;
+	}
+
+	/**
+	 * Current phase, the first one not completed
+	 */
+	public synchronized Phase getPhase()
+	{
+		for(Phase phase: Phase.values())
+		{
+			if(!completed[phase.ordinal()])
+				return phase;
+		}
+		return Phase.LAUNCH;
+	}
+
+	/**
+	 * Ask the running work to stop, e.g. because the user canceled
+	 */
+	public void cancel()
+	{
+		canceled = true;
+	}
+
+	public boolean isCanceled()
+	{
+		return canceled;
+	}
+
+	/**
+	 * Overall progress between 0 and 1, it never decreases
+	 */
+	public double getFraction()
+	{
+		return fraction;
+	}
+
+	/**
+	 * Smoothed number of bytes downloaded and extracted per second
+	 */
+	public double getBytesPerSecond()
+	{
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Estimated remaining time or -1 if unknown
+	 */
+	public long getRemainingMillis()
+	{
+		return remainingMillis;
+	}
+
+	public long getDownloaded()
+	{
+		return downloaded.get();
+	}
+
+	public long getDownloadTotal()
+	{
+		return downloadTotal.get();
+	}
+
+	public long getExtracted()
+	{
+		return extracted.get();
+	}
+
+	public long getExtractTotal()
+	{
+		return extractTotal.get();
+	}
+
+	public long getEntries()
+	{
+		return entries.get();
+	}
+
+	/**
+	 * Short human readable status, e.g. for a progress dialog or the log
+	 */
+	@Override
+	public String toString()
+	{
+		Phase phase = getPhase();
+		StringBuilder text = new StringBuilder(phase.getText());
+		text.append(String.format(Locale.ENGLISH, " %d%%", (int) (fraction * 100)));
+
+		if(phase == Phase.DOWNLOAD)
+			text.append(", ").append(megabytes(downloaded.get())).append(" of ")
+			        .append(megabytes(downloadTotal.get()));
+		else if(phase == Phase.EXTRACT)
+			text.append(", ").append(entries.get()).append(" entries");
+
+		if(bytesPerSecond > 0 && phase != Phase.LAUNCH)
+			text.append(", ").append(megabytes((long) bytesPerSecond)).append("/s");
+		if(remainingMillis >= 0)
+			text.append(", ").append((remainingMillis + 999) / 1000).append(" s left");
+
+		return text.toString();
+	}
+
+	/*
+	 * Recompute the fraction and the rates
+	 */
+	private synchronized void tick()
+	{
+		long now = System.currentTimeMillis();
+		double current = Math.max(fraction, computeFraction());
+		long bytes = downloaded.get() + extracted.get();
+
+		if(lastTick > 0 && now > lastTick)
+		{
+			double seconds = (now - lastTick) / 1000.0;
+			bytesPerSecond = smooth(bytesPerSecond, (bytes - lastBytes) / seconds);
+			fractionPerSecond = smooth(fractionPerSecond, (current - fraction) / seconds);
+			remainingMillis = (fractionPerSecond > 0 && current < 1)
+			        ? (long) ((1 - current) / fractionPerSecond * 1000)
+			        : -1;
+		}
+
+		fraction = current;
+		lastTick = now;
+		lastBytes = bytes;
+	}
+
+	/*
+	 * Weighted sum of the phases. A phase without known total contributes
+	 * nothing until it is completed.
+	 */
+	private synchronized double computeFraction()
+	{
+		double sum = 0;
+		int weights = 0;
+		for(Phase phase: Phase.values())
+		{
+			double share;
+			if(completed[phase.ordinal()])
+				share = 1;
+			else if(phase == Phase.DOWNLOAD)
+				share = share(downloaded.get(), downloadTotal.get());
+			else if(phase == Phase.EXTRACT)
+				share = share(extracted.get(), extractTotal.get());
+			else
+				share = 0;
+
+			sum += share * phase.weight;
+			weights += phase.weight;
+		}
+		return sum / weights;
+	}
+
+	private static double share(long count, long total)
+	{
+		return (total > 0)
+		        ? Math.min(1.0, (double) count / total)
+		        : 0;
+	}
+
+	private static double smooth(double average, double value)
+	{
+		return (average == 0)
+		        ? value
+		        : SMOOTHING * value + (1 - SMOOTHING) * average;
+	}
+
+	private static String megabytes(long bytes)
+	{
+		return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+}
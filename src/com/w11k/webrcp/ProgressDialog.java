@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows the progress in a single progress monitor and errors in a message
+ * dialog. The monitor is updated on the event dispatch thread, canceling it
+ * cancels the installation. This is the only class using Swing, so AWT isn't
+ * loaded with another reporter.
+ */
+class ProgressDialog implements Reporter
+{
+	/*
+	 * Resolution of the progress bar
+	 */
+	private static final int MAXIMUM = 1000;
+
+	private ProgressMonitor  pm;
+
+	private volatile boolean canceled;
+
+	public void started(String task)
+	{
+		pm = new ProgressMonitor(null, task, "", 0, MAXIMUM);
+		pm.setMillisToDecideToPopup(100);
+		pm.setMillisToPopup(500);
+	}
+
+	public void progressChanged(double fraction, final String status)
+	{
+		final int value = (int) (fraction * MAXIMUM);
+
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run()
+			{
+				if(pm.isCanceled())
+				{
+					canceled = true;
+					return;
+				}
+
+				pm.setNote(status);
+				// The monitor closes itself at the maximum
+				pm.setProgress(Math.min(value, MAXIMUM - 1));
+			}
+		});
+	}
+
+	public boolean isCanceled()
+	{
+		return canceled;
+	}
+
+	public void finished()
+	{
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run()
+			{
+				pm.close();
+			}
+		});
+	}
+
+	public void error(int exitCode, String title, String message)
+	{
+		JOptionPane.showMessageDialog(null, message, title, JOptionPane.ERROR_MESSAGE);
+	}
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+/**
+ * Receives the progress of the installation and fatal errors. By default the
+ * progress is shown in a dialog, in headless mode it is written to the
+ * console. Another implementation can be configured by its class name in
+ * the system property jnlp.WebRCP.reporter, it needs a public no-argument
+ * constructor.
+ */
+public interface Reporter
+{
+	/**
+	 * Called once before the first progress update
+	 *
+	 * @param task description of the installation, e.g. "Installing App..."
+	 */
+	void started(String task);
+
+	/**
+	 * Called periodically from a background thread while the installation
+	 * is running
+	 *
+	 * @param fraction completed part of the installation between 0 and 1
+	 * @param status current phase with transferred bytes, throughput and
+	 *            remaining time
+	 */
+	void progressChanged(double fraction, String status);
+
+	/**
+	 * Check if the user canceled the installation, which stops it
+	 */
+	boolean isCanceled();
+
+	/**
+	 * Called once after the last progress update
+	 */
+	void finished();
+
+	/**
+	 * Called for a fatal error. The process exits with exitCode after the
+	 * method returns.
+	 *
+	 * @param exitCode one of the EXIT_ constants of WebRCP
+	 */
+	void error(int exitCode, String title, String message);
+}
@@ -0,0 +1,420 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Download of a large file over several connections. A single TCP stream
+ * is limited by the latency of the link, so the remaining range of the
+ * running segment with the most bytes left is split off and fetched by an
+ * additional range request. Segments are added one at a time as long as
+ * they raise the total throughput. Every segment writes its bytes directly
+ * to their position in the preallocated file, nothing is reassembled
+ * afterwards.
+ *
+ * If the download fails, the file is truncated to the bytes received without
+ * gaps, so it can be resumed like a sequential download. The end of these
+ * bytes is recorded with the partial download while running, a process
+ * killed before it could truncate the file resumes from there as well.
+ */
+class SegmentedDownload
+{
+	/**
+	 * Opens the range of the file starting at a position
+	 */
+	interface Source
+	{
+		/**
+		 * Return a stream of the file from position to its end, null if the
+		 * server doesn't honor the range request
+		 */
+		InputStream open(long position) throws IOException;
+	}
+
+	/*
+	 * Segments smaller than this aren't split anymore
+	 */
+	private static final long   MIN_SEGMENT = 2 * 1024 * 1024;
+
+	/*
+	 * Interval in which the throughput is checked (milliseconds)
+	 */
+	private static final long   INTERVAL    = 1000;
+
+	/*
+	 * Throughput increase needed to keep adding segments
+	 */
+	private static final double MIN_GAIN    = 1.1;
+
+	/*
+	 * Range of the file fetched by a single connection. The end of a running
+	 * segment moves when it is split.
+	 */
+	private static class Segment
+	{
+		final long  start;
+		long        position, end;
+		boolean     done;
+		InputStream in;
+
+		Segment(long start, long end)
+		{
+			this.start = position = start;
+			this.end = end;
+		}
+	}
+
+	private final PartialDownload part;
+
+	private final File            file;
+
+	private final long            start, end;
+
+	private final int             maxSegments;
+
+	private final Source          source;
+
+	private final List<Segment>   segments = new ArrayList<Segment>();
+
+	private IOException           failure;
+
+	private long                  written;
+
+	/**
+	 * Constructor
+	 *
+	 * @param part destination, the first start bytes of its part file are
+	 *            already downloaded
+	 * @param start position of the first byte to download
+	 * @param end length of the file
+	 * @param maxSegments maximum number of concurrent connections
+	 * @param source opens additional connections
+	 */
+	public SegmentedDownload(PartialDownload part, long start, long end, int maxSegments, Source source)
+	{
+		this.part = part;
+		file = part.getPartFile();
+		this.start = start;
+		this.end = end;
+		this.maxSegments = maxSegments;
+		this.source = source;
+	}
+
+	/**
+	 * Download the file, in reads the bytes from start on. Returns when all
+	 * segments are complete.
+	 */
+	public void run(InputStream in) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			part.setContiguousEnd(start);
+			raf.setLength(end);
+			FileChannel channel = raf.getChannel();
+			startSegment(channel, new Segment(start, end), in);
+
+			boolean growing = maxSegments > 1;
+			long lastWritten = 0;
+			double lastRate = 0;
+			while(true)
+			{
+				synchronized(this)
+				{
+					if(failure != null || allDone())
+						break;
+					try
+					{
+						wait(INTERVAL);
+					}
+					catch(InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						fail(new IOException("Download interrupted"));
+						break;
+					}
+					if(failure != null || allDone())
+						break;
+				}
+
+				part.setContiguousEnd(getContiguousEnd());
+
+				if(!growing)
+					continue;
+
+				long current = getWritten();
+				double rate = current - lastWritten;
+				lastWritten = current;
+				if(lastRate > 0 && rate < lastRate * MIN_GAIN)
+				{
+					// The link is saturated, more connections don't help
+					growing = false;
+					continue;
+				}
+
+				lastRate = rate;
+				growing = split(channel);
+			}
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				// Stop the remaining segments
+				while(!allDone())
+				{
+					for(Segment segment: segments)
+						close(segment.in);
+					try
+					{
+						wait(INTERVAL);
+					}
+					catch(InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if(failure != null)
+					raf.setLength(contiguousEnd());
+			}
+			raf.close();
+			part.setContiguousEnd(getContiguousEnd());
+		}
+
+		synchronized(this)
+		{
+			System.out.println("Downloaded " + file.getName() + " in " + segments.size() + " segments");
+			if(failure != null)
+				throw failure;
+		}
+	}
+
+	/*
+	 * Split the running segment with the most bytes left. The additional
+	 * connection is opened first, the split only takes effect if the server
+	 * honors the range request. Returns false if no further segment can be
+	 * added.
+	 */
+	private boolean split(FileChannel channel) throws IOException
+	{
+		long position;
+		synchronized(this)
+		{
+			if(segments.size() >= maxSegments)
+				return false;
+
+			Segment largest = largest();
+			if(largest == null)
+				return false;
+			position = largest.position + (largest.end - largest.position) / 2;
+		}
+
+		InputStream in;
+		try
+		{
+			in = source.open(position);
+		}
+		catch(IOException ex)
+		{
+			System.out.println("Couldn't add a segment to " + file.getName() + ": " + ex);
+			return false;
+		}
+		if(in == null)
+		{
+			System.out.println("Server doesn't honor range requests for " + file.getName());
+			return false;
+		}
+
+		synchronized(this)
+		{
+			Segment segment = null;
+			for(Segment running: segments)
+			{
+				// The segment may have moved on in the meantime
+				if(!running.done && running.position + MIN_SEGMENT / 2 < position && position < running.end)
+				{
+					Segment added = new Segment(position, running.end);
+					running.end = position;
+					segment = added;
+					break;
+				}
+			}
+			if(segment == null || failure != null)
+			{
+				close(in);
+				return failure == null;
+			}
+			startSegment(channel, segment, in);
+		}
+		return true;
+	}
+
+	private void startSegment(final FileChannel channel, final Segment segment, InputStream in)
+	{
+		segment.in = in;
+		synchronized(this)
+		{
+			segments.add(segment);
+		}
+
+		Thread thread = new Thread("WebRCP-Segment-" + segments.size()) {
+			public void run()
+			{
+				try
+				{
+					transfer(channel, segment);
+				}
+				catch(IOException ex)
+				{
+					fail(ex);
+				}
+				finally
+				{
+					close(segment.in);
+					synchronized(SegmentedDownload.this)
+					{
+						segment.done = true;
+						SegmentedDownload.this.notifyAll();
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Copy the bytes of a segment to their position in the file until the
+	 * segment's end, which may move towards its start while running
+	 */
+	private void transfer(FileChannel channel, Segment segment) throws IOException
+	{
+		byte[] buffer = new byte[65536];
+		while(true)
+		{
+			int size;
+			synchronized(this)
+			{
+				if(failure != null)
+					return;
+				size = (int) Math.min(buffer.length, segment.end - segment.position);
+			}
+			if(size == 0)
+				return;
+
+			size = segment.in.read(buffer, 0, size);
+			if(size < 0)
+				throw new EOFException("Connection closed at byte " + segment.position + " of " + end);
+
+			long position;
+			synchronized(this)
+			{
+				// A split only moves the end beyond the bytes requested above
+				position = segment.position;
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, size);
+			while(bytes.hasRemaining())
+				channel.write(bytes, position + bytes.position());
+
+			synchronized(this)
+			{
+				segment.position += size;
+				written += size;
+			}
+		}
+	}
+
+	private synchronized void fail(IOException ex)
+	{
+		if(failure == null)
+			failure = ex;
+		notifyAll();
+	}
+
+	private synchronized long getWritten()
+	{
+		return written;
+	}
+
+	private synchronized long getContiguousEnd()
+	{
+		return contiguousEnd();
+	}
+
+	private boolean allDone()
+	{
+		for(Segment segment: segments)
+		{
+			if(!segment.done)
+				return false;
+		}
+		return true;
+	}
+
+	private Segment largest()
+	{
+		Segment largest = null;
+		for(Segment segment: segments)
+		{
+			long left = segment.end - segment.position;
+			if(!segment.done && left >= 2 * MIN_SEGMENT
+			        && (largest == null || left > largest.end - largest.position))
+				largest = segment;
+		}
+		return largest;
+	}
+
+	/*
+	 * End of the bytes received from start on without gaps
+	 */
+	private long contiguousEnd()
+	{
+		long position = start;
+		boolean advanced = true;
+		while(advanced)
+		{
+			advanced = false;
+			for(Segment segment: segments)
+			{
+				if(segment.start == position && segment.position > position)
+				{
+					position = segment.position;
+					advanced = segment.position == segment.end;
+				}
+			}
+		}
+		return position;
+	}
+
+	private static void close(InputStream in)
+	{
+		try
+		{
+			if(in != null)
+				in.close();
+		}
+		catch(IOException ex)
+		{
+			// Ignore, the segment is stopped anyway
+		}
+	}
+}
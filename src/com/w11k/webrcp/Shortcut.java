@@ -13,11 +13,10 @@ package com.w11k.webrcp;
 
 // based on http://www.i2s-lab.com/Papers/The_Windows_Shortcut_File_Format.pdf by Jesse Hager
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Date;
 import java.util.Vector;
 
 public class Shortcut
@@ -136,7 +135,7 @@ public class Shortcut
 		@Override
 		public String toString()
 		{
-			return "ShellItemId: " + hexDump(content) + "\n" + "ShellItemIdAscii: " + asciiDump(content);
+			return ShortcutDump.toString(this, null);
 		}
 	}
 
@@ -160,137 +159,10 @@ public class Shortcut
 		String             remainingPathName = null;
 		String             basePathName      = null;
 
-		byte[] getBytes()
-		{
-			int size = 0;
-			byte[] buff = null;
-			try
-			{
-				byte[] bvt = null;
-				byte[] bbpn = null;
-				byte[] brpn = null;
-				int iflag = 0;
-				if(lvt != null)
-				{
-					iflag = FF_LOCAL;
-					bvt = lvt.getBytes();
-				}
-				else if(nvt != null)
-				{
-					iflag = FF_NETWORK;
-					bvt = nvt.getBytes();
-				}
-				else
-					throw new MalformedShortcutException("no lvt or nvt");
-
-				bbpn = (basePathName != null)
-				        ? basePathName.getBytes("US-ASCII")
-				        : null;
-				brpn = (remainingPathName != null)
-				        ? remainingPathName.getBytes("US-ASCII")
-				        : null;
-				int ibpn = (bbpn != null)
-				        ? bbpn.length + 1
-				        : 0;
-				int irpn = (brpn != null)
-				        ? brpn.length + 1
-				        : 0;
-				int ivt = bvt.length;
-				size = (7 * 4) + ibpn + irpn + ivt;
-				System.out.println(size);
-				buff = new byte[size];
-				setInt(buff, 0x00, size);
-				setInt(buff, 0x04, 0x1C);
-				setInt(buff, 0x08, iflag);
-				setInt(buff, 0x0C, 0x1C);
-				setInt(buff, 0x10, 0x1C + ivt);
-				setInt(buff, 0x14, 0x1C);
-				setInt(buff, 0x18, 0x1C + ivt + ibpn);
-				if(ivt > 0)
-				{
-					copyArray(buff, bvt, 0x1C);
-				}
-				if(ibpn > 0)
-				{
-					copyArray(buff, bbpn, 0x1C + ivt);
-				}
-				if(irpn > 0)
-				{
-					copyArray(buff, brpn, 0x1C + ivt + ibpn);
-				}
-			}
-			catch(Exception e)
-			{
-				e.printStackTrace();
-				buff = null;
-			}
-			return buff;
-		}
-
 		String toString(String indent)
 		{
-			String ind = (indent == null)
-			        ? ""
-			        : indent;
-			String ls = System.getProperty("line.separator");
-			String s = "";
-			s =
-			        "fileLocationInfo:" + ls + ind + "length:" + length + ls + ind + "offset:" + offset + ls + ind
-			                + "flags:" + (((flags & FF_LOCAL) > 0)
-			                        ? "local;"
-			                        : "") + (((flags & FF_NETWORK) > 0)
-			                        ? "network;"
-			                        : "") + ls + ((lvt != null)
-			                        ? ind + lvt.toString(ind + ind)
-			                        : "") + ((nvt != null)
-			                        ? ind + nvt.toString(ind + ind)
-			                        : "");
-			return s;
-		}
-	}
-
-	static FileLocationInfo parseFileLocationInfo(byte[] buff, int offset) throws MalformedShortcutException
-	{
-		FileLocationInfo fli = new FileLocationInfo();
-		fli.length = getInt(buff, offset + 0x00);
-		fli.offset = getInt(buff, offset + 0x04);
-		fli.flags = getInt(buff, offset + 0x08);
-		if((fli.flags & FF_LOCAL) > 0)
-		{
-			fli.offLVI = getInt(buff, offset + 0x0C);
-			fli.offLBP = getInt(buff, offset + 0x10);
-			LocalVolumeTable lvt = new LocalVolumeTable();
-			lvt.length = getInt(buff, offset + 0x1C);
-			lvt.type = getInt(buff, offset + 0x20);
-			lvt.serial = getInt(buff, offset + 0x24);
-			lvt.offVL = getInt(buff, offset + 0x28);
-			lvt.volumeLabel = new String(subarray(buff, offset + 0x2C, lvt.length - 0x10 - 1));
-			fli.lvt = lvt;
-			fli.basePathName = new String(subarray(buff, offset + fli.offLBP, fli.length - fli.offLBP - 2));
-		}
-		else if((fli.flags & FF_NETWORK) > 0)
-		{
-			fli.offNVI = getInt(buff, offset + 0x014);
-			NetworkVolumeTable nvt = new NetworkVolumeTable();
-			nvt.length = getInt(buff, offset + fli.offNVI);
-			nvt.unknown0 = getInt(buff, offset + fli.offNVI + 0x04);
-			nvt.offNS = getInt(buff, offset + fli.offNVI + 0x08);
-			nvt.unknown1 = getInt(buff, offset + fli.offNVI + 0x0C);
-			nvt.unknown2 = getInt(buff, offset + fli.offNVI + 0x10);
-			nvt.shareName =
-			        new String(subarray(buff, offset + fli.offNVI + nvt.offNS, nvt.length - 0x14 - nvt.unknown0 - 1));
-			if(nvt.unknown1 > 0)
-			{
-				nvt.localShareMapping =
-				        new String(subarray(buff, offset + fli.offNVI + nvt.unknown1, nvt.unknown0 - 1));
-			}
-			fli.nvt = nvt;
+			return ShortcutDump.toString(this, indent);
 		}
-		else
-			throw new MalformedShortcutException("corrupted FileLocationInfo structure, field 'flag'==0");
-		fli.offRPN = getInt(buff, offset + 0x18);
-		fli.remainingPathName = new String(subarray(buff, offset + fli.offRPN, fli.length - fli.offRPN - 1));
-		return fli;
 	}
 
 	static class LocalVolumeTable
@@ -307,53 +179,9 @@ public class Shortcut
 		int    offVL       = 0x10;
 		String volumeLabel = null;
 
-		byte[] getBytes()
-		{
-			int size = 0;
-			byte[] buff = null;
-			try
-			{
-				byte[] vl = (volumeLabel != null)
-				        ? volumeLabel.getBytes("US-ASCII")
-				        : null;
-				int ivl = (vl != null)
-				        ? vl.length + 1
-				        : 0;
-				size = (4 * 4) + ivl;
-				buff = new byte[size];
-				System.out.println(size);
-				setInt(buff, 0x00, size);
-				setInt(buff, 0x04, type);
-				setInt(buff, 0x08, serial);
-				setInt(buff, 0x0C, 0x10);
-				if(ivl > 0)
-				{
-					copyArray(buff, vl, 0x10);
-					buff[ivl - 1] = 0x00;
-				}
-
-			}
-			catch(Exception e)
-			{
-				e.printStackTrace();
-				buff = null;
-			}
-			return buff;
-		}
-
 		String toString(String indent)
 		{
-			String ind = (indent == null)
-			        ? ""
-			        : indent;
-			String ls = System.getProperty("line.separator");
-			String s = "";
-			s =
-			        "LocalVolumeTable:" + ls + ind + "length:" + length + ls + ind + "type:" + type + ls + ind
-			                + "serial:" + serial + ls + ind + "offVL:" + offVL + ls + ((volumeLabel != null)
-			                        ? ind + volumeLabel + ls
-			                        : "");
-			return s;
+			return ShortcutDump.toString(this, indent);
 		}
 	}
 
@@ -374,86 +202,9 @@ public class Shortcut
 		String shareName         = null;
 		String localShareMapping = null;
 
-		byte[] getBytes()
-		{
-			int size = 0;
-			byte[] buff = null;
-			try
-			{
-				byte[] lsm = (localShareMapping != null)
-				        ? localShareMapping.getBytes("US-ASCII")
-				        : null;
-				byte[] sn = (shareName != null)
-				        ? shareName.getBytes("US-ASCII")
-				        : null;
-				int ilsm = (lsm != null)
-				        ? lsm.length + 1
-				        : 0;
-				int isn = (sn != null)
-				        ? sn.length + 1
-				        : 0;
-				size = (5 * 4) + ilsm + isn;
-				buff = new byte[size];
-				System.out.println(size);
-				setInt(buff, 0x00, byteSize());
-				setInt(buff, 0x04, ilsm);
-				setInt(buff, 0x08, 0x14);
-				setInt(buff, 0x0C, 0x14 + isn);
-				setInt(buff, 0x10, 0x140000);
-				if(isn > 0)
-				{
-					copyArray(buff, sn, 0x14);
-					buff[isn - 1] = 0x00;
-				}
-				if(ilsm > 0)
-				{
-					copyArray(buff, lsm, 0x14 + isn);
-					buff[(0x14 + isn) - 1] = 0x00;
-				}
-
-			}
-			catch(Exception e)
-			{
-				e.printStackTrace();
-				buff = null;
-			}
-			return buff;
-		}
-
-		int byteSize()
-		{
-			int size = 0;
-			try
-			{
-				size = (5 * 4) + ((shareName != null)
-				        ? shareName.getBytes("US-ASCII").length + 1
-				        : 0) + ((localShareMapping != null)
-				        ? localShareMapping.getBytes("US-ASCII").length + 1
-				        : 0);
-			}
-			catch(Exception e)
-			{
-				e.printStackTrace();
-			}
-			return size;
-		}
-
 		String toString(String indent)
 		{
-			String ind = (indent == null)
-			        ? ""
-			        : indent;
-			String ls = System.getProperty("line.separator");
-			String s = "";
-			s =
-			        "NetworkVolumeTable:" + ls + ind + "length:" + length + ls + ind + "unknown0:" + unknown0 + ls
-			                + ind + "offNS:" + offNS + ls + ind + "unknown1:" + unknown1 + ls + ind + "unknown2:"
-			                + unknown2 + ls + ((shareName != null)
-			                        ? ind + "shareName:" + shareName + ls
-			                        : "") + ((localShareMapping != null)
-			                        ? ind + "localShareMapping:" + localShareMapping + ls
-			                        : "");
-			return s;
+			return ShortcutDump.toString(this, indent);
 		}
 	}
 
@@ -598,64 +349,6 @@ public class Shortcut
 
 	}
 
-	static boolean byteMatch(byte[] pat, byte[] in, int idx)
-	{
-		if((idx + pat.length) > in.length)
-			return false;
-		for(int i = 0; i < pat.length; i++)
-			if(pat[i] != in[i + idx])
-				return false;
-			else
-			{
-				// System.out.printf("0x%x\n", in[idx+i]);
-			}
-		return true;
-	}
-
-	static byte[] subarray(byte[] in, int idx, int len)
-	{
-		byte[] out = new byte[len];
-		for(int i = 0; i < len; i++)
-		{
-			out[i] = in[idx + i];
-		}
-		return out;
-	}
-
-	static String hexDump(byte[] in)
-	{
-		String out = new String("");
-		for(int i = 0; i < in.length; i++)
-			if(((i % 8) == 0) && (i != 0))
-			{
-				out += String.format("\n0x%02X, ", in[i] & 0xff);
-			}
-			else
-			{
-				out += String.format("0x%02X, ", in[i] & 0xff);
-			}
-		return out;
-	}
-
-	static String asciiDump(byte[] in)
-	{
-		String out = new String("");
-		for(byte element: in)
-		{
-			out += ((element & 0xFF) == 0)
-			        ? '_'
-			        : (char) (element & 0xFF);
-		}
-		return out;
-	}
-
-	static int copyUString(byte[] out, byte[] in, int idx)
-	{
-		setShort(out, idx, (short) (in.length / 2));
-		copyArray(out, in, idx + 2);
-		return in.length + 2;
-	}
-
 	static int copyArray(byte[] out, byte[] in, int idx)
 	{
 		for(int i = in.length - 1; i >= 0; i--)
@@ -665,375 +358,54 @@ public class Shortcut
 		return in.length;
 	}
 
-	static short getShort(byte[] in, int idx)
-	{
-		short out = 0;
-		for(int i = 0; i < 2; i++)
-		{
-			out |= (in[idx + i] & 0xff) << (i * 8);
-		}
-		return out;
-	}
-
-	static int setShort(byte[] out, int idx, short val)
-	{
-		for(int i = 0; i < 2; i++)
-		{
-			out[idx + i] = (byte) ((val >> (i * 8)) & 0xff);
-		}
-		return 2;
-	}
-
-	static int getInt(byte[] in, int idx)
-	{
-		int out = 0;
-		for(int i = 0; i < 4; i++)
-		{
-			out |= (in[idx + i] & 0xff) << (i * 8);
-		}
-		return out;
-	}
-
-	static int setInt(byte[] out, int idx, int val)
-	{
-		for(int i = 0; i < 4; i++)
+	/*
+	 * Parser of every thread, which reuses its buffer
+	 */
+	private static final ThreadLocal<ShortcutParser> PARSERS = new ThreadLocal<ShortcutParser>() {
+		@Override
+		protected ShortcutParser initialValue()
 		{
-			out[idx + i] = (byte) ((val >> (i * 8)) & 0xff);
+			return new ShortcutParser();
 		}
-		return 4;
-	}
+	};
 
-	static long getLong(byte[] in, int idx)
+	static public Shortcut loadShortcut(File shortcutFile) throws IOException, MalformedShortcutException
 	{
-		long out = 0;
-		for(int i = 0; i < 8; i++)
-		{
-			out |= ((long) in[idx + i] & 0xff) << (i * 8);
-		}
-		return out;
+		return PARSERS.get().parse(shortcutFile).toShortcut();
 	}
 
-	static int setLong(byte[] out, int idx, long val)
+	int byteSize()
 	{
-		for(int i = 0; i < 8; i++)
-		{
-			out[idx + i] = (byte) ((val >> (i * 8)) & 0xff);
-		}
-		return 8;
+		return ShortcutWriter.size(this);
 	}
 
-	static public Shortcut loadShortcut(File shortcutFile) throws IOException, MalformedShortcutException
-	{
-		Shortcut scut = new Shortcut();
-		FileInputStream fis = new FileInputStream(shortcutFile);
-		int len = fis.available();
-		byte[] buff = new byte[len];
-		int rlen = fis.read(buff);
-		fis.close();
-		if(rlen != len)
-			throw new IOException("error ocurred while reading file: " + shortcutFile.getAbsolutePath());
-		if(!byteMatch(_headerEl, buff, 0x00))
-			throw new MalformedShortcutException("bad header");
-		if(!byteMatch(_headerGUID, buff, 0x04))
-			throw new MalformedShortcutException("bad GUID");
-		scut.flags = getInt(buff, 0x14);
-		System.out.println(hexDump(subarray(buff, 0x14, 4)));
-		System.out.println(describeFlags(scut.flags));
-		scut.attributes = getInt(buff, 0x18);
-		System.out.println("attrib " + describeAttributes(scut.attributes));
-		scut.cTime = getLong(buff, 0x1C);
-		scut.mTime = getLong(buff, 0x24);
-		scut.aTime = getLong(buff, 0x2C);
-		scut.fileLength = getInt(buff, 0x34);
-		scut.iconID = getInt(buff, 0x38);
-		scut.showWnd = getInt(buff, 0x3C);
-		scut.hotKey = getInt(buff, 0x40);
-		scut.unknown0 = getLong(buff, 0x44);
-
-		int offset = 0x4C;
-		if((scut.flags & F_ID_LIST) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			scut.shellItemIDList = parseShellItemIDList(buff, offset);
-			System.out.println("shIdList len " + len);
-			offset += len + 2;
-			for(ShellItemID shid: scut.shellItemIDList)
-			{
-				System.out.println(shid.toString());
-			}
-
-		}
-		if((scut.flags & F_LOCATION) > 0)
-		{
-			len = getInt(buff, offset);
-			scut.fileLocationInfo = parseFileLocationInfo(buff, offset);
-			offset += len;
-		}
-		if((scut.flags & F_DESCRIPTION) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			scut.description = new String(subarray(buff, offset + 2, len * 2), "UTF-16LE");
-			System.out.println("description " + scut.description);
-			offset += (2 * len) + 2;
-		}
-		if((scut.flags & F_RELATIVE_PATH) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			scut.relativePath = new String(subarray(buff, offset + 2, len * 2), "UTF-16LE");
-			System.out.println("relative " + scut.relativePath);
-			offset += (2 * len) + 2;
-		}
-		if((scut.flags & F_WORKING_DIRECTORY) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			scut.workingDirectory = new String(subarray(buff, offset + 2, len * 2), "UTF-16LE");
-			System.out.println("working " + scut.workingDirectory);
-			offset += (2 * len) + 2;
-		}
-		if((scut.flags & F_COMMAND_LINE) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			scut.commandLine = new String(subarray(buff, offset + 2, len * 2), "UTF-16LE");
-			System.out.println("command line " + scut.commandLine);
-			offset += (2 * len) + 2;
-		}
-		if((scut.flags & F_CUSTOM_ICON) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			scut.iconFileName = new String(subarray(buff, offset + 2, len * 2), "UTF-16LE");
-			System.out.println("working " + scut.iconFileName);
-			offset += (2 * len) + 2;
-		}
-		if((scut.flags & F_SOMETHING) > 0)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			System.out.println(len + " " + (buff.length - (offset + 2)));
-			System.out.println(Integer.toHexString(offset));
-			// System.out.println(Integer.toBinaryString(scut.flags));
-			if(len > 0x10)
-			{
-				scut.something = new String(subarray(buff, offset + 0x10, len - 0x10));
-				// buff.length-(offset+0x10+2)));
-				// "UTF-16LE");
-				System.out.println("something:" + scut.something);
-			}
-			offset += len + 2;
-		}
-		while(true)
-		{
-			len = getShort(buff, offset) & 0xFFFF;
-			offset += len + 2;
-			if(len == 0)
-			{
-				break;
-			}
-		}
-		return scut;
-	}
-
-	static Vector<ShellItemID> parseShellItemIDList(byte[] buff, int off) throws MalformedShortcutException
+	@Override
+	public String toString()
 	{
-		Vector<ShellItemID> shv = new Vector<ShellItemID>();
-		int tlen = getShort(buff, off) & 0xFFFF;
-		int of = 2;
-		while(true)
-		{
-			int len = getShort(buff, off + of) & 0xFFFF;
-			if((len + off) > buff.length)
-				throw new MalformedShortcutException("malformed ShiellItemIdList");
-			if(len == 0)
-			{
-				if(of != tlen)
-					throw new MalformedShortcutException("malformed ShiellItemIdList");
-				break;
-			}
-			else
-			{
-				shv.add(new ShellItemID(subarray(buff, off + of + 2, len - 2)));
-			}
-			of += len;
-		}
-		return shv;
+		return ShortcutDump.toString(this, null);
 	}
 
-	int byteSize()
+	/**
+	 * Write the values returned by toString to out
+	 */
+	public void dump(Appendable out) throws IOException
 	{
-		int size = 0;
-		try
-		{
-			size = (7 * 4) + (4 * 8) + fileLocationInfo.getBytes().length + ((description != null)
-			        ? description.getBytes("UTF-16LE").length
-			        : 0) + ((relativePath != null)
-			        ? relativePath.getBytes("UTF-16LE").length
-			        : 0) + ((workingDirectory != null)
-			        ? workingDirectory.getBytes("UTF-16LE").length
-			        : 0) + ((commandLine != null)
-			        ? commandLine.getBytes("UTF-16LE").length
-			        : 0) + ((iconFileName != null)
-			        ? iconFileName.getBytes("UTF-16LE").length
-			        : 0);
-		}
-		catch(Exception e)
-		{
-			e.printStackTrace();
-		}
-		return size;
+		ShortcutDump.text(this, out);
 	}
 
-	@Override
-	public String toString()
+	/**
+	 * Write all values as JSON to out, including the file location and the
+	 * shell item ids as hex strings
+	 */
+	public void dumpJson(Appendable out) throws IOException
 	{
-		String s = "";
-		String ls = System.getProperty("line.separator");
-		s +=
-		        "flags:" + describeFlags(flags) + ls + "attr:" + describeAttributes(attributes) + ls + "cTime:"
-		                + new Date(cTime).toString() + ls + "mTime:" + new Date(mTime).toString() + ls + "aTime:"
-		                + new Date(aTime).toString() + ls + "fileLength:" + fileLength + ls + "iconID:" + iconID + ls
-		                + "showWnd:" + describeShowWnd(showWnd) + ls + "hotKey:" + hotKey + ls + "unknown0:" + unknown0
-		                + ls + ((fileLocationInfo != null)
-		                        ? fileLocationInfo.toString("\t")
-		                        : "") + ((description != null)
-		                        ? "description:" + description + ls
-		                        : "") + ((relativePath != null)
-		                        ? "relativePath:" + relativePath + ls
-		                        : "") + ((workingDirectory != null)
-		                        ? "workingDirectory:" + workingDirectory + ls
-		                        : "") + ((commandLine != null)
-		                        ? "commandLine:" + commandLine + ls
-		                        : "") + ((iconFileName != null)
-		                        ? "iconFileName:" + iconFileName + ls
-		                        : "") + ((something != null)
-		                        ? "something:" + something + ls
-		                        : "");
-		return s;
+		ShortcutDump.json(this, out);
 	}
 
 	byte[] getBytes()
 	{
-		byte[] buff = null;
-		int size = 0;
-		int iflag = 0;
-		int off = 0;
-		try
-		{
-			byte[] bshell = null;
-			byte[] bdesc = (description != null)
-			        ? description.getBytes("UTF-16LE")
-			        : null;
-			byte[] brel = (relativePath != null)
-			        ? relativePath.getBytes("UTF-16LE")
-			        : null;
-			byte[] bwork = (workingDirectory != null)
-			        ? workingDirectory.getBytes("UTF-16LE")
-			        : null;
-			byte[] bcmd = (commandLine != null)
-			        ? commandLine.getBytes("UTF-16LE")
-			        : null;
-			byte[] bico = (iconFileName != null)
-			        ? iconFileName.getBytes("UTF-16LE")
-			        : null;
-			byte[] bfloc = (fileLocationInfo != null)
-			        ? fileLocationInfo.getBytes()
-			        : null;
-			int ishell = 0;
-			if(shellItemIDList != null)
-			{
-				System.out.println("HAS SHELL ID LIST!!!!!!" + shellItemIDList);
-				for(ShellItemID shi: shellItemIDList)
-				{
-					ishell += 0x02 + shi.content.length;
-				}
-
-				ishell += 0x04;
-
-				off = 2;
-				bshell = new byte[ishell];
-				setShort(bshell, 0, (short) (ishell - 2));
-				for(ShellItemID shi: shellItemIDList)
-				{
-					setShort(bshell, off, (short) (shi.content.length + 2));
-					copyArray(bshell, shi.content, off + 2);
-					off += 2 + shi.content.length;
-				}
-				setShort(bshell, off, (short) 0x00);
-				System.out.println("shi len " + off);
-				System.out.println(commandLine);
-			}
-			size = _headerEl.length + _headerGUID.length + (7 * 4) + (4 * 8) + ishell + ((bfloc != null)
-			        ? bfloc.length
-			        : 0) + ((bdesc != null)
-			        ? bdesc.length + 2
-			        : 0) + ((brel != null)
-			        ? brel.length + 2
-			        : 0) + ((bwork != null)
-			        ? bwork.length + 2
-			        : 0) + ((bcmd != null)
-			        ? bcmd.length + 2
-			        : 0) + ((bico != null)
-			        ? bico.length + 2
-			        : 0);
-			iflag = ((bshell != null)
-			        ? F_ID_LIST
-			        : 0) | ((bfloc != null)
-			        ? F_LOCATION
-			        : 0) | ((bdesc != null)
-			        ? F_DESCRIPTION
-			        : 0) | ((brel != null)
-			        ? F_RELATIVE_PATH
-			        : 0) | ((bwork != null)
-			        ? F_WORKING_DIRECTORY
-			        : 0) | ((bcmd != null)
-			        ? F_COMMAND_LINE
-			        : 0) | ((bico != null)
-			        ? F_CUSTOM_ICON
-			        : 0);
-			iflag |= F_SOMETHING;
-			System.out.println("write flags:" + describeFlags(iflag));
-			off = 0;
-			buff = new byte[size];
-			off += copyArray(buff, _headerEl, off);
-			off += copyArray(buff, _headerGUID, off);
-			off += setInt(buff, off, iflag);
-			off += setInt(buff, off, attributes);
-			off += setLong(buff, off, cTime);
-			off += setLong(buff, off, mTime);
-			off += setLong(buff, off, aTime);
-			off += setInt(buff, off, fileLength);
-			off += setInt(buff, off, iconID);
-			off += setInt(buff, off, showWnd);
-			off += setInt(buff, off, hotKey);
-			off += setLong(buff, off, unknown0);
-
-			off += ((bshell != null)
-			        ? copyArray(buff, bshell, off)
-			        : 0);
-			off += ((bfloc != null)
-			        ? copyArray(buff, bfloc, off)
-			        : 0);
-			off += ((bdesc != null)
-			        ? copyUString(buff, bdesc, off)
-			        : 0);
-			off += ((brel != null)
-			        ? copyUString(buff, brel, off)
-			        : 0);
-			off += ((bwork != null)
-			        ? copyUString(buff, bwork, off)
-			        : 0);
-
-			off += ((bcmd != null)
-			        ? copyUString(buff, bcmd, off)
-			        : 0);
-			off += ((bico != null)
-			        ? copyUString(buff, bico, off)
-			        : 0);
-			// byte[] brel = (h!=null)?h.getBytes("UTF16-LE"):null;
-		}
-		catch(Exception e)
-		{
-			e.printStackTrace();
-			buff = null;
-		}
-
+		byte[] buff = new byte[ShortcutWriter.size(this)];
+		ShortcutWriter.write(this, ByteBuffer.wrap(buff));
 		return buff;
 	}
 
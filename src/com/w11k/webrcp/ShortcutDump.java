@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Diagnostic output of shortcuts, as text like toString or as JSON for
+ * tools. Everything is appended piece by piece to the target, so the time
+ * is linear in the size of the output and nothing has to fit into one
+ * string, e.g. when dumping the shell item list of a malformed file to a
+ * Writer.
+ */
+class ShortcutDump
+{
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final String LS  = System.getProperty("line.separator");
+
+	/**
+	 * Bytes as "0x4C, 0x00, ", eight per line
+	 */
+	public static String hexDump(byte[] in)
+	{
+		char[] out = new char[6 * in.length + Math.max(0, in.length - 1) / 8];
+		int position = 0;
+		for(int i = 0; i < in.length; i++)
+		{
+			if(((i % 8) == 0) && (i != 0))
+				out[position++] = '\n';
+			out[position++] = '0';
+			out[position++] = 'x';
+			out[position++] = HEX[(in[i] >> 4) & 0x0F];
+			out[position++] = HEX[in[i] & 0x0F];
+			out[position++] = ',';
+			out[position++] = ' ';
+		}
+		return new String(out);
+	}
+
+	public static void hexDump(byte[] in, Appendable out) throws IOException
+	{
+		for(int i = 0; i < in.length; i++)
+		{
+			if(((i % 8) == 0) && (i != 0))
+				out.append('\n');
+			out.append('0').append('x');
+			appendHex(in[i], out);
+			out.append(',').append(' ');
+		}
+	}
+
+	/**
+	 * Bytes as ISO-8859-1 characters, zero bytes as '_'
+	 */
+	public static String asciiDump(byte[] in)
+	{
+		char[] out = new char[in.length];
+		for(int i = 0; i < in.length; i++)
+		{
+			out[i] = ((in[i] & 0xFF) == 0)
+			        ? '_'
+			        : (char) (in[i] & 0xFF);
+		}
+		return new String(out);
+	}
+
+	public static void asciiDump(byte[] in, Appendable out) throws IOException
+	{
+		for(byte element: in)
+		{
+			out.append(((element & 0xFF) == 0)
+			        ? '_'
+			        : (char) (element & 0xFF));
+		}
+	}
+
+	/**
+	 * Text of a shortcut, shell item id or structure of the file location,
+	 * indent is used by the latter
+	 */
+	public static String toString(Object value, String indent)
+	{
+		StringBuilder out = new StringBuilder(256);
+		try
+		{
+			if(value instanceof Shortcut)
+				text((Shortcut) value, out);
+			else if(value instanceof Shortcut.ShellItemID)
+				text((Shortcut.ShellItemID) value, out);
+			else if(value instanceof Shortcut.FileLocationInfo)
+				text((Shortcut.FileLocationInfo) value, indent, out);
+			else if(value instanceof Shortcut.LocalVolumeTable)
+				text((Shortcut.LocalVolumeTable) value, indent, out);
+			else
+				text((Shortcut.NetworkVolumeTable) value, indent, out);
+		}
+		catch(IOException ex)
+		{
+			// Not thrown by a StringBuilder
+			throw new IllegalStateException(ex);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Values of a shortcut as returned by toString
+	 */
+	public static void text(Shortcut s, Appendable out) throws IOException
+	{
+		out.append("flags:").append(Shortcut.describeFlags(s.flags)).append(LS);
+		out.append("attr:").append(Shortcut.describeAttributes(s.attributes)).append(LS);
+		out.append("cTime:").append(new Date(s.cTime).toString()).append(LS);
+		out.append("mTime:").append(new Date(s.mTime).toString()).append(LS);
+		out.append("aTime:").append(new Date(s.aTime).toString()).append(LS);
+		out.append("fileLength:").append(String.valueOf(s.fileLength)).append(LS);
+		out.append("iconID:").append(String.valueOf(s.iconID)).append(LS);
+		out.append("showWnd:").append(Shortcut.describeShowWnd(s.showWnd)).append(LS);
+		out.append("hotKey:").append(String.valueOf(s.hotKey)).append(LS);
+		out.append("unknown0:").append(String.valueOf(s.unknown0)).append(LS);
+		if(s.fileLocationInfo != null)
+			text(s.fileLocationInfo, "\t", out);
+		textLine("description:", s.description, out);
+		textLine("relativePath:", s.relativePath, out);
+		textLine("workingDirectory:", s.workingDirectory, out);
+		textLine("commandLine:", s.commandLine, out);
+		textLine("iconFileName:", s.iconFileName, out);
+		textLine("something:", s.something, out);
+	}
+
+	public static void text(Shortcut.ShellItemID id, Appendable out) throws IOException
+	{
+		out.append("ShellItemId: ");
+		hexDump(id.content, out);
+		out.append('\n').append("ShellItemIdAscii: ");
+		asciiDump(id.content, out);
+	}
+
+	public static void text(Shortcut.FileLocationInfo fli, String indent, Appendable out) throws IOException
+	{
+		String ind = (indent == null)
+		        ? ""
+		        : indent;
+		out.append("fileLocationInfo:").append(LS);
+		out.append(ind).append("length:").append(String.valueOf(fli.length)).append(LS);
+		out.append(ind).append("offset:").append(String.valueOf(fli.offset)).append(LS);
+		out.append(ind).append("flags:");
+		if((fli.flags & Shortcut.FF_LOCAL) > 0)
+			out.append("local;");
+		if((fli.flags & Shortcut.FF_NETWORK) > 0)
+			out.append("network;");
+		out.append(LS);
+		if(fli.lvt != null)
+			text(fli.lvt, ind + ind, out.append(ind));
+		if(fli.nvt != null)
+			text(fli.nvt, ind + ind, out.append(ind));
+	}
+
+	public static void text(Shortcut.LocalVolumeTable lvt, String indent, Appendable out) throws IOException
+	{
+		String ind = (indent == null)
+		        ? ""
+		        : indent;
+		out.append("LocalVolumeTable:").append(LS);
+		out.append(ind).append("length:").append(String.valueOf(lvt.length)).append(LS);
+		out.append(ind).append("type:").append(String.valueOf(lvt.type)).append(LS);
+		out.append(ind).append("serial:").append(String.valueOf(lvt.serial)).append(LS);
+		out.append(ind).append("offVL:").append(String.valueOf(lvt.offVL)).append(LS);
+		if(lvt.volumeLabel != null)
+			out.append(ind).append(lvt.volumeLabel).append(LS);
+	}
+
+	public static void text(Shortcut.NetworkVolumeTable nvt, String indent, Appendable out) throws IOException
+	{
+		String ind = (indent == null)
+		        ? ""
+		        : indent;
+		out.append("NetworkVolumeTable:").append(LS);
+		out.append(ind).append("length:").append(String.valueOf(nvt.length)).append(LS);
+		out.append(ind).append("unknown0:").append(String.valueOf(nvt.unknown0)).append(LS);
+		out.append(ind).append("offNS:").append(String.valueOf(nvt.offNS)).append(LS);
+		out.append(ind).append("unknown1:").append(String.valueOf(nvt.unknown1)).append(LS);
+		out.append(ind).append("unknown2:").append(String.valueOf(nvt.unknown2)).append(LS);
+		if(nvt.shareName != null)
+			out.append(ind).append("shareName:").append(nvt.shareName).append(LS);
+		if(nvt.localShareMapping != null)
+			out.append(ind).append("localShareMapping:").append(nvt.localShareMapping).append(LS);
+	}
+
+	/**
+	 * All values of a shortcut as a JSON object, including the paths of the
+	 * file location and the shell item ids as hex strings
+	 */
+	public static void json(Shortcut s, Appendable out) throws IOException
+	{
+		out.append("{\n");
+		out.append("  \"flags\": ").append(String.valueOf(s.flags));
+		out.append(",\n  \"flagNames\": ");
+		quote(Shortcut.describeFlags(s.flags), out);
+		out.append(",\n  \"attributes\": ").append(String.valueOf(s.attributes));
+		out.append(",\n  \"cTime\": ").append(String.valueOf(s.cTime));
+		out.append(",\n  \"mTime\": ").append(String.valueOf(s.mTime));
+		out.append(",\n  \"aTime\": ").append(String.valueOf(s.aTime));
+		out.append(",\n  \"fileLength\": ").append(String.valueOf(s.fileLength));
+		out.append(",\n  \"iconID\": ").append(String.valueOf(s.iconID));
+		out.append(",\n  \"showWnd\": ");
+		quote(Shortcut.describeShowWnd(s.showWnd), out);
+		out.append(",\n  \"hotKey\": ").append(String.valueOf(s.hotKey));
+		out.append(",\n  \"description\": ");
+		quote(s.description, out);
+		out.append(",\n  \"relativePath\": ");
+		quote(s.relativePath, out);
+		out.append(",\n  \"workingDirectory\": ");
+		quote(s.workingDirectory, out);
+		out.append(",\n  \"commandLine\": ");
+		quote(s.commandLine, out);
+		out.append(",\n  \"iconFileName\": ");
+		quote(s.iconFileName, out);
+		out.append(",\n  \"something\": ");
+		quote(s.something, out);
+
+		out.append(",\n  \"fileLocationInfo\": ");
+		Shortcut.FileLocationInfo fli = s.fileLocationInfo;
+		if(fli == null)
+			out.append("null");
+		else
+		{
+			out.append("{\"length\": ").append(String.valueOf(fli.length));
+			out.append(", \"flags\": ").append(String.valueOf(fli.flags));
+			out.append(", \"basePathName\": ");
+			quote(fli.basePathName, out);
+			out.append(", \"remainingPathName\": ");
+			quote(fli.remainingPathName, out);
+			if(fli.lvt != null)
+			{
+				out.append(", \"localVolume\": {\"type\": ").append(String.valueOf(fli.lvt.type));
+				out.append(", \"serial\": ").append(String.valueOf(fli.lvt.serial));
+				out.append(", \"volumeLabel\": ");
+				quote(fli.lvt.volumeLabel, out);
+				out.append('}');
+			}
+			if(fli.nvt != null)
+			{
+				out.append(", \"networkVolume\": {\"shareName\": ");
+				quote(fli.nvt.shareName, out);
+				out.append(", \"localShareMapping\": ");
+				quote(fli.nvt.localShareMapping, out);
+				out.append('}');
+			}
+			out.append('}');
+		}
+
+		out.append(",\n  \"shellItemIDList\": ");
+		if(s.shellItemIDList == null)
+			out.append("null");
+		else
+		{
+			out.append('[');
+			String separator = "\n";
+			for(Shortcut.ShellItemID id: s.shellItemIDList)
+			{
+				out.append(separator).append("    \"");
+				for(byte b: id.content)
+					appendHex(b, out);
+				out.append('"');
+				separator = ",\n";
+			}
+			out.append(s.shellItemIDList.isEmpty()
+			        ? "]"
+			        : "\n  ]");
+		}
+		out.append("\n}\n");
+	}
+
+	/*
+	 * Line of toString, only for values which are set
+	 */
+	private static void textLine(String name, String value, Appendable out) throws IOException
+	{
+		if(value != null)
+			out.append(name).append(value).append(LS);
+	}
+
+	private static void appendHex(byte b, Appendable out) throws IOException
+	{
+		out.append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+	}
+
+	private static void quote(String value, Appendable out) throws IOException
+	{
+		if(value == null)
+		{
+			out.append("null");
+			return;
+		}
+
+		out.append('"');
+		for(int i = 0; i < value.length(); ++i)
+		{
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if(c < 0x20)
+				out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0x0F]);
+			else
+				out.append(c);
+		}
+		out.append('"');
+	}
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of the shortcuts found by a ShortcutScanner, queried by the paths
+ * they refer to. Paths are compared case insensitively with '/' and '\' as
+ * equal separators, like Windows does. Working directories and icons are
+ * shared by many shortcuts, they are stored once.
+ *
+ * Example, the shortcuts which still point into an old installation:
+ *
+ * <pre>
+ * ShortcutIndex index = new ShortcutIndex();
+ * new ShortcutScanner(8).scan(profiles, index);
+ * index.findOutdated(&quot;C:\\Temp\\app\\versions&quot;, &quot;C:\\Temp\\app\\versions\\2.1-k3x9&quot;);
+ * </pre>
+ */
+public class ShortcutIndex implements ShortcutScanner.Listener
+{
+	/**
+	 * Condition of a query
+	 */
+	public interface Filter
+	{
+		boolean accept(ShortcutScanner.Entry entry);
+	}
+
+	private final List<ShortcutScanner.Entry> entries  = new ArrayList<ShortcutScanner.Entry>();
+
+	private final List<File>                  failures = new ArrayList<File>();
+
+	private final Map<String, String>         strings  = new HashMap<String, String>();
+
+	public synchronized void found(ShortcutScanner.Entry entry)
+	{
+		entries.add(new ShortcutScanner.Entry(entry.getFile(), entry.getTarget(), share(entry.getWorkingDirectory()),
+		        entry.getCommandLine(), share(entry.getIconFileName())));
+	}
+
+	public synchronized void failed(File file, Exception error)
+	{
+		failures.add(file);
+	}
+
+	/**
+	 * Number of indexed shortcuts
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Files and directories which couldn't be scanned
+	 */
+	public synchronized List<File> getFailures()
+	{
+		return new ArrayList<File>(failures);
+	}
+
+	/**
+	 * All shortcuts accepted by filter
+	 */
+	public synchronized List<ShortcutScanner.Entry> find(Filter filter)
+	{
+		List<ShortcutScanner.Entry> found = new ArrayList<ShortcutScanner.Entry>();
+		for(ShortcutScanner.Entry entry: entries)
+		{
+			if(filter.accept(entry))
+				found.add(entry);
+		}
+		return found;
+	}
+
+	/**
+	 * Shortcuts whose target, working directory or icon is dir or inside of
+	 * it, or whose command line contains such a path
+	 */
+	public List<ShortcutScanner.Entry> findReferencing(String dir)
+	{
+		final String prefix = normalize(dir);
+		return find(new Filter() {
+			public boolean accept(ShortcutScanner.Entry entry)
+			{
+				return refers(entry, prefix);
+			}
+		});
+	}
+
+	/**
+	 * Shortcuts referring to a path inside installDir, but not inside
+	 * currentDir. With the versions directory of an application and the
+	 * directory of its active version these are the shortcuts which still
+	 * point into a replaced version.
+	 */
+	public List<ShortcutScanner.Entry> findOutdated(String installDir, String currentDir)
+	{
+		final String install = normalize(installDir);
+		final String current = normalize(currentDir);
+		return find(new Filter() {
+			public boolean accept(ShortcutScanner.Entry entry)
+			{
+				return refers(entry, install) && !refers(entry, current);
+			}
+		});
+	}
+
+	/*
+	 * Whether a path of entry is inside the normalized directory prefix
+	 */
+	private static boolean refers(ShortcutScanner.Entry entry, String prefix)
+	{
+		return isInside(entry.getTarget(), prefix) || isInside(entry.getWorkingDirectory(), prefix)
+		        || isInside(entry.getIconFileName(), prefix) || contains(entry.getCommandLine(), prefix);
+	}
+
+	private static boolean isInside(String path, String prefix)
+	{
+		if(path == null)
+			return false;
+
+		String normalized = normalize(unquote(path));
+		return normalized.startsWith(prefix)
+		        && (normalized.length() == prefix.length() || normalized.charAt(prefix.length()) == '\\');
+	}
+
+	private static boolean contains(String commandLine, String prefix)
+	{
+		if(commandLine == null)
+			return false;
+
+		String normalized = normalize(commandLine);
+		for(int i = normalized.indexOf(prefix); i >= 0; i = normalized.indexOf(prefix, i + 1))
+		{
+			int end = i + prefix.length();
+			if(end == normalized.length() || " \\\"".indexOf(normalized.charAt(end)) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static String unquote(String path)
+	{
+		return (path.length() >= 2 && path.startsWith("\"") && path.endsWith("\""))
+		        ? path.substring(1, path.length() - 1)
+		        : path;
+	}
+
+	/*
+	 * Lower case with backslashes and without trailing separator
+	 */
+	private static String normalize(String path)
+	{
+		String normalized = path.replace('/', '\\').toLowerCase(Locale.ENGLISH);
+		while(normalized.length() > 1 && normalized.endsWith("\\"))
+			normalized = normalized.substring(0, normalized.length() - 1);
+		return normalized;
+	}
+
+	private String share(String s)
+	{
+		if(s == null)
+			return null;
+
+		String shared = strings.get(s);
+		if(shared == null)
+		{
+			strings.put(s, s);
+			shared = s;
+		}
+		return shared;
+	}
+}
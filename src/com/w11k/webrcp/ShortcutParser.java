@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Vector;
+
+/**
+ * Parser of shortcut files which decodes the structure in place. Parsing only
+ * reads the header and records the position of every section, strings and
+ * nested structures are decoded when they are requested. The file is read
+ * into a buffer which is reused for the next file, large files are mapped.
+ * Parsing many shortcuts with one parser and reading only the needed fields
+ * allocates hardly anything besides the returned strings.
+ *
+ * A parser is not thread safe. The values of a parsed shortcut are available
+ * until the next call of parse.
+ */
+class ShortcutParser
+{
+	/*
+	 * Files larger than this are mapped instead of read into the buffer
+	 */
+	private static final int     MAP_THRESHOLD = 64 * 1024;
+
+	/*
+	 * Charset of the ANSI strings, which depends on the system creating the
+	 * shortcut
+	 */
+	private static final Charset ANSI          = Charset.defaultCharset();
+
+	private static final int     HEADER_SIZE   = 0x4C;
+
+	/*
+	 * Indices of the counted UTF-16 strings following the location
+	 */
+	private static final int     DESCRIPTION   = 0, RELATIVE_PATH = 1, WORKING_DIRECTORY = 2, COMMAND_LINE = 3,
+	        ICON_FILE_NAME = 4;
+
+	private static final int[]   STRING_FLAGS  = new int[] {
+	        Shortcut.F_DESCRIPTION,
+	        Shortcut.F_RELATIVE_PATH,
+	        Shortcut.F_WORKING_DIRECTORY,
+	        Shortcut.F_COMMAND_LINE,
+	        Shortcut.F_CUSTOM_ICON                };
+
+	private ByteBuffer           readBuffer    = ByteBuffer.allocate(4096);
+
+	private ByteBuffer           buffer;
+
+	private int                  flags, idList, location, something;
+
+	/*
+	 * Position and number of characters of every string, -1 if not present
+	 */
+	private final int[]          strings       = new int[STRING_FLAGS.length];
+
+	private final int[]          lengths       = new int[STRING_FLAGS.length];
+
+	/**
+	 * Parse the shortcut file
+	 */
+	public ShortcutParser parse(File file) throws IOException, MalformedShortcutException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			long size = channel.size();
+			if(size > MAP_THRESHOLD)
+				return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+
+			if(size > readBuffer.capacity())
+				readBuffer = ByteBuffer.allocate((int) size);
+			readBuffer.clear();
+			readBuffer.limit((int) size);
+			while(readBuffer.hasRemaining())
+			{
+				if(channel.read(readBuffer) < 0)
+					throw new IOException("error ocurred while reading file: " + file.getAbsolutePath());
+			}
+			readBuffer.flip();
+			return parse(readBuffer);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Parse the shortcut between position and limit of bytes. The buffer must
+	 * not be modified while the shortcut is used.
+	 */
+	public ShortcutParser parse(ByteBuffer bytes) throws MalformedShortcutException
+	{
+		buffer = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			if(!matches(Shortcut._headerEl, 0x00))
+				throw new MalformedShortcutException("bad header");
+			if(!matches(Shortcut._headerGUID, 0x04))
+				throw new MalformedShortcutException("bad GUID");
+			flags = buffer.getInt(0x14);
+
+			int offset = HEADER_SIZE;
+			idList = -1;
+			if((flags & Shortcut.F_ID_LIST) != 0)
+			{
+				idList = offset;
+				offset += checkIDList(offset) + 2;
+			}
+
+			location = -1;
+			if((flags & Shortcut.F_LOCATION) != 0)
+			{
+				location = offset;
+				offset += check(offset, buffer.getInt(offset));
+			}
+
+			for(int i = 0; i < STRING_FLAGS.length; ++i)
+			{
+				strings[i] = -1;
+				if((flags & STRING_FLAGS[i]) != 0)
+				{
+					lengths[i] = buffer.getShort(offset) & 0xFFFF;
+					strings[i] = offset + 2;
+					offset += check(offset, 2 + lengths[i] * 2);
+				}
+			}
+
+			// Shortcuts written by getBytes set the flag without the block
+			something = -1;
+			if((flags & Shortcut.F_SOMETHING) != 0 && offset + 2 <= buffer.limit())
+			{
+				something = offset;
+				check(offset, 2 + (buffer.getShort(offset) & 0xFFFF));
+			}
+			return this;
+		}
+		catch(IndexOutOfBoundsException ex)
+		{
+			throw new MalformedShortcutException("truncated shortcut", ex);
+		}
+		catch(BufferUnderflowException ex)
+		{
+			throw new MalformedShortcutException("truncated shortcut", ex);
+		}
+	}
+
+	/**
+	 * Create a shortcut with all values of the parsed one
+	 */
+	public Shortcut toShortcut() throws MalformedShortcutException
+	{
+		Shortcut scut = new Shortcut();
+		scut.flags = flags;
+		scut.attributes = getAttributes();
+		scut.cTime = buffer.getLong(0x1C);
+		scut.mTime = buffer.getLong(0x24);
+		scut.aTime = buffer.getLong(0x2C);
+		scut.fileLength = getFileLength();
+		scut.iconID = getIconID();
+		scut.showWnd = getShowWnd();
+		scut.hotKey = buffer.getInt(0x40);
+		scut.unknown0 = buffer.getLong(0x44);
+		if(idList >= 0)
+			scut.shellItemIDList = getShellItemIDList();
+		scut.fileLocationInfo = getFileLocationInfo();
+		scut.description = getDescription();
+		scut.relativePath = getRelativePath();
+		scut.workingDirectory = getWorkingDirectory();
+		scut.commandLine = getCommandLine();
+		scut.iconFileName = getIconFileName();
+		scut.something = getSomething();
+		return scut;
+	}
+
+	public int getFlags()
+	{
+		return flags;
+	}
+
+	public int getAttributes()
+	{
+		return buffer.getInt(0x18);
+	}
+
+	public int getFileLength()
+	{
+		return buffer.getInt(0x34);
+	}
+
+	public int getIconID()
+	{
+		return buffer.getInt(0x38);
+	}
+
+	public int getShowWnd()
+	{
+		return buffer.getInt(0x3C);
+	}
+
+	public String getDescription()
+	{
+		return getString(DESCRIPTION);
+	}
+
+	public String getRelativePath()
+	{
+		return getString(RELATIVE_PATH);
+	}
+
+	public String getWorkingDirectory()
+	{
+		return getString(WORKING_DIRECTORY);
+	}
+
+	public String getCommandLine()
+	{
+		return getString(COMMAND_LINE);
+	}
+
+	public String getIconFileName()
+	{
+		return getString(ICON_FILE_NAME);
+	}
+
+	/**
+	 * Decode the shell item ids, null if the shortcut has none
+	 */
+	public Vector<Shortcut.ShellItemID> getShellItemIDList()
+	{
+		if(idList < 0)
+			return null;
+
+		Vector<Shortcut.ShellItemID> list = new Vector<Shortcut.ShellItemID>();
+		int offset = idList + 2;
+		int length;
+		while((length = buffer.getShort(offset) & 0xFFFF) != 0)
+		{
+			list.add(new Shortcut.ShellItemID(getBytes(offset + 2, length - 2)));
+			offset += length;
+		}
+		return list;
+	}
+
+	/**
+	 * Decode the location of the target, null if the shortcut has none
+	 */
+	public Shortcut.FileLocationInfo getFileLocationInfo() throws MalformedShortcutException
+	{
+		if(location < 0)
+			return null;
+
+		try
+		{
+			int offset = location;
+			Shortcut.FileLocationInfo fli = new Shortcut.FileLocationInfo();
+			fli.length = buffer.getInt(offset + 0x00);
+			fli.offset = buffer.getInt(offset + 0x04);
+			fli.flags = buffer.getInt(offset + 0x08);
+			if((fli.flags & Shortcut.FF_LOCAL) != 0)
+			{
+				fli.offLVI = buffer.getInt(offset + 0x0C);
+				fli.offLBP = buffer.getInt(offset + 0x10);
+				Shortcut.LocalVolumeTable lvt = new Shortcut.LocalVolumeTable();
+				lvt.length = buffer.getInt(offset + 0x1C);
+				lvt.type = buffer.getInt(offset + 0x20);
+				lvt.serial = buffer.getInt(offset + 0x24);
+				lvt.offVL = buffer.getInt(offset + 0x28);
+				lvt.volumeLabel = getAnsiString(offset + 0x2C, lvt.length - 0x10 - 1);
+				fli.lvt = lvt;
+				fli.basePathName = getAnsiString(offset + fli.offLBP, fli.length - fli.offLBP - 2);
+			}
+			else if((fli.flags & Shortcut.FF_NETWORK) != 0)
+			{
+				fli.offNVI = buffer.getInt(offset + 0x14);
+				int nvi = offset + fli.offNVI;
+				Shortcut.NetworkVolumeTable nvt = new Shortcut.NetworkVolumeTable();
+				nvt.length = buffer.getInt(nvi);
+				nvt.unknown0 = buffer.getInt(nvi + 0x04);
+				nvt.offNS = buffer.getInt(nvi + 0x08);
+				nvt.unknown1 = buffer.getInt(nvi + 0x0C);
+				nvt.unknown2 = buffer.getInt(nvi + 0x10);
+				nvt.shareName = getAnsiString(nvi + nvt.offNS, nvt.length - 0x14 - nvt.unknown0 - 1);
+				if(nvt.unknown1 > 0)
+					nvt.localShareMapping = getAnsiString(nvi + nvt.unknown1, nvt.unknown0 - 1);
+				fli.nvt = nvt;
+			}
+			else
+			{
+				throw new MalformedShortcutException("corrupted FileLocationInfo structure, field 'flag'==0");
+			}
+			fli.offRPN = buffer.getInt(offset + 0x18);
+			fli.remainingPathName = getAnsiString(offset + fli.offRPN, fli.length - fli.offRPN - 1);
+			return fli;
+		}
+		catch(IndexOutOfBoundsException ex)
+		{
+			throw new MalformedShortcutException("corrupted FileLocationInfo structure", ex);
+		}
+	}
+
+	/*
+	 * Content of the block following the strings, only decoded if it's
+	 * longer than its header
+	 */
+	String getSomething()
+	{
+		if(something < 0)
+			return null;
+
+		int length = buffer.getShort(something) & 0xFFFF;
+		return (length > 0x10)
+		        ? getAnsiString(something + 0x10, length - 0x10)
+		        : null;
+	}
+
+	/*
+	 * Validate the shell item id list at offset and return its length
+	 */
+	private int checkIDList(int offset) throws MalformedShortcutException
+	{
+		int total = buffer.getShort(offset) & 0xFFFF;
+		check(offset, total + 2);
+		int position = 2;
+		int length;
+		while((length = buffer.getShort(offset + position) & 0xFFFF) != 0)
+		{
+			if(length < 2 || position + length > total)
+				throw new MalformedShortcutException("malformed ShiellItemIdList");
+			position += length;
+		}
+		if(position != total)
+			throw new MalformedShortcutException("malformed ShiellItemIdList");
+		return total;
+	}
+
+	/*
+	 * Check that length bytes from offset are within the shortcut, return
+	 * length
+	 */
+	private int check(int offset, int length) throws MalformedShortcutException
+	{
+		if(length < 0 || offset + length > buffer.limit())
+			throw new MalformedShortcutException("truncated shortcut");
+		return length;
+	}
+
+	private boolean matches(byte[] pattern, int offset)
+	{
+		if(offset + pattern.length > buffer.limit())
+			return false;
+		for(int i = 0; i < pattern.length; ++i)
+		{
+			if(buffer.get(offset + i) != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	private String getString(int index)
+	{
+		int offset = strings[index];
+		if(offset < 0)
+			return null;
+
+		int length = lengths[index] * 2;
+		if(buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_16LE);
+
+		char[] chars = new char[lengths[index]];
+		for(int i = 0; i < chars.length; ++i)
+			chars[i] = buffer.getChar(offset + 2 * i);
+		return new String(chars);
+	}
+
+	/*
+	 * Decode a zero terminated ANSI string of at most length bytes
+	 */
+	private String getAnsiString(int offset, int length)
+	{
+		length = Math.max(0, Math.min(length, buffer.limit() - offset));
+		int end = 0;
+		while(end < length && buffer.get(offset + end) != 0)
+			++end;
+
+		if(buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset, end, ANSI);
+		return new String(getBytes(offset, end), ANSI);
+	}
+
+	private byte[] getBytes(int offset, int length)
+	{
+		byte[] bytes = new byte[length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates many shortcut files at once, e.g. the desktop and start menu
+ * shortcuts of every profile on a terminal server. The shortcuts are
+ * serialized and written by a pool of threads. Every file is written to a
+ * temporary file next to it and renamed, so a shortcut is either missing or
+ * complete, never truncated. A target which fails doesn't stop the others,
+ * its error is part of the result.
+ */
+public class ShortcutProvisioner
+{
+	/**
+	 * Shortcut to write to a file
+	 */
+	public static class Target
+	{
+		private final File     file;
+
+		private final Shortcut shortcut;
+
+		public Target(File file, Shortcut shortcut)
+		{
+			this.file = file;
+			this.shortcut = shortcut;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		public Shortcut getShortcut()
+		{
+			return shortcut;
+		}
+	}
+
+	/**
+	 * Target which couldn't be written
+	 */
+	public static class Failure
+	{
+		private final Target      target;
+
+		private final IOException error;
+
+		Failure(Target target, IOException error)
+		{
+			this.target = target;
+			this.error = error;
+		}
+
+		public Target getTarget()
+		{
+			return target;
+		}
+
+		public IOException getError()
+		{
+			return error;
+		}
+
+		@Override
+		public String toString()
+		{
+			return target.getFile() + ": " + error;
+		}
+	}
+
+	/**
+	 * Outcome of a batch
+	 */
+	public static class Result
+	{
+		private final int           written;
+
+		private final long          bytes;
+
+		private final long          millis;
+
+		private final List<Failure> failures;
+
+		Result(int written, long bytes, long millis, List<Failure> failures)
+		{
+			this.written = written;
+			this.bytes = bytes;
+			this.millis = millis;
+			this.failures = Collections.unmodifiableList(failures);
+		}
+
+		/**
+		 * Number of shortcuts written
+		 */
+		public int getWritten()
+		{
+			return written;
+		}
+
+		/**
+		 * Number of bytes written
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * Duration of the batch in milliseconds
+		 */
+		public long getMillis()
+		{
+			return millis;
+		}
+
+		/**
+		 * Shortcuts written per second
+		 */
+		public double getThroughput()
+		{
+			return written * 1000.0 / Math.max(1, millis);
+		}
+
+		/**
+		 * Failed targets in the order they were passed
+		 */
+		public List<Failure> getFailures()
+		{
+			return failures;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Created " + written + " shortcuts, " + (bytes >> 10) + " KB in " + millis + " ms ("
+			        + (long) getThroughput() + " shortcuts/s), " + failures.size() + " failed";
+		}
+	}
+
+	private final int                      parallelism;
+
+	/*
+	 * Writer of every thread, which reuses its buffer
+	 */
+	private final ThreadLocal<ShortcutWriter> writers = new ThreadLocal<ShortcutWriter>() {
+		@Override
+		protected ShortcutWriter initialValue()
+		{
+			return new ShortcutWriter();
+		}
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param parallelism number of threads writing concurrently
+	 */
+	public ShortcutProvisioner(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Write all targets and wait until they are done. Missing parent
+	 * directories are created, existing files are replaced.
+	 *
+	 * @throws InterruptedException if interrupted while waiting, the
+	 *             remaining targets are not written
+	 */
+	public Result provision(List<Target> targets) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		final IOException[] errors = new IOException[targets.size()];
+		final AtomicInteger written = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, targets.size())),
+		        new ThreadFactory() {
+			        private final AtomicInteger count = new AtomicInteger();
+
+			        public Thread newThread(Runnable r)
+			        {
+				        Thread thread = new Thread(r, "WebRCP-Shortcuts-" + count.incrementAndGet());
+				        thread.setDaemon(true);
+				        return thread;
+			        }
+		        });
+
+		for(int i = 0; i < targets.size(); ++i)
+		{
+			final int index = i;
+			final Target target = targets.get(i);
+			workers.execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						bytes.addAndGet(write(target));
+						written.incrementAndGet();
+					}
+					catch(IOException ex)
+					{
+						errors[index] = ex;
+					}
+					catch(RuntimeException ex)
+					{
+						errors[index] = new IOException(ex.toString(), ex);
+					}
+				}
+			});
+		}
+
+		workers.shutdown();
+		try
+		{
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		List<Failure> failures = new ArrayList<Failure>();
+		for(int i = 0; i < errors.length; ++i)
+		{
+			if(errors[i] != null)
+				failures.add(new Failure(targets.get(i), errors[i]));
+		}
+
+		return new Result(written.get(), bytes.get(), System.currentTimeMillis() - start, failures);
+	}
+
+	/*
+	 * Write a shortcut to a temporary file in the directory of the target and
+	 * rename it to the target, so readers never see a partial file
+	 */
+	private long write(Target target) throws IOException
+	{
+		File file = target.getFile().getAbsoluteFile();
+		File dir = file.getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Can't create directory " + dir);
+
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+		try
+		{
+			FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE,
+			        StandardOpenOption.TRUNCATE_EXISTING);
+			try
+			{
+				writers.get().write(target.getShortcut(), out);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			try
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				        StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch(AtomicMoveNotSupportedException ex)
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(tmpFile.toPath());
+		}
+		return ShortcutWriter.size(target.getShortcut());
+	}
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the shortcut files in a directory tree, e.g. the profiles on a
+ * mounted share, and parses them with a fork-join pool. Every directory is a
+ * task, large directories are split into batches of files. The fields of
+ * every shortcut are passed to a listener as soon as it is parsed, nothing
+ * is kept, so the memory used by a scan doesn't grow with the number of
+ * files. Files which can't be read or parsed are reported to the listener
+ * and skipped.
+ */
+public class ShortcutScanner
+{
+	/**
+	 * Receives the scanned shortcuts. It is called concurrently by the
+	 * threads of the scan.
+	 */
+	public interface Listener
+	{
+		/**
+		 * A shortcut was parsed
+		 */
+		void found(Entry entry);
+
+		/**
+		 * A shortcut or directory couldn't be read or parsed
+		 */
+		void failed(File file, Exception error);
+	}
+
+	/**
+	 * Fields of a scanned shortcut
+	 */
+	public static class Entry
+	{
+		private final File   file;
+
+		private final String target;
+
+		private final String workingDirectory;
+
+		private final String commandLine;
+
+		private final String iconFileName;
+
+		Entry(File file, String target, String workingDirectory, String commandLine, String iconFileName)
+		{
+			this.file = file;
+			this.target = target;
+			this.workingDirectory = workingDirectory;
+			this.commandLine = commandLine;
+			this.iconFileName = iconFileName;
+		}
+
+		/**
+		 * The shortcut file
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Path of the file the shortcut points to, from its location or its
+		 * relative path. null if it has neither.
+		 */
+		public String getTarget()
+		{
+			return target;
+		}
+
+		public String getWorkingDirectory()
+		{
+			return workingDirectory;
+		}
+
+		public String getCommandLine()
+		{
+			return commandLine;
+		}
+
+		public String getIconFileName()
+		{
+			return iconFileName;
+		}
+
+		@Override
+		public String toString()
+		{
+			return file + " -> " + target;
+		}
+	}
+
+	/**
+	 * Outcome of a scan
+	 */
+	public static class Result
+	{
+		private final int  found;
+
+		private final int  failed;
+
+		private final long millis;
+
+		Result(int found, int failed, long millis)
+		{
+			this.found = found;
+			this.failed = failed;
+			this.millis = millis;
+		}
+
+		/**
+		 * Number of shortcuts passed to the listener
+		 */
+		public int getFound()
+		{
+			return found;
+		}
+
+		/**
+		 * Number of files and directories which couldn't be read or parsed
+		 */
+		public int getFailed()
+		{
+			return failed;
+		}
+
+		public long getMillis()
+		{
+			return millis;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Scanned " + found + " shortcuts in " + millis + " ms ("
+			        + (found * 1000L / Math.max(1, millis)) + " shortcuts/s), " + failed + " failed";
+		}
+	}
+
+	private static final String EXTENSION = ".lnk";
+
+	/*
+	 * Number of files parsed by one task
+	 */
+	private static final int    BATCH     = 64;
+
+	/*
+	 * Parser of every thread, which reuses its buffer
+	 */
+	private static final ThreadLocal<ShortcutParser> PARSERS = new ThreadLocal<ShortcutParser>() {
+		@Override
+		protected ShortcutParser initialValue()
+		{
+			return new ShortcutParser();
+		}
+	};
+
+	private final int           parallelism;
+
+	/**
+	 * Constructor
+	 *
+	 * @param parallelism number of threads parsing concurrently
+	 */
+	public ShortcutScanner(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Scan the tree below root and wait until it is done. Symbolic links to
+	 * directories are not followed.
+	 */
+	public Result scan(File root, Listener listener)
+	{
+		long start = System.currentTimeMillis();
+		Scan scan = new Scan(listener);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			pool.invoke(new DirectoryTask(scan, root.toPath()));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		return new Result(scan.found.get(), scan.failed.get(), System.currentTimeMillis() - start);
+	}
+
+	/*
+	 * State shared by the tasks of a scan
+	 */
+	private static class Scan
+	{
+		final Listener      listener;
+
+		final AtomicInteger found  = new AtomicInteger();
+
+		final AtomicInteger failed = new AtomicInteger();
+
+		Scan(Listener listener)
+		{
+			this.listener = listener;
+		}
+
+		void failed(File file, Exception error)
+		{
+			failed.incrementAndGet();
+			listener.failed(file, error);
+		}
+	}
+
+	/*
+	 * Parses the shortcuts of a directory and forks a task for every
+	 * subdirectory and every full batch of shortcuts
+	 */
+	private static class DirectoryTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Scan        scan;
+
+		private final Path        dir;
+
+		DirectoryTask(Scan scan, Path dir)
+		{
+			this.scan = scan;
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			List<Path> batch = new ArrayList<Path>(BATCH);
+			try
+			{
+				DirectoryStream<Path> children = Files.newDirectoryStream(dir);
+				try
+				{
+					for(Path child: children)
+					{
+						BasicFileAttributes attrs =
+						        Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if(attrs.isDirectory())
+						{
+							tasks.add(fork(new DirectoryTask(scan, child)));
+						}
+						else if(attrs.isRegularFile()
+						        && child.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(EXTENSION))
+						{
+							batch.add(child);
+							if(batch.size() == BATCH)
+							{
+								tasks.add(fork(new BatchTask(scan, batch)));
+								batch = new ArrayList<Path>(BATCH);
+							}
+						}
+					}
+				}
+				finally
+				{
+					children.close();
+				}
+			}
+			catch(IOException ex)
+			{
+				scan.failed(dir.toFile(), ex);
+			}
+
+			parse(scan, batch);
+			for(RecursiveAction task: tasks)
+				task.join();
+		}
+
+		private static RecursiveAction fork(RecursiveAction task)
+		{
+			task.fork();
+			return task;
+		}
+	}
+
+	/*
+	 * Parses a batch of shortcuts
+	 */
+	private static class BatchTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Scan        scan;
+
+		private final List<Path>  files;
+
+		BatchTask(Scan scan, List<Path> files)
+		{
+			this.scan = scan;
+			this.files = files;
+		}
+
+		@Override
+		protected void compute()
+		{
+			parse(scan, files);
+		}
+	}
+
+	private static void parse(Scan scan, List<Path> files)
+	{
+		ShortcutParser parser = PARSERS.get();
+		for(Path path: files)
+		{
+			File file = path.toFile();
+			Entry entry;
+			try
+			{
+				parser.parse(file);
+				entry =
+				        new Entry(file, getTarget(parser), parser.getWorkingDirectory(), parser.getCommandLine(),
+				                parser.getIconFileName());
+			}
+			catch(IOException ex)
+			{
+				scan.failed(file, ex);
+				continue;
+			}
+			catch(MalformedShortcutException ex)
+			{
+				scan.failed(file, ex);
+				continue;
+			}
+			scan.found.incrementAndGet();
+			scan.listener.found(entry);
+		}
+	}
+
+	/*
+	 * Path of the target, from the location written by Windows, otherwise
+	 * the relative path which WebRCP sets to the path of the executable
+	 */
+	private static String getTarget(ShortcutParser parser) throws MalformedShortcutException
+	{
+		Shortcut.FileLocationInfo fli = parser.getFileLocationInfo();
+		if(fli != null)
+		{
+			String remaining = (fli.remainingPathName != null)
+			        ? fli.remainingPathName
+			        : "";
+			if(fli.lvt != null && fli.basePathName != null)
+				return fli.basePathName + remaining;
+			if(fli.nvt != null && fli.nvt.shareName != null)
+				return (remaining.length() > 0)
+				        ? fli.nvt.shareName + "\\" + remaining
+				        : fli.nvt.shareName;
+		}
+		return parser.getRelativePath();
+	}
+}
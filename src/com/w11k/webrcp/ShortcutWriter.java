@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serializer of shortcuts in a single pass. The size is computed once from
+ * the string lengths without encoding anything, then every field is written
+ * straight to its position in the target buffer. UTF-16 strings are written
+ * char by char, ASCII strings byte by byte, so no intermediate arrays and no
+ * charset encoders are needed.
+ *
+ * The layout is the one of the previous Shortcut.getBytes, including the
+ * four zero bytes at the end and the offsets of the file location, which is
+ * written as produced by Windows. Unlike the previous code, the volume
+ * tables are written completely: it cleared the byte of the local volume
+ * table at the length of the label and the byte of the network volume table
+ * at the length of the share name, which hit the type, serial or label for
+ * some label lengths and the offset of share names with 8 chars.
+ * ShortcutWriterTest lists these differences against files written by the
+ * previous code.
+ */
+class ShortcutWriter
+{
+	private static final int HEADER_SIZE        = 0x4C;
+
+	/*
+	 * Size of the file location header and its volume tables without strings
+	 */
+	private static final int LOCATION_SIZE      = 7 * 4;
+
+	private static final int LOCAL_VOLUME_SIZE  = 4 * 4;
+
+	private static final int NETWORK_VOLUME_SIZE = 5 * 4;
+
+	/*
+	 * Zero bytes following the strings, an empty extra data block
+	 */
+	private static final int TRAILER_SIZE       = 4;
+
+	/*
+	 * Buffer for writing to channels, reused for the next shortcut
+	 */
+	private ByteBuffer       buffer             = ByteBuffer.allocate(4096);
+
+	/**
+	 * Exact number of bytes written for shortcut
+	 */
+	public static int size(Shortcut shortcut)
+	{
+		int size = HEADER_SIZE + TRAILER_SIZE;
+		if(shortcut.shellItemIDList != null)
+		{
+			size += 4;
+			for(Shortcut.ShellItemID id: shortcut.shellItemIDList)
+				size += 2 + id.content.length;
+		}
+		size += locationSize(shortcut.fileLocationInfo);
+		size += unicodeSize(shortcut.description);
+		size += unicodeSize(shortcut.relativePath);
+		size += unicodeSize(shortcut.workingDirectory);
+		size += unicodeSize(shortcut.commandLine);
+		size += unicodeSize(shortcut.iconFileName);
+		return size;
+	}
+
+	/**
+	 * Write shortcut at the position of out and advance it by the size of
+	 * the shortcut. The byte order of out is not changed.
+	 *
+	 * @throws java.nio.BufferOverflowException if out has less than size
+	 *             bytes remaining
+	 */
+	public static void write(Shortcut shortcut, ByteBuffer out)
+	{
+		int size = size(shortcut);
+		if(out.remaining() < size)
+			throw new java.nio.BufferOverflowException();
+
+		ByteOrder order = out.order();
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			Shortcut.FileLocationInfo fli = shortcut.fileLocationInfo;
+			boolean location = locationSize(fli) > 0;
+			int flags = Shortcut.F_SOMETHING;
+			flags |= (shortcut.shellItemIDList != null)
+			        ? Shortcut.F_ID_LIST
+			        : 0;
+			flags |= location
+			        ? Shortcut.F_LOCATION
+			        : 0;
+			flags |= (shortcut.description != null)
+			        ? Shortcut.F_DESCRIPTION
+			        : 0;
+			flags |= (shortcut.relativePath != null)
+			        ? Shortcut.F_RELATIVE_PATH
+			        : 0;
+			flags |= (shortcut.workingDirectory != null)
+			        ? Shortcut.F_WORKING_DIRECTORY
+			        : 0;
+			flags |= (shortcut.commandLine != null)
+			        ? Shortcut.F_COMMAND_LINE
+			        : 0;
+			flags |= (shortcut.iconFileName != null)
+			        ? Shortcut.F_CUSTOM_ICON
+			        : 0;
+
+			out.put(Shortcut._headerEl);
+			out.put(Shortcut._headerGUID);
+			out.putInt(flags);
+			out.putInt(shortcut.attributes);
+			out.putLong(shortcut.cTime);
+			out.putLong(shortcut.mTime);
+			out.putLong(shortcut.aTime);
+			out.putInt(shortcut.fileLength);
+			out.putInt(shortcut.iconID);
+			out.putInt(shortcut.showWnd);
+			out.putInt(shortcut.hotKey);
+			out.putLong(shortcut.unknown0);
+
+			if(shortcut.shellItemIDList != null)
+			{
+				int length = 2;
+				for(Shortcut.ShellItemID id: shortcut.shellItemIDList)
+					length += 2 + id.content.length;
+				out.putShort((short) length);
+				for(Shortcut.ShellItemID id: shortcut.shellItemIDList)
+				{
+					out.putShort((short) (id.content.length + 2));
+					out.put(id.content);
+				}
+				out.putShort((short) 0);
+			}
+
+			if(location)
+				putLocation(fli, out);
+
+			putUnicode(shortcut.description, out);
+			putUnicode(shortcut.relativePath, out);
+			putUnicode(shortcut.workingDirectory, out);
+			putUnicode(shortcut.commandLine, out);
+			putUnicode(shortcut.iconFileName, out);
+			out.putInt(0);
+		}
+		finally
+		{
+			out.order(order);
+		}
+	}
+
+	/**
+	 * Write shortcut to channel
+	 */
+	public void write(Shortcut shortcut, WritableByteChannel channel) throws IOException
+	{
+		int size = size(shortcut);
+		if(size > buffer.capacity())
+			buffer = ByteBuffer.allocate(Math.max(size, 2 * buffer.capacity()));
+		buffer.clear();
+		write(shortcut, buffer);
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/*
+	 * Size of the file location, 0 if it isn't written because it has no
+	 * volume table
+	 */
+	private static int locationSize(Shortcut.FileLocationInfo fli)
+	{
+		if(fli == null || (fli.lvt == null && fli.nvt == null))
+			return 0;
+		return LOCATION_SIZE + volumeSize(fli) + asciizSize(fli.basePathName) + asciizSize(fli.remainingPathName);
+	}
+
+	private static int volumeSize(Shortcut.FileLocationInfo fli)
+	{
+		if(fli.lvt != null)
+			return LOCAL_VOLUME_SIZE + asciizSize(fli.lvt.volumeLabel);
+		return NETWORK_VOLUME_SIZE + asciizSize(fli.nvt.shareName) + asciizSize(fli.nvt.localShareMapping);
+	}
+
+	private static void putLocation(Shortcut.FileLocationInfo fli, ByteBuffer out)
+	{
+		int volume = volumeSize(fli);
+		int base = asciizSize(fli.basePathName);
+		out.putInt(locationSize(fli));
+		out.putInt(LOCATION_SIZE);
+		out.putInt((fli.lvt != null)
+		        ? Shortcut.FF_LOCAL
+		        : Shortcut.FF_NETWORK);
+		out.putInt(LOCATION_SIZE);
+		out.putInt(LOCATION_SIZE + volume);
+		out.putInt(LOCATION_SIZE);
+		out.putInt(LOCATION_SIZE + volume + base);
+
+		if(fli.lvt != null)
+		{
+			Shortcut.LocalVolumeTable lvt = fli.lvt;
+			out.putInt(volume);
+			out.putInt(lvt.type);
+			out.putInt(lvt.serial);
+			out.putInt(LOCAL_VOLUME_SIZE);
+			putAsciiz(lvt.volumeLabel, out);
+		}
+		else
+		{
+			Shortcut.NetworkVolumeTable nvt = fli.nvt;
+			int share = asciizSize(nvt.shareName);
+			out.putInt(volume);
+			out.putInt(asciizSize(nvt.localShareMapping));
+			out.putInt(NETWORK_VOLUME_SIZE);
+			out.putInt(NETWORK_VOLUME_SIZE + share);
+			out.putInt(0x140000);
+			putAsciiz(nvt.shareName, out);
+			putAsciiz(nvt.localShareMapping, out);
+		}
+
+		putAsciiz(fli.basePathName, out);
+		putAsciiz(fli.remainingPathName, out);
+	}
+
+	/*
+	 * Size of a string prefixed by its number of UTF-16 chars
+	 */
+	private static int unicodeSize(String s)
+	{
+		return (s != null)
+		        ? 2 + 2 * s.length()
+		        : 0;
+	}
+
+	private static void putUnicode(String s, ByteBuffer out)
+	{
+		if(s == null)
+			return;
+		out.putShort((short) s.length());
+		for(int i = 0; i < s.length(); ++i)
+			out.putChar(s.charAt(i));
+	}
+
+	/*
+	 * Size of a zero terminated ASCII string. Like the US-ASCII encoder,
+	 * every character which isn't ASCII becomes one '?', a surrogate pair
+	 * too.
+	 */
+	private static int asciizSize(String s)
+	{
+		if(s == null)
+			return 0;
+
+		int size = 1;
+		for(int i = 0; i < s.length(); ++i)
+		{
+			if(isSurrogatePair(s, i))
+				++i;
+			++size;
+		}
+		return size;
+	}
+
+	private static void putAsciiz(String s, ByteBuffer out)
+	{
+		if(s == null)
+			return;
+
+		for(int i = 0; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+			if(isSurrogatePair(s, i))
+				++i;
+			out.put((byte) ((c < 0x80)
+			        ? c
+			        : '?'));
+		}
+		out.put((byte) 0);
+	}
+
+	private static boolean isSurrogatePair(String s, int i)
+	{
+		return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+		        && Character.isLowSurrogate(s.charAt(i + 1));
+	}
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timing of the startup. Every phase (version check, download and extraction
+ * of each archive, launcher loading, ...) is recorded as a span with its
+ * duration and the number of bytes it processed. The spans are written as
+ * JSON report into the temporary directory. Optionally they are emitted as
+ * Java Flight Recorder events as well, so they can be correlated with GC and
+ * I/O in a recording.
+ */
+class StartupMetrics
+{
+	/**
+	 * Name of the report inside the temporary directory
+	 */
+	public static final String             FILE_NAME  = "startup-metrics.json";
+
+	/**
+	 * Emits spans to an external recorder
+	 */
+	interface Recorder
+	{
+		Object begin(String name, String detail);
+
+		void end(Object handle, long bytes);
+	}
+
+	/**
+	 * A timed phase. Spans may run concurrently in different threads.
+	 */
+	static class Span
+	{
+		final String    name, detail, thread;
+		final long      start;
+		private Object  handle;
+		volatile long   end        = -1, bytes;
+
+		private Span(String name, String detail)
+		{
+			this.name = name;
+			this.detail = detail;
+			thread = Thread.currentThread().getName();
+			start = System.currentTimeMillis();
+			if(recorder != null)
+				handle = recorder.begin(name, detail);
+		}
+
+		/**
+		 * Finish the span
+		 */
+		public void end()
+		{
+			end(0);
+		}
+
+		/**
+		 * Finish the span, which processed the given number of bytes
+		 */
+		public void end(long bytes)
+		{
+			if(end >= 0)
+				return;
+
+			this.bytes = bytes;
+			end = System.currentTimeMillis();
+			if(handle != null)
+				recorder.end(handle, bytes);
+		}
+	}
+
+	/*
+	 * Start of the JVM, the time before main is part of the startup too
+	 */
+	private static final long              JVM_START  = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+	private static final long              MAIN_START = System.currentTimeMillis();
+
+	private static final List<Span>        spans      = new ArrayList<Span>();
+
+	private static final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+	private static volatile Recorder       recorder;
+
+	private StartupMetrics()
+	{
+	}
+
+	/**
+	 * Emit the spans as JFR events. Ignored if the JRE has no JFR support or
+	 * the launcher was built without it.
+	 */
+	public static void enableJfr()
+	{
+		try
+		{
+			recorder = (Recorder) Class.forName("com.w11k.webrcp.JfrRecorder").getDeclaredConstructor().newInstance();
+		}
+		catch(Throwable ex)
+		{
+			System.out.println("JFR events not available: " + ex);
+		}
+	}
+
+	/**
+	 * Start a span
+	 */
+	public static Span begin(String name)
+	{
+		return begin(name, null);
+	}
+
+	/**
+	 * Start a span, e.g. for a single archive
+	 */
+	public static Span begin(String name, String detail)
+	{
+		Span span = new Span(name, detail);
+		synchronized(spans)
+		{
+			spans.add(span);
+		}
+		return span;
+	}
+
+	/**
+	 * Record a value describing the startup, e.g. the application version
+	 */
+	public static void setAttribute(String key, Object value)
+	{
+		synchronized(attributes)
+		{
+			attributes.put(key, String.valueOf(value));
+		}
+	}
+
+	/**
+	 * Write the report. Spans which haven't ended yet are included with their
+	 * duration so far.
+	 */
+	public static void write(File file)
+	{
+		long now = System.currentTimeMillis();
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"jvmStartupMillis\": ").append(MAIN_START - JVM_START).append(",\n");
+		json.append("  \"totalMillis\": ").append(now - MAIN_START).append(",\n");
+
+		json.append("  \"attributes\": {");
+		synchronized(attributes)
+		{
+			String separator = "\n";
+			for(Map.Entry<String, String> attribute: attributes.entrySet())
+			{
+				json.append(separator).append("    ").append(quote(attribute.getKey())).append(": ")
+				        .append(quote(attribute.getValue()));
+				separator = ",\n";
+			}
+		}
+		json.append("\n  },\n");
+
+		json.append("  \"spans\": [");
+		synchronized(spans)
+		{
+			String separator = "\n";
+			for(Span span: spans)
+			{
+				long end = span.end;
+				long duration = ((end >= 0)
+				        ? end
+				        : now) - span.start;
+
+				json.append(separator).append("    {\"name\": ").append(quote(span.name));
+				if(span.detail != null)
+					json.append(", \"detail\": ").append(quote(span.detail));
+				json.append(", \"thread\": ").append(quote(span.thread));
+				json.append(", \"startMillis\": ").append(span.start - MAIN_START);
+				json.append(", \"durationMillis\": ").append(duration);
+				if(end < 0)
+					json.append(", \"running\": true");
+				if(span.bytes > 0)
+				{
+					json.append(", \"bytes\": ").append(span.bytes);
+					json.append(", \"bytesPerSecond\": ").append(span.bytes * 1000 / Math.max(1, duration));
+				}
+				json.append("}");
+				separator = ",\n";
+			}
+		}
+		json.append("\n  ]\n}\n");
+
+		try
+		{
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try
+			{
+				out.write(json.toString());
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch(IOException ex)
+		{
+			// Not too bad. Metrics are optional.
+			System.out.println("Couldn't write startup metrics: " + ex);
+		}
+	}
+
+	private static String quote(String value)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+		for(int i = 0; i < value.length(); ++i)
+		{
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if(c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory of files waiting for deletion. Deleting a large tree takes long,
+ * especially if a virus scanner inspects every file, so trees are only
+ * renamed into the trash, which is instant. The trash is emptied by low
+ * priority daemon threads in the background. Whatever is left when the JVM
+ * exits stays in the trash and is deleted on the next start.
+ */
+class Trash
+{
+	private static final String       DIR     = "trash";
+
+	private final File                 dir;
+
+	private final int                  parallelism;
+
+	private final AtomicInteger        counter = new AtomicInteger();
+
+	private boolean                    emptying;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tempDir directory which contains the trash
+	 * @param parallelism number of threads deleting concurrently
+	 */
+	public Trash(File tempDir, int parallelism)
+	{
+		dir = new File(tempDir, DIR);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Move a file or directory into the trash. Fails if it can't be renamed,
+	 * e.g. because a file is locked.
+	 */
+	public void discard(File file) throws IOException
+	{
+		dir.mkdirs();
+		String name = file.getName() + "-" + Long.toString(System.currentTimeMillis(), 36) + "-"
+		        + counter.incrementAndGet();
+		Files.move(file.toPath(), new File(dir, name).toPath());
+	}
+
+	/**
+	 * Start emptying the trash in the background. Returns immediately.
+	 */
+	public synchronized void empty()
+	{
+		if(emptying)
+			return;
+
+		final File[] trashed = dir.listFiles();
+		if(trashed == null || trashed.length == 0)
+			return;
+
+		emptying = true;
+		Thread thread = new Thread("WebRCP-Trash") {
+			public void run()
+			{
+				try
+				{
+					delete(trashed);
+				}
+				finally
+				{
+					synchronized(Trash.this)
+					{
+						emptying = false;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/*
+	 * Delete the trashed trees. Their top level entries are distributed over
+	 * the deleter threads, large trees like an RCP installation have many of
+	 * them (plugins, features, ...).
+	 */
+	private void delete(File[] trashed)
+	{
+		long start = System.currentTimeMillis();
+		StartupMetrics.Span span = StartupMetrics.begin("emptyTrash");
+		final AtomicLong files = new AtomicLong(), bytes = new AtomicLong();
+
+		List<File> units = new ArrayList<File>();
+		for(File tree: trashed)
+		{
+			File[] children = tree.listFiles();
+			if(children != null)
+			{
+				for(File child: children)
+					units.add(child);
+			}
+		}
+
+		ExecutorService deleters = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "WebRCP-Trash-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+
+		for(final File unit: units)
+		{
+			deleters.execute(new Runnable() {
+				public void run()
+				{
+					deleteTree(unit, files, bytes);
+				}
+			});
+		}
+
+		deleters.shutdown();
+		try
+		{
+			deleters.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException ex)
+		{
+			deleters.shutdownNow();
+			span.end(bytes.get());
+			return;
+		}
+
+		for(File tree: trashed)
+			deleteTree(tree, files, bytes);
+
+		span.end(bytes.get());
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Emptied trash: " + files.get() + " files, " + (bytes.get() >> 10) + " KB in " + time
+		        + " ms (" + (files.get() * 1000 / time) + " files/s)");
+	}
+
+	/*
+	 * Delete a file or directory tree, counting the deleted files and bytes.
+	 * Files which can't be deleted are left for the next attempt.
+	 */
+	private static void deleteTree(File root, final AtomicLong files, final AtomicLong bytes)
+	{
+		try
+		{
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				{
+					try
+					{
+						Files.delete(file);
+						files.incrementAndGet();
+						bytes.addAndGet(attrs.size());
+					}
+					catch(IOException ex)
+					{
+						// Try again on the next start
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(Path file, IOException ex)
+				{
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult postVisitDirectory(Path dir, IOException ex)
+				{
+					dir.toFile().delete();
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch(IOException ex)
+		{
+			// Try again on the next start
+		}
+	}
+}
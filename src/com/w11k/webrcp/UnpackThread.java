@@ -12,18 +12,33 @@
 package com.w11k.webrcp;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Vector;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-
-import javax.swing.JOptionPane;
-import javax.swing.SwingUtilities;
+import java.util.zip.ZipInputStream;
 
 /**
  * Thread which unpacks files. The unpacking is moved in a seperate thread
@@ -32,20 +47,126 @@ import javax.swing.SwingUtilities;
  * @author Daniel Mendler <mendler@imedic.de>
  */
 class UnpackThread extends Thread {
-	private List<File> fileList;
+	/*
+	 * Number of entries a worker extracts in one go. Batches keep the
+	 * scheduling overhead low for archives with many small files.
+	 */
+	private static final int BATCH_SIZE = 32;
+
+	/*
+	 * Files of at least this size get their final size allocated before
+	 * they're written, which keeps them in one piece on disk
+	 */
+	private static final long PREALLOCATE_THRESHOLD = 1024 * 1024;
+
+	/*
+	 * Copy buffers, one pair per worker. Zip entries can only be read into
+	 * an array, the direct buffer is written to the file without further
+	 * copying by the JRE.
+	 */
+	private static class Buffers {
+		final byte[] array = new byte[65536];
+		final ByteBuffer direct = ByteBuffer.allocateDirect(array.length);
+	}
+
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/*
+	 * Archive waiting for extraction. If replace is true, the archive
+	 * replaces an older version of itself. extracted is run after the
+	 * archive has been extracted completely, it may be null.
+	 */
+	private static class Job {
+		final File file;
+		final boolean replace;
+		final Runnable extracted;
+
+		Job(File file, boolean replace, Runnable extracted) {
+			this.file = file;
+			this.replace = replace;
+			this.extracted = extracted;
+		}
+	}
+
+	/*
+	 * Number of downloaded archives which may wait for extraction. Further
+	 * downloads block until the extraction catches up.
+	 */
+	private static final int QUEUE_CAPACITY = 2;
+
+	private final ExtractionPipeline<Job> pipeline;
 
 	private File destDir;
 
-	private boolean finished, cleanUp;
+	/*
+	 * Entries extracted by this and previous starts
+	 */
+	private final ExtractionManifest manifest;
+
+	/*
+	 * Names of the archives which belong to the installation, entries of
+	 * other archives are removed after the extraction. Null if unknown.
+	 */
+	private volatile Collection<String> archives;
+
+	/*
+	 * Shared store for the content of the entries, null if not used
+	 */
+	private volatile ContentStore store;
+
+	/*
+	 * Workers which extract the entries of an archive
+	 */
+	private final ExecutorService workers;
+
+	private final int parallelism;
+
+	/*
+	 * Receives the extracted entries
+	 */
+	private final Progress progress;
+
+	/*
+	 * Files written since the last sync, null if they aren't synced
+	 */
+	private volatile Queue<File> unsynced;
 
 	/**
 	 * Constructor
 	 */
-	public UnpackThread(File destDir, boolean cleanUp) {
+	public UnpackThread(File destDir) {
+		this(destDir, Runtime.getRuntime().availableProcessors(),
+				new Progress());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param parallelism number of threads extracting entries concurrently
+	 * @param progress receives the extracted entries
+	 */
+	public UnpackThread(File destDir, int parallelism, Progress progress) {
+		super("WebRCP-Unpack");
 		this.destDir = destDir;
-		this.cleanUp = cleanUp;
-		fileList = new Vector<File>();
-		finished = false;
+		this.progress = progress;
+		this.parallelism = Math.max(1, parallelism);
+		pipeline = new ExtractionPipeline<Job>(QUEUE_CAPACITY);
+		manifest = new ExtractionManifest(destDir);
+		workers = Executors.newFixedThreadPool(this.parallelism,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "WebRCP-Unpack-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 		start();
 	}
 
@@ -55,130 +176,407 @@ class UnpackThread extends Thread {
 	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
-		if (cleanUp)
-			cleanUpDestDir();
-		while (!finished || !fileList.isEmpty()) {
-			if (fileList.isEmpty()) {
-				synchronized (this) {
-					try {
-						wait();
-					} catch (InterruptedException ex) {
-					}
-				}
-			}
-
-			// Empty after notification -> terminate
-			if (fileList.isEmpty())
-				return;
+		try {
+			unpackFiles();
+		} finally {
+			workers.shutdown();
+		}
+	}
 
-			unpackFile((File) fileList.remove(0));
+	/*
+	 * Unpack files until the pipeline is closed by finish
+	 */
+	private void unpackFiles() {
+		try {
+			Job job;
+			while ((job = pipeline.take()) != null)
+				unpackFile(job.file, job.replace, job.extracted);
+		} catch (InterruptedException ex) {
+			// Terminate
+			return;
 		}
+
+		if (archives != null)
+			removeEntries(manifest.retainArchives(archives));
+		if (unsynced != null)
+			syncFiles();
+		manifest.save();
 	}
 
 	/**
-	 * Add file to list of files which need unpacking
+	 * Add file to list of files which need unpacking. Entries which already
+	 * exist are skipped.
 	 */
 	public void addNextFile(File file) {
-		fileList.add(file);
-		synchronized (this) {
-			notifyAll();
+		addNextFile(file, false);
+	}
+
+	/**
+	 * Add file to list of files which need unpacking. In replace mode the
+	 * file replaces an older version of the same archive: existing entries
+	 * are overwritten if their size or CRC changed. In both modes entries of
+	 * the archive which don't exist anymore are removed. Blocks while too
+	 * many archives are waiting for extraction.
+	 */
+	public void addNextFile(File file, boolean replace) {
+		addNextFile(file, replace, null);
+	}
+
+	/**
+	 * Add file to list of files which need unpacking, like
+	 * addNextFile(file, replace). extracted is run by this thread as soon as
+	 * all entries of the archive have been written, e.g. to record that the
+	 * archive is installed. It isn't run if the extraction fails or is
+	 * interrupted.
+	 */
+	public void addNextFile(File file, boolean replace, Runnable extracted) {
+		try {
+			pipeline.put(new Job(file, replace, extracted));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	/**
+	 * Set the file names of the archives which belong to the installation.
+	 * After the extraction the entries of all other archives are removed.
+	 */
+	public void setArchives(Collection<String> archives) {
+		this.archives = archives;
+	}
+
+	/**
+	 * Share the content of the entries with other installations through
+	 * store. Must be called before the first archive is added.
+	 */
+	public void setContentStore(ContentStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Make the extracted files durable before finish returns. All files are
+	 * synced at the end in one batch instead of one by one while writing.
+	 * Must be called before the first archive is added.
+	 */
+	public void setSync(boolean sync) {
+		unsynced = sync ? new ConcurrentLinkedQueue<File>() : null;
+	}
+
 	/**
 	 * Wait for thread to finish
 	 */
 	public void finish() {
-		finished = true;
-		synchronized (this) {
-			notifyAll();
-		}
-
 		try {
+			pipeline.close();
 			join();
 		} catch (InterruptedException ex) {
 		}
 	}
 
+	/**
+	 * Unpack an archive while it is read from in, e.g. directly from the
+	 * network. Called by the download threads, which extract concurrently to
+	 * this thread. Errors are passed to the caller. Entries which store their
+	 * CRC behind the data (data descriptor) are always rewritten, as the CRC
+	 * is only known after reading.
+	 */
+	public void unpackStream(InputStream in, String archive, boolean replace)
+			throws IOException {
+		StartupMetrics.Span span = StartupMetrics.begin("unpackStream",
+				archive);
+		Set<String> names = new HashSet<String>();
+		long size = 0;
+
+		try {
+			ZipInputStream zipIn = new ZipInputStream(in);
+			ZipEntry entry;
+			while ((entry = zipIn.getNextEntry()) != null) {
+				names.add(entry.getName());
+				unpackEntry(archive, null, entry, zipIn, replace);
+
+				// The size of a streamed entry is only known after reading
+				if (!entry.isDirectory()) {
+					size += Math.max(entry.getSize(), 0);
+					progress.addExtractTotal(Math.max(entry.getSize(), 0));
+					progress.entryExtracted(entry.getSize());
+				}
+			}
+
+			removeEntries(manifest.removeDropped(archive, names));
+			manifest.save();
+		} finally {
+			span.end(size);
+		}
+	}
+
 	/*
 	 * Unpack single file
 	 */
-	private void unpackFile(final File file) {
+	private void unpackFile(final File file, boolean replace,
+			Runnable extracted) {
+		String archive = file.getName();
+		StartupMetrics.Span span = StartupMetrics.begin("unpack", archive);
+		long size = 0;
 		try {
 			ZipFile zipFile = new ZipFile(file);
-			
+			Set<String> names = new HashSet<String>();
+			List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+
+			// Directories are created first, the workers only write files
 			Enumeration entries = zipFile.entries();
 			while (entries.hasMoreElements()) {
 				ZipEntry entry = (ZipEntry) entries.nextElement();
-
-				File entryFile = new File(destDir, entry.getName());
-				if (entryFile.exists())
-					continue;
+				names.add(entry.getName());
 
 				if (entry.isDirectory()) {
-					entryFile.mkdirs();
-					if (!entryFile.exists() || !entryFile.isDirectory())
-						throw new IOException("Couldn't create directory");
+					unpackEntry(archive, zipFile, entry, null, replace);
 				} else {
-					InputStream in = zipFile.getInputStream(entry);
-					OutputStream out = new FileOutputStream(entryFile);
-					byte[] buffer = new byte[32768];
-					int size;
-					while ((size = in.read(buffer)) > 0)
-						out.write(buffer, 0, size);
-					in.close();
-					out.close();
+					fileEntries.add(entry);
+					size += Math.max(entry.getSize(), 0);
 				}
 			}
+			progress.addExtractTotal(size);
 
-			zipFile.close();
-		} catch (final IOException ex) {
 			try {
-				SwingUtilities.invokeAndWait(new Runnable() {
-					public void run() {
-						JOptionPane.showMessageDialog(null,
-								"Temporary Zip-File " + file
-										+ " couldn't be extracted: " + ex,
-								"Extraction Error", JOptionPane.ERROR_MESSAGE);
-					}
-				});
-			} catch (Exception ex2) {
+				unpackEntries(archive, zipFile, fileEntries, replace);
+			} finally {
+				zipFile.close();
 			}
-			System.exit(1);
+
+			removeEntries(manifest.removeDropped(archive, names));
+			manifest.save();
+			if (extracted != null)
+				extracted.run();
+		} catch (IOException ex) {
+			WebRCP.handleError(WebRCP.EXIT_INSTALLATION, "Extraction Error",
+					"Temporary Zip-File " + file + " couldn't be extracted: "
+							+ ex);
+		} finally {
+			span.end(size);
 		}
 	}
 
 	/*
-	 * Clean up destination directory for unpacking
+	 * Unpack file entries of an archive in batches on the worker pool. The
+	 * first error stops the remaining batches and is rethrown.
 	 */
-	private void cleanUpDestDir() {
-		if (destDir.exists()) {
-			File[] file = destDir.listFiles();
-			for (int i = 0; i < file.length; ++i) {
-				// Don't delete the workspace directory
-				// (It contains the configuration)!
-				if (!file[i].getName().equals("workspace"))
-					removeRecursively(file[i]);
+	private void unpackEntries(final String archive, final ZipFile zipFile,
+			List<ZipEntry> entries, final boolean replace) throws IOException {
+		final AtomicReference<IOException> error = new AtomicReference<IOException>();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < entries.size(); i += BATCH_SIZE) {
+			final List<ZipEntry> batch = entries.subList(i,
+					Math.min(i + BATCH_SIZE, entries.size()));
+			futures.add(workers.submit(new Runnable() {
+				public void run() {
+					for (ZipEntry entry : batch) {
+						if (error.get() != null)
+							return;
+						try {
+							InputStream in = zipFile.getInputStream(entry);
+							try {
+								unpackEntry(archive, zipFile, entry, in, replace);
+							} finally {
+								in.close();
+							}
+							progress.entryExtracted(entry.getSize());
+						} catch (IOException ex) {
+							error.compareAndSet(null, ex);
+						}
+					}
+				}
+			}));
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException ex) {
+				throw new InterruptedIOException("Extraction interrupted");
+			} catch (ExecutionException ex) {
+				throw new IOException(ex.getCause());
 			}
 		}
+
+		if (error.get() != null)
+			throw error.get();
 	}
 
 	/*
-	 * Remove directory structure recursively
+	 * Unpack single entry and record it in the manifest. Existing entries are
+	 * only overwritten in replace mode and only if the recorded size or CRC
+	 * differs. An incompletely written file is removed, so it isn't mistaken
+	 * for a complete one later. zipFile is null for streamed archives.
 	 */
-	private void removeRecursively(File dir) {
-		if (!dir.exists())
+	private void unpackEntry(String archive, ZipFile zipFile, ZipEntry entry,
+			InputStream in, boolean replace) throws IOException {
+		String name = entry.getName();
+		File entryFile = new File(destDir, name);
+
+		if (entry.isDirectory()) {
+			if (!entryFile.isDirectory())
+				createDirectory(entryFile);
+			manifest.putDirectory(name, archive);
 			return;
+		}
 
+		if (entryFile.exists()) {
+			if (!replace) {
+				// Keep existing entry, but learn about it
+				if (!manifest.contains(name))
+					manifest.putFile(name, archive, entry.getSize(),
+							entry.getCrc());
+				return;
+			}
+
+			if (manifest.matches(name, entry.getSize(), entry.getCrc())
+					&& entryFile.length() == entry.getSize()) {
+				manifest.putFile(name, archive, entry.getSize(),
+						entry.getCrc());
+				return;
+			}
+		}
+
+		File parent = entryFile.getParentFile();
+		if (parent != null && !parent.isDirectory())
+			createDirectory(parent);
+
+		if (store != null && store.accepts(name)) {
+			linkEntry(zipFile, entry, in, entryFile);
+			manifest.putFile(name, archive, entry.getSize(), entry.getCrc());
+			return;
+		}
+
+		// Never write through an existing file, it may be a link into the
+		// content store
+		entryFile.delete();
+
+		RandomAccessFile out = new RandomAccessFile(entryFile, "rw");
+		try {
+			if (entry.getSize() >= PREALLOCATE_THRESHOLD)
+				out.setLength(entry.getSize());
+
+			FileChannel channel = out.getChannel();
+			Buffers buffers = BUFFERS.get();
+			long written = 0;
+			int size;
+			while ((size = in.read(buffers.array)) > 0) {
+				buffers.direct.clear();
+				buffers.direct.put(buffers.array, 0, size).flip();
+				while (buffers.direct.hasRemaining())
+					written += channel.write(buffers.direct);
+			}
+			if (written != out.length())
+				out.setLength(written);
+			out.close();
+		} catch (IOException ex) {
+			out.close();
+			entryFile.delete();
+			throw ex;
+		}
+
+		if (unsynced != null)
+			unsynced.add(entryFile);
+
+		// Streamed entries know their size and CRC after reading
+		manifest.putFile(name, archive, entry.getSize(), entry.getCrc());
+	}
+
+	/*
+	 * Install an entry from the content store. Entries of a zip file are
+	 * hashed first, content known to the store is only linked and never
+	 * written again. Streamed entries can only be read once, they pass
+	 * through the store.
+	 */
+	private void linkEntry(ZipFile zipFile, ZipEntry entry, InputStream in,
+			File entryFile) throws IOException {
+		String hash = null;
+		if (zipFile != null) {
+			InputStream hashIn = zipFile.getInputStream(entry);
+			try {
+				hash = ContentStore.hash(hashIn);
+			} finally {
+				hashIn.close();
+			}
+		}
+
+		if (hash == null || !store.contains(hash))
+			hash = store.add(in);
+		store.link(hash, entryFile);
+	}
+
+	/*
+	 * Create directory. Safe if another worker creates it concurrently.
+	 */
+	private static void createDirectory(File dir) throws IOException {
+		dir.mkdirs();
 		if (!dir.isDirectory())
-			dir.delete();
+			throw new IOException("Couldn't create directory");
+	}
+
+	/*
+	 * Sync the written files and their directories on the worker pool.
+	 * Directories can't be synced on every platform, that's ignored.
+	 */
+	private void syncFiles() {
+		StartupMetrics.Span span = StartupMetrics.begin("sync");
+		final Set<File> dirs = Collections
+				.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+		final AtomicInteger count = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < parallelism; ++i) {
+			futures.add(workers.submit(new Runnable() {
+				public void run() {
+					File file;
+					while ((file = unsynced.poll()) != null) {
+						sync(file);
+						count.incrementAndGet();
+						dirs.add(file.getParentFile());
+					}
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			// sync doesn't throw
+		}
+
+		for (File dir : dirs)
+			sync(dir);
+		span.end();
+		System.out.println("Synced " + count.get() + " files");
+	}
 
-		File[] file = dir.listFiles();
-		if (file != null) {
-			for (int i = 0; i < file.length; ++i)
-				removeRecursively(file[i]);
+	private static void sync(File file) {
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(),
+					file.isDirectory() ? StandardOpenOption.READ
+							: StandardOpenOption.WRITE);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException ex) {
+			// Not supported for directories on every platform
 		}
+	}
+
+	/*
+	 * Remove entries which were dropped from their archive. Directories are
+	 * only removed if they are empty.
+	 */
+	private void removeEntries(List<String> names) {
+		for (String name : names)
+			new File(destDir, name).delete();
 
-		dir.delete();
+		if (!names.isEmpty())
+			System.out.println("Removed " + names.size() + " dropped entries");
 	}
 }
\ No newline at end of file
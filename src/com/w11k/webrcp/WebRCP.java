@@ -10,17 +10,11 @@
 
 package com.w11k.webrcp;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.ProcessBuilder.Redirect;
@@ -30,7 +24,6 @@ import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.net.URLConnection;
 import java.security.Policy;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,18 +38,61 @@ import java.util.Set;
 import javax.jnlp.BasicService;
 import javax.jnlp.ServiceManager;
 import javax.jnlp.UnavailableServiceException;
-import javax.swing.JOptionPane;
-import javax.swing.ProgressMonitor;
-import javax.swing.Timer;
 
 /**
  * WebRCP - Web Start Application which acts as loader for an Eclipse RCP
  * application.
  * 
+ * In headless mode (jnlp.WebRCP.headless) the application is only installed
+ * or updated, e.g. to provision it ahead of time. Progress and errors are
+ * written to the console instead of dialogs, AWT is never loaded, and the
+ * process exits with one of the EXIT_ codes. The base URL is taken from
+ * jnlp.WebRCP.baseURL if Web Start isn't available.
+ * 
  * @author by Daniel Mendler <mendler@imedic.de>
  */
 public class WebRCP
 {
+	/**
+	 * Exit code: the application was installed, and started unless headless
+	 */
+	public static final int     EXIT_OK                = 0;
+
+	/**
+	 * Exit code: unexpected error
+	 */
+	public static final int     EXIT_ERROR             = 1;
+
+	/**
+	 * Exit code: missing or invalid configuration, unsupported platform
+	 */
+	public static final int     EXIT_CONFIGURATION     = 2;
+
+	/**
+	 * Exit code: another instance is running
+	 */
+	public static final int     EXIT_ALREADY_RUNNING   = 3;
+
+	/**
+	 * Exit code: an archive couldn't be downloaded
+	 */
+	public static final int     EXIT_DOWNLOAD          = 4;
+
+	/**
+	 * Exit code: the archives couldn't be extracted or activated
+	 */
+	public static final int     EXIT_INSTALLATION      = 5;
+
+	/**
+	 * Exit code: the application couldn't be started
+	 */
+	public static final int     EXIT_LAUNCH            = 6;
+
+	/**
+	 * Exit code: the installation was canceled
+	 */
+	public static final int     EXIT_CANCELED          = 7;
+
 	/*
 	 * Supported system architectures (From org.eclipse.core.runtime.Platform)
 	 */
@@ -99,6 +135,40 @@ public class WebRCP
 	private static final String PROPERTY_JRE_ARCHIVE   = "jnlp.WebRCP.jreArchive";
 	private static final String PROPERTY_SINGLEINST    = "jnlp.WebRCP.singleInstance";
 	private static final String PROPERTY_EXECUTABLE    = "jnlp.WebRCP.executable";
+	private static final String PROPERTY_DOWNLOAD_PAR  = "jnlp.WebRCP.downloadParallelism";
+	private static final String PROPERTY_STREAM_UNPACK = "jnlp.WebRCP.streamUnpack";
+	private static final String PROPERTY_KEEP_ARCHIVES = "jnlp.WebRCP.keepArchives";
+	private static final String PROPERTY_UNPACK_PAR    = "jnlp.WebRCP.unpackParallelism";
+	private static final String PROPERTY_DELETE_PAR    = "jnlp.WebRCP.deleteParallelism";
+	private static final String PROPERTY_JFR           = "jnlp.WebRCP.jfr";
+	private static final String PROPERTY_CONTENT_STORE = "jnlp.WebRCP.contentStore";
+	private static final String PROPERTY_CHECKSUMS     = "jnlp.WebRCP.checksums";
+	private static final String PROPERTY_MIRRORS       = "jnlp.WebRCP.mirrors";
+	private static final String PROPERTY_SEGMENTS      = "jnlp.WebRCP.segments";
+	private static final String PROPERTY_SYNC          = "jnlp.WebRCP.sync";
+	private static final String PROPERTY_HEADLESS      = "jnlp.WebRCP.headless";
+	private static final String PROPERTY_REPORTER      = "jnlp.WebRCP.reporter";
+
+	/*
+	 * Number of archives downloaded concurrently if not configured otherwise
+	 */
+	private static final int    DEFAULT_DOWNLOAD_PAR   = 4;
+
+	/*
+	 * Maximum number of connections per large archive if not configured
+	 * otherwise
+	 */
+	private static final int    DEFAULT_SEGMENTS       = 4;
+
+	/*
+	 * Number of threads emptying the trash if not configured otherwise
+	 */
+	private static final int    DEFAULT_DELETE_PAR     = 2;
+
+	/*
+	 * Maximum time spent ranking the mirrors (milliseconds)
+	 */
+	private static final long   MIRROR_PROBE_TIMEOUT   = 3000;
 
 	/*
 	 * Port used to check for a running instance. This port should be hopefully
@@ -112,6 +182,11 @@ public class WebRCP
 	private static final String LAUNCHER_CLASS         = "org.eclipse.equinox.launcher.Main";
 	private static final String LAUNCHER_JAR           = "jnlp.WebRCP.launcherjar";
 
+	/*
+	 * Receives progress and errors, a dialog unless running headless
+	 */
+	private static Reporter     reporter;
+
 	/*
 	 * Try to determine system architecture by examining the system property "os.arch"
 	 */
@@ -137,7 +212,7 @@ public class WebRCP
 		if(arch.indexOf("sparc") >= 0)
 			return ARCH_SPARC;
 
-		handleError("Unknown Architecture", "Your system has an unknown architecture: " + arch);
+		handleError(EXIT_CONFIGURATION, "Unknown Architecture", "Your system has an unknown architecture: " + arch);
 
 		return null;
 	}
@@ -170,7 +245,7 @@ public class WebRCP
 		if(os.indexOf("qnx") >= 0)
 			return OS_QNX;
 
-		handleError("Unknown Operating System", "Your operating system is unknown: " + os);
+		handleError(EXIT_CONFIGURATION, "Unknown Operating System", "Your operating system is unknown: " + os);
 
 		return null;
 	}
@@ -206,15 +281,21 @@ public class WebRCP
 		}
 		catch(Exception ex)
 		{
-			handleError("Already running.", "There's already an instance running.");
+			handleError(EXIT_ALREADY_RUNNING, "Already running.", "There's already an instance running.");
 		}
 	}
 
 	/*
-	 * Get base URL
+	 * Get base URL, configured or from Web Start
 	 */
 	private static String getBaseURL()
 	{
+		String baseURL = System.getProperty(PROPERTY_BASEURL);
+		if(baseURL != null && baseURL.length() > 0)
+			return baseURL.endsWith("/")
+			        ? baseURL
+			        : baseURL + "/";
+
 		try
 		{
 			BasicService service = (BasicService) ServiceManager.lookup("javax.jnlp.BasicService");
@@ -222,7 +303,7 @@ public class WebRCP
 		}
 		catch(UnavailableServiceException ex)
 		{
-			handleError("WebStart Service Error", "Service javax.jnlp.BasicService unvailable: " + ex);
+			handleError(EXIT_CONFIGURATION, "WebStart Service Error", "Service javax.jnlp.BasicService unvailable: " + ex);
 			return null;
 		}
 	}
@@ -230,83 +311,56 @@ public class WebRCP
 	/*
 	 * Check for new eclipse application version by comparing the value in the
 	 * version file and the version argument.
-	 * The version value can be an arbitrary string.
+	 * The version value can be an arbitrary string. The version file is only
+	 * updated by storeVersion after the new version has been installed.
 	 */
 	private static boolean newVersionAvailable(String newVersion, File versionFile)
 	{
 		System.out.println("Version form Server: " + newVersion);
-		String oldVersion = null;
+		String oldVersion = readVersion(versionFile);
+		System.out.println("Version form local Installation: " + oldVersion);
 
+		return oldVersion == null || !newVersion.equals(oldVersion);
+	}
+
+	/*
+	 * Read the installed version from the version file, null if there is none
+	 */
+	private static String readVersion(File versionFile)
+	{
 		try
 		{
-			// Read old version
 			BufferedReader in = new BufferedReader(new FileReader(versionFile));
-			oldVersion = in.readLine();
-			in.close();
+			try
+			{
+				return in.readLine();
+			}
+			finally
+			{
+				in.close();
+			}
 		}
 		catch(IOException ex)
 		{
 			// No error. File doesn't already exists.
-		}
-
-		System.out.println("Version form local Installation: " + oldVersion);
-		try
-		{
-			// Write new version
-			Writer out = new FileWriter(versionFile);
-			out.write(newVersion);
-			out.close();
-
-			return oldVersion == null || !newVersion.equals(oldVersion);
-		}
-		catch(IOException ex)
-		{
-			// Not too bad. We continue.
-			return true;
+			return null;
 		}
 	}
 
 	/*
-	 * Download a file from an url and store it at destFile. A progress monitor
-	 * will be shown.
+	 * Write the installed version to the version file
 	 */
-	private static void downloadFile(URL url, File destFile)
+	private static void storeVersion(String version, File versionFile)
 	{
-		System.out.println("downloadFile(" + url.toString() + ")");
 		try
 		{
-			OutputStream out = new FileOutputStream(destFile);
-
-			URLConnection conn = url.openConnection();
-			InputStream in = conn.getInputStream();
-
-			int totalSize = conn.getContentLength(), downloadedSize = 0, size;
-			byte[] buffer = new byte[32768];
-
-			ProgressMonitor pm = createProgressMonitor("Downloading " + url, totalSize);
-			boolean canceled = false;
-
-			while((size = in.read(buffer)) > 0 && !(canceled = pm.isCanceled()))
-			{
-				out.write(buffer, 0, size);
-				pm.setProgress(downloadedSize += size);
-				// pm.setNote(downloadedSize / totalSize + "% finished");
-			}
-
-			in.close();
+			Writer out = new FileWriter(versionFile);
+			out.write(version);
 			out.close();
-
-			if(canceled)
-			{
-				destFile.delete(); // Delete uncomplete file
-				handleError("Starting canceled", "Downloading canceled. Exiting...");
-			}
-
-			pm.close();
 		}
 		catch(IOException ex)
 		{
-			handleError("Download Error", "Couldn't download file: " + ex);
+			// Not too bad. We continue.
 		}
 	}
 
@@ -367,9 +421,10 @@ public class WebRCP
 	/*
 	 * Load and start eclipse launcher org.eclipse.core.launcher.Main
 	 */
-	private static void startLauncher(URL url, String os, String arch, String launcherJar, String arg)
+	private static void startLauncher(URL url, String os, String arch, String launcherJar, String arg, File metricsFile)
 	{
 		System.out.println("startLauncher()");
+		StartupMetrics.Span span = StartupMetrics.begin("launcherLoad");
 		try
 		{
 			// Reload new policy which allows all to all codebases
@@ -382,6 +437,12 @@ public class WebRCP
 			URLClassLoader classLoader = new URLClassLoader(new URL[] { new URL(path) });
 			Class<?> launcher = classLoader.loadClass(LAUNCHER_CLASS);
 			Method launcherMain = launcher.getMethod("main", new Class[] { String.class });
+			span.end();
+
+			// The launcher returns when the application exits, so the report
+			// is written before and updated afterwards
+			span = StartupMetrics.begin("launcherMain");
+			StartupMetrics.write(metricsFile);
 
 			/*
 			 * Start launcher with aurguments -os <operating-system> -ws
@@ -396,24 +457,26 @@ public class WebRCP
 			        new Object[] { "-os " + os + " -ws " + getWindowSystem(os) + " -arch " + arch + " -install " + url
 			                + " -data " + url + "/workspace/ -user " + url + "/workspace/ -nl " + Locale.getDefault()
 			                + arg });
+			span.end();
+			StartupMetrics.write(metricsFile);
 		}
 		catch(InvocationTargetException ex)
 		{
-			handleError("Startup Error", "Invocation failed: " + ex.getCause());
+			handleError(EXIT_LAUNCH, "Startup Error", "Invocation failed: " + ex.getCause());
 		}
 		catch(IllegalAccessException ex)
 		{
-			handleError("Startup Error", "Invocation failed: " + ex);
+			handleError(EXIT_LAUNCH, "Startup Error", "Invocation failed: " + ex);
 		}
 		catch(NoSuchMethodException ex)
 		{
 			ex.printStackTrace();
-			handleError("Startup Error", "Invalid Eclipse Launcher: " + ex);
+			handleError(EXIT_LAUNCH, "Startup Error", "Invalid Eclipse Launcher: " + ex);
 		}
 		catch(ClassNotFoundException ex)
 		{
 			ex.printStackTrace();
-			handleError("Startup Error", "Eclipse Launcher not found: " + ex);
+			handleError(EXIT_LAUNCH, "Startup Error", "Eclipse Launcher not found: " + ex);
 		}
 		catch(MalformedURLException ex)
 		{
@@ -423,47 +486,61 @@ public class WebRCP
 	}
 
 	/*
-	 * Convenience method to create a progress monitor
+	 * Create the reporter configured by class name, a dialog or the console
+	 * otherwise
 	 */
-	private static ProgressMonitor createProgressMonitor(String message, int max)
+	private static Reporter createReporter(boolean headless)
 	{
-		ProgressMonitor pm = new ProgressMonitor(null, message, "", 0, max);
-		pm.setMillisToDecideToPopup(100);
-		pm.setMillisToPopup(500);
+		String name = System.getProperty(PROPERTY_REPORTER);
+		if(name == null || name.length() == 0)
+			return headless
+			        ? new ConsoleReporter()
+			        : new ProgressDialog();
 
-		return pm;
-	}
-
-	/*
-	 * Convenience method to show an error dialog
-	 */
-	private static void handleError(String title, String message)
-	{
-		JOptionPane.showMessageDialog(null, message, title, JOptionPane.ERROR_MESSAGE);
-		System.exit(1);
+		try
+		{
+			return (Reporter) Class.forName(name).getConstructor().newInstance();
+		}
+		catch(Exception ex)
+		{
+			handleError(EXIT_CONFIGURATION, "Invalid Reporter", "Couldn't create reporter " + name + ": " + ex);
+			return null;
+		}
 	}
 
 	/*
-	 * Simulate progress by showing a faked progress monitor
+	 * Forward the progress to the reporter, which may cancel it
 	 */
-	private static void simulateProgress(String text, int seconds)
+	private static Progress createProgress(final Reporter reporter)
 	{
-		final ProgressMonitor pm = createProgressMonitor(text, seconds * 1000 / 50);
-
-		Timer timer = new Timer(50, new ActionListener() {
-			private int progress = 0;
+		Progress progress = new Progress();
+		progress.addListener(new Progress.Listener() {
+			public void progressChanged(Progress progress)
+			{
+				if(reporter.isCanceled())
+					progress.cancel();
+				else
+					reporter.progressChanged(progress.getFraction(), progress.toString());
+			}
 
-			public void actionPerformed(ActionEvent event)
+			public void progressClosed(Progress progress)
 			{
-				if(pm.isCanceled())
-				{
-					System.exit(0);
-				}
-				pm.setProgress(progress += 1);
+				reporter.finished();
 			}
 		});
+		return progress;
+	}
 
-		timer.start();
+	/*
+	 * Report a fatal error and exit with exitCode
+	 */
+	static void handleError(int exitCode, String title, String message)
+	{
+		// Used without main, e.g. by the tools
+		if(reporter == null)
+			reporter = new ConsoleReporter();
+		reporter.error(exitCode, title, message);
+		System.exit(exitCode);
 	}
 
 	/*
@@ -475,7 +552,7 @@ public class WebRCP
 		if(value != null)
 			return value;
 
-		handleError("Missing System Property", key + " is required");
+		handleError(EXIT_CONFIGURATION, "Missing System Property", key + " is required");
 
 		return null;
 	}
@@ -488,34 +565,35 @@ public class WebRCP
 	 */
 	private static void createDesktopShortcutToExe(String shortcutTarget, String appName)
 	{
-		Shortcut scut;
+		ShortcutProvisioner.Result result;
 		try
 		{
-			scut = new Shortcut(new File(shortcutTarget));
-
-			String userHomeDir = System.getProperty("user.home");
-
-			OutputStream os = new FileOutputStream(userHomeDir + "\\Desktop\\" + appName + ".lnk");
-			os.write(scut.getBytes());
-			os.flush();
-			os.close();
+			Shortcut scut = new Shortcut(new File(shortcutTarget));
+			File desktop = new File(System.getProperty("user.home"), "Desktop");
+			result =
+			        new ShortcutProvisioner(1).provision(Arrays.asList(new ShortcutProvisioner.Target(new File(desktop,
+			                appName + ".lnk"), scut)));
 		}
 		catch(UnsupportedEncodingException e)
 		{
 			e.printStackTrace();
 			handleError(
+			        EXIT_INSTALLATION,
 			        "Error while creating Desktop Shortcut",
 			        "Wrong Shortcut target specified" + e.getLocalizedMessage());
+			return;
 		}
-		catch(FileNotFoundException e)
+		catch(InterruptedException e)
 		{
-			e.printStackTrace();
-			handleError("Error while creating Desktop Shortcut", "File not found" + e.getLocalizedMessage());
+			Thread.currentThread().interrupt();
+			return;
 		}
-		catch(IOException e)
+
+		for(ShortcutProvisioner.Failure failure: result.getFailures())
 		{
-			e.printStackTrace();
-			handleError("Error while creating Desktop Shortcut", e.getLocalizedMessage());
+			failure.getError().printStackTrace();
+			handleError(EXIT_INSTALLATION, "Error while creating Desktop Shortcut", failure.getError()
+			        .getLocalizedMessage());
 		}
 	}
 
@@ -526,6 +604,18 @@ public class WebRCP
 	 */
 	public static void main(String[] args)
 	{
+		// Time the startup, optionally with JFR events
+		if(Boolean.getBoolean(PROPERTY_JFR))
+			StartupMetrics.enableJfr();
+		StartupMetrics.Span span = StartupMetrics.begin("properties");
+
+		// Without a user in front of the screen nothing is shown, the
+		// reporter is chosen before anything can fail
+		boolean headless = Boolean.getBoolean(PROPERTY_HEADLESS);
+		if(headless)
+			System.setProperty("java.awt.headless", "true");
+		reporter = createReporter(headless);
+
 		// http://stackoverflow.com/questions/19407102/java-7-update-45-broke-my-web-start-swt-application
 		Properties properties = System.getProperties();
 		// copy properties to avoid ConcurrentModificationException
@@ -595,7 +685,7 @@ public class WebRCP
 
 			if(launchApp == null)
 			{
-				handleError("Missing System Property", PROPERTY_LAUNCHAPP + " or " + PROPERTY_LAUNCHPRODUCT
+				handleError(EXIT_CONFIGURATION, "Missing System Property", PROPERTY_LAUNCHAPP + " or " + PROPERTY_LAUNCHPRODUCT
 				        + " are required");
 			}
 			else
@@ -611,34 +701,211 @@ public class WebRCP
 		String baseURL = getBaseURL();
 		String arch = determineArch();
 		String os = determineOS();
+		span.end();
+
+		StartupMetrics.setAttribute("appName", appName);
+		StartupMetrics.setAttribute("appVersion", appVersion);
+		StartupMetrics.setAttribute("os", os);
+		StartupMetrics.setAttribute("arch", arch);
 
 		File tempDir = new File(getSystemProperty("java.io.tmpdir"), appName);
 		tempDir.mkdirs();
+		File metricsFile = new File(tempDir, StartupMetrics.FILE_NAME);
 
-		File unpackDestDir = new File(tempDir, "unpacked");
+		// The active version is only replaced after its successor is
+		// completely installed
+		int deleteParallelism = Integer.getInteger(PROPERTY_DELETE_PAR, DEFAULT_DELETE_PAR);
+		InstallVersions versions = new InstallVersions(tempDir, new Trash(tempDir, deleteParallelism));
+		File currentDir = versions.getCurrent();
 
 		// Check for new version
-		boolean override = newVersionAvailable(appVersion, new File(tempDir, "version"));
+		span = StartupMetrics.begin("versionCheck");
+		File versionFile = new File(tempDir, "version");
+		String installedVersion = readVersion(versionFile);
+		boolean override = newVersionAvailable(appVersion, versionFile);
+		span.end();
+
+		// A new version is extracted into a directory of its own. Archives are
+		// updated one by one if the same archives were installed before or
+		// the extracted entries are recorded in a manifest: the directory
+		// starts with the content of the active version then. Otherwise
+		// everything is extracted into an empty directory.
+		ArchiveValidators validators = new ArchiveValidators(new File(tempDir, "archives.properties"));
+		String archiveList = getSystemProperty(PROPERTY_ARCHIVES);
+		if(jreArchive != null && jreArchive.length() > 0)
+			archiveList += "," + jreArchive;
+		boolean incremental = validators.hasArchives(archiveList)
+		        || new File(currentDir, ExtractionManifest.FILE_NAME).exists();
+
+		File unpackDestDir = currentDir;
+		if(override)
+		{
+			try
+			{
+				unpackDestDir = versions.createNext(appVersion, incremental
+				        ? currentDir
+				        : null);
+			}
+			catch(IOException ex)
+			{
+				handleError(EXIT_INSTALLATION, "Installation Error", "Couldn't create installation directory: " + ex);
+			}
+		}
+		System.out.println("unpackDestDir = " + unpackDestDir);
+
+		// Optionally extract while downloading, without storing the archives
+		boolean streamUnpack = Boolean.getBoolean(PROPERTY_STREAM_UNPACK);
+		boolean keepArchives = !streamUnpack || !"false".equals(System.getProperty(PROPERTY_KEEP_ARCHIVES));
+		System.out.println("streamUnpack = " + streamUnpack + ", keepArchives = " + keepArchives);
 
-		// Start background thread for unpacking
-		UnpackThread unpackThread = new UnpackThread(unpackDestDir, override);
+		// Without stored archives the validators are worthless for an empty directory
+		if(override && !incremental && !keepArchives)
+			validators.clear();
+
+		// Report the progress of downloads and extraction in a single dialog
+		Progress progress = createProgress(reporter);
+		reporter.started("Installing " + appName + "...");
+		progress.start();
+
+		// Start background thread for unpacking, entries are extracted by
+		// one worker per processor unless configured otherwise
+		int unpackParallelism = Integer.getInteger(PROPERTY_UNPACK_PAR, Runtime.getRuntime().availableProcessors());
+		System.out.println("unpackParallelism = " + unpackParallelism);
+		UnpackThread unpackThread = new UnpackThread(unpackDestDir, unpackParallelism, progress);
+
+		// Optionally make the extracted files durable before the new version
+		// is activated
+		unpackThread.setSync(Boolean.getBoolean(PROPERTY_SYNC));
+
+		// Optionally share the jars with other applications and versions of
+		// the same user, the default store is in the user's home directory
+		String contentStore = System.getProperty(PROPERTY_CONTENT_STORE);
+		if(contentStore != null && !"false".equals(contentStore))
+		{
+			File storeDir = "true".equals(contentStore)
+			        ? new File(getSystemProperty("user.home"), ".webrcp-store")
+			        : new File(contentStore);
+			System.out.println("contentStore = " + storeDir);
+			ContentStore store = new ContentStore(storeDir);
+			try
+			{
+				store.open();
+				unpackThread.setContentStore(store);
+			}
+			catch(IOException ex)
+			{
+				System.out.println("Not using the content store: " + ex.getMessage());
+			}
+		}
+
+		// Download archives concurrently, each one is unpacked as soon as it's complete
+		int downloadParallelism = Integer.getInteger(PROPERTY_DOWNLOAD_PAR, DEFAULT_DOWNLOAD_PAR);
+		System.out.println("downloadParallelism = " + downloadParallelism);
+		DownloadScheduler downloadScheduler = new DownloadScheduler(downloadParallelism, unpackThread, validators, progress);
+		downloadScheduler.setStreamUnpack(streamUnpack, keepArchives);
+		int segments = Integer.getInteger(PROPERTY_SEGMENTS, DEFAULT_SEGMENTS);
+		System.out.println("segments = " + segments);
+		downloadScheduler.setMaxSegments(segments);
+
+		// Alternative base URLs, ranked by a probe if there's something to
+		// download
+		String mirrorList = System.getProperty(PROPERTY_MIRRORS);
+		if(mirrorList != null && mirrorList.trim().length() > 0)
+		{
+			System.out.println("mirrors = " + mirrorList);
+			Mirrors mirrors = new Mirrors(baseURL, mirrorList.trim().split("\\s*,\\s*"));
+			if(override)
+			{
+				span = StartupMetrics.begin("mirrorProbe");
+				mirrors.probe(archive[0] + ".zip", MIRROR_PROBE_TIMEOUT);
+				span.end();
+			}
+			downloadScheduler.setMirrors(mirrors);
+		}
+
+		// Published checksums of the archives (sha256sum format, relative to
+		// the base URL). They are always loaded from the codebase, so
+		// mirrors don't have to be trusted.
+		String checksums = System.getProperty(PROPERTY_CHECKSUMS);
+		if(checksums != null && checksums.length() > 0)
+		{
+			try
+			{
+				ChecksumManifest manifest = new ChecksumManifest(new URL(baseURL + checksums));
+				System.out.println("checksums = " + checksums + " (" + manifest.size() + " archives)");
+				downloadScheduler.setChecksums(manifest);
+			}
+			catch(IOException ex)
+			{
+				handleError(EXIT_DOWNLOAD, "Download Error", "Couldn't load checksums: " + ex);
+			}
+		}
 
 		// Download and unpack system-independant archives
+		span = StartupMetrics.begin("downloads");
+		List<String> archiveFiles = new ArrayList<String>();
 		for(String element: archive)
 		{
-			downloadFile(baseURL, tempDir, override, unpackThread, element);
+			downloadFile(baseURL, tempDir, override, installedVersion, appVersion, downloadScheduler, unpackThread,
+			        element);
+			archiveFiles.add(element + ".zip");
 		}
 
 		if(jreArchive != null && jreArchive.length() > 0) {
-			downloadFile(baseURL, tempDir, override, unpackThread, jreArchive);
+			downloadFile(baseURL, tempDir, override, installedVersion, appVersion, downloadScheduler, unpackThread,
+			        jreArchive);
+			archiveFiles.add(jreArchive + ".zip");
 		}
 
-		// Show a progress monitor which "simulates" the startup of
-		// the application.
-		simulateProgress("Loading " + appName + "...", 3);
+		// Entries of archives which are no longer part of the application
+		// are removed after the extraction
+		unpackThread.setArchives(archiveFiles);
+
+		// Wait for the downloads to complete
+		downloadScheduler.finish();
+		progress.complete(Progress.Phase.DOWNLOAD);
+		span.end(progress.getDownloaded());
 
 		// Wait for the unpacking thread to complete
+		span = StartupMetrics.begin("unpackWait");
 		unpackThread.finish();
+		progress.complete(Progress.Phase.EXTRACT);
+		span.end(progress.getExtracted());
+		if(progress.isCanceled())
+			System.exit(EXIT_CANCELED);
+
+		// New version is installed completely, switch over to it
+		span = StartupMetrics.begin("activate");
+		if(override)
+		{
+			try
+			{
+				versions.activate(unpackDestDir);
+			}
+			catch(IOException ex)
+			{
+				handleError(EXIT_INSTALLATION, "Installation Error", "Couldn't activate the new version: " + ex);
+			}
+		}
+		validators.setArchives(archiveList);
+		validators.save();
+		storeVersion(appVersion, versionFile);
+		span.end();
+
+		// Replaced versions are removed while the application starts
+		span = StartupMetrics.begin("cleanup");
+		versions.removeInactive();
+		span.end();
+		progress.complete(Progress.Phase.LAUNCH);
+		progress.close();
+
+		// Provisioning only, the application is started by its user later
+		if(headless)
+		{
+			StartupMetrics.write(metricsFile);
+			System.out.println("Installed " + appName + " " + appVersion + " in " + unpackDestDir);
+			System.exit(EXIT_OK);
+		}
 
 		// Store base url (might be used by the loaded program)
 		System.setProperty(PROPERTY_BASEURL, baseURL);
@@ -646,36 +913,52 @@ public class WebRCP
 		// Then start the launcher!
 		if (executable != null && executable.length() > 0 && jreArchive != null && jreArchive.length() > 0) {
 			System.out.println("starting with executable: " + executable);
+			span = StartupMetrics.begin("processStart");
 			startFile(unpackDestDir, executable, launcherJar, launchApp, javaPropertiesToPass);
+			span.end();
+			StartupMetrics.write(metricsFile);
 		} else  {
 			System.out.println("starting with launcher");
 			try {
-				startLauncher(unpackDestDir.toURI().toURL(), os, arch, launcherJar, launchApp);
+				startLauncher(unpackDestDir.toURI().toURL(), os, arch, launcherJar, launchApp, metricsFile);
 			} catch (MalformedURLException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e);
 			}
 		}
 
-		System.exit(0);
+		System.exit(EXIT_OK);
 	}
 
 	private static void downloadFile(
 	        String baseURL,
 	        File tempDir,
 	        boolean override,
+	        String installedVersion,
+	        String appVersion,
+	        DownloadScheduler downloadScheduler,
 	        UnpackThread unpackThread,
 	        String element)
 	{
 		System.out.println("Checking for download of file: " + element);
 		File destFile = new File(tempDir, element + ".zip");
 
-		if(!destFile.exists() || override)
+		if(!downloadScheduler.isInstalled(destFile) || override)
 		{
 			try
 			{
 				System.out.println("downloading file: " + element);
-				downloadFile(new URL(baseURL + element + ".zip"), destFile);
+				URL url = new URL(baseURL + element + ".zip");
+				if(override && installedVersion != null && destFile.exists())
+				{
+					// Only the changes to the installed version are needed
+					URL deltaUrl = new URL(baseURL + DeltaArchive.fileName(element, installedVersion, appVersion));
+					downloadScheduler.scheduleDelta(deltaUrl, url, destFile);
+				}
+				else
+				{
+					downloadScheduler.schedule(url, destFile);
+				}
 			}
 			catch(MalformedURLException ex)
 			{
@@ -683,8 +966,10 @@ public class WebRCP
 				throw new RuntimeException(ex);
 			}
 		}
-
-		unpackThread.addNextFile(destFile);
+		else if(destFile.exists())
+		{
+			unpackThread.addNextFile(destFile);
+		}
 	}
 
 	private static void printSystemProperties()
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Objects of the content store are only used if their content matches their
+ * hash, whoever wrote them
+ */
+public class ContentStoreTest extends TestCase
+{
+	private File         storeDir;
+
+	private ContentStore store;
+
+	private File         archive;
+
+	private String       hash;
+
+	protected void setUp() throws Exception
+	{
+		storeDir = new File(getDir(), "store");
+		store = new ContentStore(storeDir);
+		store.open();
+		archive = write(new File(getDir(), "app.zip"), zip("plugins/", null, "plugins/a.jar", "original"));
+		hash = ContentStore.hash(new ByteArrayInputStream(bytes("original")));
+	}
+
+	/**
+	 * An object planted under the hash of a known jar is replaced by the real
+	 * content instead of being linked into the installation
+	 */
+	public void testTamperedObjectReplaced() throws Exception
+	{
+		File objectFile = new File(storeDir, "objects/" + hash.substring(0, 2) + "/" + hash);
+		write(objectFile, bytes("trojan"));
+		assertTrue("tampered object", !store.contains(hash));
+
+		File installed = extract("install");
+
+		assertEquals("installed", "original", text(new File(installed, "plugins/a.jar")));
+		assertEquals("object", "original", text(objectFile));
+		assertTrue("replaced object", store.contains(hash));
+	}
+
+	/**
+	 * An installed jar modified through its hard link doesn't spread to the
+	 * next installation
+	 */
+	public void testModifiedLinkNotShared() throws Exception
+	{
+		File first = extract("first");
+		write(new File(first, "plugins/a.jar"), bytes("modified"));
+
+		File second = extract("second");
+
+		assertEquals("second", "original", text(new File(second, "plugins/a.jar")));
+	}
+
+	/**
+	 * On POSIX file systems only the owner can access the store
+	 */
+	public void testOwnerOnly() throws Exception
+	{
+		PosixFileAttributeView view = Files.getFileAttributeView(storeDir.toPath(), PosixFileAttributeView.class);
+		if(view == null)
+			return;
+
+		view.setPermissions(PosixFilePermissions.fromString("rwxrwxrwx"));
+		store.open();
+
+		assertEquals("permissions", PosixFilePermissions.fromString("rwx------"), view.readAttributes()
+		        .permissions());
+	}
+
+	private File extract(String name) throws Exception
+	{
+		File destDir = new File(getDir(), name);
+		UnpackThread unpackThread = new UnpackThread(destDir, 2, new Progress());
+		unpackThread.setContentStore(store);
+		unpackThread.addNextFile(archive);
+		unpackThread.finish();
+		return destDir;
+	}
+
+	private static byte[] bytes(String s) throws IOException
+	{
+		return s.getBytes("UTF-8");
+	}
+
+	private static String text(File file) throws IOException
+	{
+		return new String(read(file), "UTF-8");
+	}
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Round trips of archives through DeltaGenerator and DeltaArchive: the
+ * rebuilt archive must have the entries of the new version, in the same
+ * order and with the same content
+ */
+public class DeltaArchiveTest extends TestCase
+{
+	private File base, target, delta, result;
+
+	protected void setUp() throws Exception
+	{
+		base = new File(getDir(), "base.zip");
+		target = new File(getDir(), "target.zip");
+		delta = new File(getDir(), "app.delta.zip");
+		result = new File(getDir(), "result.zip");
+	}
+
+	public void testUnchanged() throws Exception
+	{
+		byte[] archive = zip("plugins/", null, "plugins/a.jar", "a", "b.txt", "b");
+		roundTrip(archive, archive);
+
+		assertEquals("delta entries", list(DeltaArchive.INDEX), names(delta));
+	}
+
+	public void testChanged() throws Exception
+	{
+		roundTrip(zip("a.txt", "a", "b.txt", "b"), zip("a.txt", "a", "b.txt", "b2"));
+
+		assertEquals("delta entries", list("b.txt", DeltaArchive.INDEX), names(delta));
+	}
+
+	/**
+	 * Large changed entries are contained as binary patch
+	 */
+	public void testChangedAsPatch() throws Exception
+	{
+		String large = random(300 * 1024);
+		String changed = large.substring(0, 1000) + "changed" + large.substring(2000) + "appended";
+		roundTrip(zip("a.txt", "a", "large.jar", large), zip("a.txt", "a", "large.jar", changed));
+
+		assertEquals("delta entries", list("large.jar" + BinaryPatch.SUFFIX, DeltaArchive.INDEX), names(delta));
+		assertTrue("delta size " + delta.length(), delta.length() < 10 * 1024);
+	}
+
+	public void testAdded() throws Exception
+	{
+		roundTrip(zip("a.txt", "a"), zip("a.txt", "a", "b.txt", "b"));
+
+		assertEquals("delta entries", list("b.txt", DeltaArchive.INDEX), names(delta));
+	}
+
+	public void testDeleted() throws Exception
+	{
+		roundTrip(zip("a.txt", "a", "b.txt", "b"), zip("b.txt", "b"));
+
+		assertEquals("delta entries", list(DeltaArchive.INDEX), names(delta));
+	}
+
+	/**
+	 * Unchanged, changed, patched, added and deleted entries and directories
+	 * in one archive, in a different order than before
+	 */
+	public void testMixed() throws Exception
+	{
+		String large = random(300 * 1024);
+		roundTrip(zip("plugins/", null, "plugins/a_1/", null, "plugins/a_1/a.jar", "a1", "plugins/c.jar", "c",
+		        "large.jar", large, "deleted.txt", "d", "b.txt", "b"),
+		        zip("b.txt", "b2", "plugins/", null, "plugins/a_2/", null, "plugins/a_2/a.jar", "a2", "large.jar",
+		                "x" + large, "plugins/c.jar", "c", "added.txt", "e"));
+
+		assertEquals("delta entries", list("b.txt", "plugins/a_2/", "plugins/a_2/a.jar",
+		        "large.jar" + BinaryPatch.SUFFIX, "added.txt", DeltaArchive.INDEX), names(delta));
+	}
+
+	/**
+	 * A delta applied to another version than it was created for fails
+	 */
+	public void testWrongBase() throws Exception
+	{
+		roundTrip(zip("a.txt", "a", "b.txt", "b"), zip("a.txt", "a", "b.txt", "b2"));
+		write(base, zip("a.txt", "a0", "b.txt", "b"));
+
+		try
+		{
+			DeltaArchive.apply(base, delta, result);
+			fail("applied to the wrong base");
+		}
+		catch(IOException ex)
+		{
+			assertEquals("error", "Delta doesn't match the installed archive: a.txt", ex.getMessage());
+		}
+	}
+
+	public void testAddedDirectory() throws Exception
+	{
+		roundTrip(zip("plugins/", null, "plugins/a_1/", null, "plugins/a_1/a.jar", "a1"),
+		        zip("plugins/", null, "plugins/a_1/", null, "plugins/a_1/a.jar", "a1", "plugins/a_2/", null,
+		                "plugins/a_2/a.jar", "a2"));
+
+		assertEquals("delta entries", list("plugins/a_2/", "plugins/a_2/a.jar", DeltaArchive.INDEX), names(delta));
+	}
+
+	public void testRemovedDirectory() throws Exception
+	{
+		roundTrip(zip("plugins/", null, "plugins/a_1/", null, "plugins/a_1/a.jar", "a1", "plugins/b/", null),
+		        zip("plugins/", null, "plugins/b/", null));
+
+		assertEquals("delta entries", list(DeltaArchive.INDEX), names(delta));
+	}
+
+	/**
+	 * Deltas of older generators don't contain new directories
+	 */
+	public void testDirectoryMissingInDelta() throws Exception
+	{
+		write(base, zip("a.txt", "a"));
+		write(target, zip("a.txt", "a", "plugins/", null, "plugins/b.txt", "b"));
+
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(delta));
+		out.putNextEntry(new ZipEntry("plugins/b.txt"));
+		out.write("b".getBytes("UTF-8"));
+		out.closeEntry();
+		out.putNextEntry(new ZipEntry(DeltaArchive.INDEX));
+		Writer index = new OutputStreamWriter(out, "UTF-8");
+		ZipFile targetZip = new ZipFile(target);
+		try
+		{
+			DeltaArchive.writeIndex(targetZip, index);
+		}
+		finally
+		{
+			targetZip.close();
+		}
+		index.close();
+
+		DeltaArchive.apply(base, delta, result);
+		assertSameEntries();
+	}
+
+	/*
+	 * Create the delta between two versions and rebuild the new one
+	 */
+	private void roundTrip(byte[] from, byte[] to) throws IOException
+	{
+		write(base, from);
+		write(target, to);
+		DeltaGenerator.generate(base, target, delta);
+		DeltaArchive.apply(base, delta, result);
+		assertSameEntries();
+	}
+
+	private void assertSameEntries() throws IOException
+	{
+		assertEquals("entries", names(target), names(result));
+
+		ZipFile expected = new ZipFile(target);
+		ZipFile actual = new ZipFile(result);
+		try
+		{
+			Enumeration<? extends ZipEntry> entries = expected.entries();
+			while(entries.hasMoreElements())
+			{
+				ZipEntry entry = entries.nextElement();
+				ZipEntry rebuilt = actual.getEntry(entry.getName());
+				assertEquals(entry.getName() + " is directory", entry.isDirectory(), rebuilt.isDirectory());
+				assertEquals(entry.getName(), content(expected, entry), content(actual, rebuilt));
+			}
+		}
+		finally
+		{
+			expected.close();
+			actual.close();
+		}
+	}
+
+	private static List<String> names(File file) throws IOException
+	{
+		List<String> names = new ArrayList<String>();
+		ZipFile zip = new ZipFile(file);
+		try
+		{
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while(entries.hasMoreElements())
+				names.add(entries.nextElement().getName());
+		}
+		finally
+		{
+			zip.close();
+		}
+		return names;
+	}
+
+	/*
+	 * Text which doesn't compress well, like the content of a jar
+	 */
+	private static String random(int length)
+	{
+		Random random = new Random(length);
+		StringBuilder s = new StringBuilder(length);
+		for(int i = 0; i < length; ++i)
+			s.append((char) ('!' + random.nextInt(94)));
+		return s.toString();
+	}
+
+	private static List<String> list(String... names)
+	{
+		List<String> list = new ArrayList<String>();
+		for(String name: names)
+			list.add(name);
+		return list;
+	}
+
+	private static byte[] content(ZipFile zip, ZipEntry entry) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = zip.getInputStream(entry);
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int size;
+			while((size = in.read(buffer)) > 0)
+				bytes.write(buffer, 0, size);
+		}
+		finally
+		{
+			in.close();
+		}
+		return bytes.toByteArray();
+	}
+}
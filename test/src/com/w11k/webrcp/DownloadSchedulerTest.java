@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Conditional and resumed downloads against a local HTTP server
+ */
+public class DownloadSchedulerTest extends TestCase
+{
+	private static final String ETAG          = "\"v2\"";
+
+	private static final String LAST_MODIFIED = "Tue, 15 Oct 2013 10:00:00 GMT";
+
+	/*
+	 * Serves a single archive with ETag, Last-Modified and range support and
+	 * records the requests
+	 */
+	private static class ArchiveServer implements HttpHandler
+	{
+		final List<Headers> requests     = new ArrayList<Headers>();
+
+		final List<Integer> responses    = new ArrayList<Integer>();
+
+		byte[]              content;
+
+		String              etag         = ETAG;
+
+		/*
+		 * Last-Modified date of the archive, null if none is sent
+		 */
+		String              lastModified = LAST_MODIFIED;
+
+		/*
+		 * Answer range requests with 416
+		 */
+		boolean             unsatisfiable;
+
+		/*
+		 * Answer range requests with the complete archive
+		 */
+		boolean             ignoreRange;
+
+		/*
+		 * Close the connection of the next complete response after this
+		 * number of bytes, 0 for never
+		 */
+		int                 truncate;
+
+		public synchronized void handle(HttpExchange exchange) throws IOException
+		{
+			Headers in = exchange.getRequestHeaders();
+			requests.add(in);
+			exchange.getResponseHeaders().set("ETag", etag);
+			if(lastModified != null)
+				exchange.getResponseHeaders().set("Last-Modified", lastModified);
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+			String range = in.getFirst("Range");
+			String ifRange = in.getFirst("If-Range");
+			long start = 0;
+			int status = 200;
+			if(etag.equals(in.getFirst("If-None-Match")))
+			{
+				status = 304;
+			}
+			else if(range != null && unsatisfiable)
+			{
+				status = 416;
+			}
+			else if(range != null && !ignoreRange && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified)))
+			{
+				start = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range",
+				        "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+			}
+			responses.add(status);
+
+			if(status >= 300)
+			{
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+				return;
+			}
+
+			exchange.sendResponseHeaders(status, content.length - start);
+			OutputStream out = exchange.getResponseBody();
+			if(status == 200 && truncate > 0)
+			{
+				out.write(content, 0, truncate);
+				out.flush();
+				truncate = 0;
+				exchange.close();
+				return;
+			}
+			out.write(content, (int) start, (int) (content.length - start));
+			out.close();
+		}
+	}
+
+	private List<HttpServer>  httpServers = new ArrayList<HttpServer>();
+
+	private ArchiveServer     server;
+
+	private File              tempDir, unpackDir, destFile;
+
+	private ArchiveValidators validators;
+
+	private UnpackThread      unpackThread;
+
+	private DownloadScheduler scheduler;
+
+	private byte[]            archive;
+
+	protected void setUp() throws Exception
+	{
+		StringBuilder large = new StringBuilder();
+		for(int i = 0; i < 4000; ++i)
+			large.append(i).append('\n');
+		archive = zip("plugins/", null, "plugins/a.txt", large.toString(), "b.txt", "b");
+
+		server = new ArchiveServer();
+		server.content = archive;
+
+		tempDir = getDir();
+		unpackDir = new File(tempDir, "unpacked");
+		destFile = new File(tempDir, "app.zip");
+		validators = new ArchiveValidators(new File(tempDir, "archives.properties"));
+		unpackThread = new UnpackThread(unpackDir, 2, new Progress());
+		scheduler = new DownloadScheduler(1, unpackThread, validators, new Progress());
+	}
+
+	protected void tearDown() throws Exception
+	{
+		for(HttpServer httpServer: httpServers)
+			httpServer.stop(0);
+	}
+
+	/**
+	 * A partial download with a known validator continues where it stopped
+	 */
+	public void testResume() throws Exception
+	{
+		int offset = archive.length / 2;
+		partial(offset, ETAG);
+
+		download();
+
+		assertEquals("requests", 1, server.requests.size());
+		assertEquals("Range", "bytes=" + offset + "-", server.requests.get(0).getFirst("Range"));
+		assertEquals("If-Range", ETAG, server.requests.get(0).getFirst("If-Range"));
+		assertEquals("status", 206, server.responses.get(0).intValue());
+		assertInstalled();
+		assertEquals("SHA-256", sha256(archive), validators.getSHA256(destFile.getName()));
+	}
+
+	/**
+	 * A transfer interrupted by the server is resumed by the next attempt,
+	 * which continues the hash of the received bytes
+	 */
+	public void testInterruptedTransferResumed() throws Exception
+	{
+		server.truncate = archive.length / 2;
+
+		download();
+
+		assertEquals("responses", Arrays.asList(200, 206), server.responses);
+		assertEquals("Range", "bytes=" + archive.length / 2 + "-", server.requests.get(1).getFirst("Range"));
+		assertInstalled();
+		assertEquals("SHA-256", sha256(archive), validators.getSHA256(destFile.getName()));
+	}
+
+	/**
+	 * If the archive changed since the partial download, the server sends all
+	 * of it and the partial content is discarded
+	 */
+	public void testResumeChanged() throws Exception
+	{
+		partial(archive.length / 2, "\"v1\"");
+
+		download();
+
+		assertEquals("requests", 1, server.requests.size());
+		assertEquals("If-Range", "\"v1\"", server.requests.get(0).getFirst("If-Range"));
+		assertEquals("status", 200, server.responses.get(0).intValue());
+		assertInstalled();
+	}
+
+	/**
+	 * A range the server can't satisfy restarts the download without range
+	 */
+	public void testRangeNotSatisfiable() throws Exception
+	{
+		partial(archive.length / 2, ETAG);
+		server.unsatisfiable = true;
+
+		download();
+
+		assertEquals("responses", Arrays.asList(416, 200), server.responses);
+		assertEquals("Range of the restarted request", null, server.requests.get(1).getFirst("Range"));
+		assertInstalled();
+	}
+
+	/**
+	 * A segmented download killed before it could truncate its preallocated
+	 * part file resumes at the end of the bytes received without gaps
+	 */
+	public void testPreallocatedResumed() throws Exception
+	{
+		int offset = archive.length / 2;
+		preallocated(offset);
+
+		download();
+
+		assertEquals("responses", Arrays.asList(206), server.responses);
+		assertEquals("Range", "bytes=" + offset + "-", server.requests.get(0).getFirst("Range"));
+		assertInstalled();
+		assertEquals("SHA-256", sha256(archive), validators.getSHA256(destFile.getName()));
+	}
+
+	/**
+	 * A server which ignores the range request sends the complete archive,
+	 * it replaces the preallocated part file
+	 */
+	public void testRangeIgnored() throws Exception
+	{
+		preallocated(archive.length / 2);
+		server.ignoreRange = true;
+
+		download();
+
+		assertEquals("responses", Arrays.asList(200), server.responses);
+		assertEquals("Range", "bytes=" + archive.length / 2 + "-", server.requests.get(0).getFirst("Range"));
+		assertInstalled();
+		assertEquals("SHA-256", sha256(archive), validators.getSHA256(destFile.getName()));
+	}
+
+	/**
+	 * An installed archive is only validated, but not fetched again
+	 */
+	public void testNotModified() throws Exception
+	{
+		write(destFile, archive);
+		validators.put(destFile.getName(), ETAG, null, null);
+
+		download();
+
+		assertEquals("responses", Arrays.asList(304), server.responses);
+		assertEquals("If-None-Match", ETAG, server.requests.get(0).getFirst("If-None-Match"));
+		assertInstalled();
+	}
+
+	/**
+	 * A modified archive is fetched completely and its new validator is
+	 * recorded
+	 */
+	public void testModified() throws Exception
+	{
+		write(destFile, zip("b.txt", "a"));
+		validators.put(destFile.getName(), "\"v1\"", null, null);
+
+		download();
+
+		assertEquals("responses", Arrays.asList(200), server.responses);
+		assertEquals("If-None-Match", "\"v1\"", server.requests.get(0).getFirst("If-None-Match"));
+		assertInstalled();
+		assertEquals("ETag", ETAG, validators.getETag(destFile.getName()));
+	}
+
+	/**
+	 * The validators of a downloaded archive are only recorded after it has
+	 * been extracted, a crash before leaves the previous ones
+	 */
+	public void testValidatorsRecordedAfterExtraction() throws Exception
+	{
+		final List<Runnable> extracted = new ArrayList<Runnable>();
+		unpackThread.finish();
+		unpackThread = new UnpackThread(unpackDir, 2, new Progress()) {
+			public void addNextFile(File file, boolean replace, Runnable onExtracted)
+			{
+				// The extraction doesn't finish
+				extracted.add(onExtracted);
+			}
+		};
+		scheduler = new DownloadScheduler(1, unpackThread, validators, new Progress());
+		write(destFile, archive);
+		validators.put(destFile.getName(), "\"v1\"", null, "0");
+
+		download();
+
+		assertEquals("ETag before extraction", "\"v1\"", validators.getETag(destFile.getName()));
+		assertEquals("extractions", 1, extracted.size());
+		extracted.get(0).run();
+		assertEquals("ETag after extraction", ETAG, validators.getETag(destFile.getName()));
+		assertEquals("stored ETag", ETAG,
+		        new ArchiveValidators(new File(tempDir, "archives.properties")).getETag(destFile.getName()));
+	}
+
+	/**
+	 * A download broken off by the primary server continues at the mirror.
+	 * Its ETag differs, so the partial content is validated by the
+	 * Last-Modified date.
+	 */
+	public void testFailoverResumed() throws Exception
+	{
+		ArchiveServer mirror = mirror();
+
+		failover(mirror);
+
+		assertEquals("responses", Arrays.asList(200), server.responses);
+		assertEquals("mirror responses", Arrays.asList(206), mirror.responses);
+		assertEquals("If-Range", LAST_MODIFIED, mirror.requests.get(0).getFirst("If-Range"));
+		assertInstalled();
+		assertEquals("SHA-256", sha256(archive), validators.getSHA256(destFile.getName()));
+	}
+
+	/**
+	 * Without a date the mirror can't validate the partial content of
+	 * another server, the archive is downloaded again
+	 */
+	public void testFailoverWithoutDate() throws Exception
+	{
+		ArchiveServer mirror = mirror();
+		server.lastModified = mirror.lastModified = null;
+
+		failover(mirror);
+
+		assertEquals("mirror responses", Arrays.asList(200), mirror.responses);
+		assertEquals("Range", null, mirror.requests.get(0).getFirst("Range"));
+		assertInstalled();
+	}
+
+	/**
+	 * With a published checksum the partial content is resumed without
+	 * validator, the checksum verifies the combined archive
+	 */
+	public void testFailoverVerifiedByChecksum() throws Exception
+	{
+		ArchiveServer mirror = mirror();
+		server.lastModified = mirror.lastModified = null;
+		File manifest = write(new File(getDir(), "SHA256SUMS"), (sha256(archive) + "  app.zip\n").getBytes("UTF-8"));
+		scheduler.setChecksums(new ChecksumManifest(manifest.toURI().toURL()));
+
+		failover(mirror);
+
+		assertEquals("mirror responses", Arrays.asList(206), mirror.responses);
+		assertEquals("If-Range", null, mirror.requests.get(0).getFirst("If-Range"));
+		assertInstalled();
+	}
+
+	/*
+	 * Mirror of the archive with an ETag of its own
+	 */
+	private ArchiveServer mirror()
+	{
+		ArchiveServer mirror = new ArchiveServer();
+		mirror.content = archive;
+		mirror.etag = "\"m1\"";
+		return mirror;
+	}
+
+	/*
+	 * Download from the primary server, which breaks off after half of the
+	 * archive
+	 */
+	private void failover(ArchiveServer mirror) throws IOException
+	{
+		server.truncate = archive.length / 2;
+		String primary = start(server);
+		scheduler.setMirrors(new Mirrors(primary, new String[] { start(mirror) }));
+		download(primary);
+	}
+
+	/*
+	 * Leave the first bytes of the archive as interrupted download
+	 */
+	private void partial(int length, String validator) throws IOException
+	{
+		PartialDownload part = new PartialDownload(destFile);
+		part.restart(validator);
+		write(part.getPartFile(), Arrays.copyOf(archive, length));
+		part.save();
+	}
+
+	/*
+	 * Leave a preallocated part file as left by a killed segmented download,
+	 * only its first contiguousEnd bytes were received
+	 */
+	private void preallocated(int contiguousEnd) throws IOException
+	{
+		PartialDownload part = new PartialDownload(destFile);
+		part.restart(ETAG);
+		byte[] content = new byte[archive.length];
+		System.arraycopy(archive, 0, content, 0, contiguousEnd);
+		write(part.getPartFile(), content);
+		part.setContiguousEnd(contiguousEnd);
+	}
+
+	/*
+	 * Start an HTTP server for handler and return its base URL
+	 */
+	private String start(ArchiveServer handler) throws IOException
+	{
+		HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		httpServer.createContext("/", handler);
+		httpServer.start();
+		httpServers.add(httpServer);
+		return "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/";
+	}
+
+	private void download() throws IOException
+	{
+		download(start(server));
+	}
+
+	private void download(String base) throws IOException
+	{
+		scheduler.schedule(new URL(base + "app.zip"), destFile);
+		scheduler.finish();
+		unpackThread.finish();
+	}
+
+	private static String sha256(byte[] content) throws IOException
+	{
+		return ContentStore.hash(new ByteArrayInputStream(content));
+	}
+
+	private void assertInstalled() throws IOException
+	{
+		assertEquals("archive", archive, read(destFile));
+		assertTrue("part file removed", !new File(destFile.getPath() + ".part").exists());
+		assertEquals("extracted", "b", new String(read(new File(unpackDir, "b.txt")), "UTF-8"));
+		assertTrue("extracted", new File(unpackDir, "plugins/a.txt").isFile());
+	}
+}
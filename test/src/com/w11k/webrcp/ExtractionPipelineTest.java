@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test of the hand-off between producers and consumers: no work may
+ * get lost and no consumer may hang after close, whatever the interleaving
+ */
+public class ExtractionPipelineTest extends TestCase
+{
+	private static final int  ROUNDS    = 200;
+
+	private static final int  PRODUCERS = 4, CONSUMERS = 3, ITEMS = 500;
+
+	/*
+	 * Time a thread may take to terminate before it counts as hanging
+	 */
+	private static final long TIMEOUT   = 5000;
+
+	/**
+	 * Several producers and consumers on pipelines of capacity 1 to 3
+	 */
+	public void testProducersAndConsumers() throws Exception
+	{
+		for(int round = 0; round < ROUNDS; ++round)
+		{
+			final ExtractionPipeline<Integer> pipeline = new ExtractionPipeline<Integer>(1 + round % 3);
+			final AtomicLong sum = new AtomicLong();
+			final AtomicInteger taken = new AtomicInteger();
+
+			List<Thread> consumers = new ArrayList<Thread>();
+			for(int i = 0; i < CONSUMERS; ++i)
+			{
+				consumers.add(start(new Runnable() {
+					public void run()
+					{
+						try
+						{
+							Integer item;
+							while((item = pipeline.take()) != null)
+							{
+								sum.addAndGet(item);
+								taken.incrementAndGet();
+							}
+						}
+						catch(InterruptedException ex)
+						{
+							// Reported as hanging consumer
+						}
+					}
+				}));
+			}
+
+			List<Thread> producers = new ArrayList<Thread>();
+			for(int i = 0; i < PRODUCERS; ++i)
+			{
+				producers.add(start(new Runnable() {
+					public void run()
+					{
+						try
+						{
+							for(int item = 1; item <= ITEMS; ++item)
+								pipeline.put(item);
+						}
+						catch(InterruptedException ex)
+						{
+							// Reported as lost work
+						}
+					}
+				}));
+			}
+
+			join(producers, "producer");
+			pipeline.close();
+			join(consumers, "consumer");
+
+			assertEquals("items taken in round " + round, PRODUCERS * ITEMS, taken.get());
+			assertEquals("sum in round " + round, (long) PRODUCERS * ITEMS * (ITEMS + 1) / 2, sum.get());
+		}
+	}
+
+	/**
+	 * Work added before close is still taken, close waits for room
+	 */
+	public void testCloseWhenFull() throws Exception
+	{
+		final ExtractionPipeline<Integer> pipeline = new ExtractionPipeline<Integer>(1);
+		pipeline.put(1);
+
+		Thread closer = start(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					pipeline.close();
+				}
+				catch(InterruptedException ex)
+				{
+					// Reported as hanging
+				}
+			}
+		});
+
+		assertEquals("first item", Integer.valueOf(1), pipeline.take());
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(closer);
+		join(threads, "close");
+		assertEquals("end", null, pipeline.take());
+		assertEquals("end for a further consumer", null, pipeline.take());
+	}
+
+	/**
+	 * Nothing can be added behind the poison pill
+	 */
+	public void testPutAfterClose() throws Exception
+	{
+		ExtractionPipeline<Integer> pipeline = new ExtractionPipeline<Integer>(2);
+		pipeline.close();
+		try
+		{
+			pipeline.put(1);
+			fail("put after close");
+		}
+		catch(IllegalStateException ex)
+		{
+			// Expected
+		}
+		assertTrue("closed", pipeline.isClosed());
+	}
+
+	/**
+	 * Archives added concurrently are all extracted before finish returns,
+	 * an unpack thread without work terminates as well
+	 */
+	public void testUnpackThreadFinish() throws Exception
+	{
+		final File[] archives = new File[PRODUCERS];
+		for(int i = 0; i < archives.length; ++i)
+			archives[i] = write(new File(getDir(), "a" + i + ".zip"), zip("f" + i, "content " + i));
+
+		for(int round = 0; round < ROUNDS; ++round)
+		{
+			File destDir = new File(getDir(), "unpacked" + round);
+			final UnpackThread unpackThread = new UnpackThread(destDir, 2, new Progress());
+			final int count = round % (archives.length + 1);
+
+			List<Thread> producers = new ArrayList<Thread>();
+			for(int i = 0; i < count; ++i)
+			{
+				final File archive = archives[i];
+				producers.add(start(new Runnable() {
+					public void run()
+					{
+						unpackThread.addNextFile(archive);
+					}
+				}));
+			}
+
+			join(producers, "producer");
+			unpackThread.finish();
+
+			assertTrue("unpack thread terminated in round " + round, !unpackThread.isAlive());
+			for(int i = 0; i < archives.length; ++i)
+				assertEquals("f" + i + " extracted in round " + round, i < count, new File(destDir, "f" + i).isFile());
+		}
+	}
+
+	private static Thread start(Runnable runnable)
+	{
+		Thread thread = new Thread(runnable);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void join(List<Thread> threads, String name) throws InterruptedException
+	{
+		for(Thread thread: threads)
+		{
+			thread.join(TIMEOUT);
+			assertTrue(name + " hangs", !thread.isAlive());
+		}
+	}
+}
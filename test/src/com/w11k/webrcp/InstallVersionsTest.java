@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Updates are staged in a new version directory and leave the active one
+ * untouched until they are activated
+ */
+public class InstallVersionsTest extends TestCase
+{
+	private InstallVersions versions;
+
+	private File            active;
+
+	protected void setUp() throws Exception
+	{
+		versions = new InstallVersions(getDir(), new Trash(getDir(), 1));
+		active = versions.createNext("1.0");
+		write(new File(active, "a.txt"), bytes("a1"));
+		write(new File(active, "plugins/b.txt"), bytes("b1"));
+		write(new File(active, "workspace/settings"), bytes("w"));
+		versions.activate(active);
+	}
+
+	/**
+	 * A new version starts with the content of the seed, except the
+	 * workspace
+	 */
+	public void testSeeded() throws Exception
+	{
+		File next = versions.createNext("2.0", active);
+
+		assertTrue("new directory", !next.equals(active));
+		assertEquals("a.txt", "a1", text(new File(next, "a.txt")));
+		assertEquals("plugins/b.txt", "b1", text(new File(next, "plugins/b.txt")));
+		assertTrue("workspace isn't copied", !new File(next, "workspace").exists());
+		assertEquals("still active", active, versions.getCurrent());
+	}
+
+	public void testEmpty() throws Exception
+	{
+		File next = versions.createNext("2.0", null);
+
+		String[] content = next.list();
+		assertEquals("content", 0, content.length);
+	}
+
+	/**
+	 * Extracting into the new version doesn't change the active one, even if
+	 * the files are hard links
+	 */
+	public void testExtractionLeavesSeedUntouched() throws Exception
+	{
+		new ExtractionManifest(active).save();
+		File next = versions.createNext("2.0", active);
+		File archive = write(new File(getDir(), "app.zip"), zip("a.txt", "a2", "plugins/b.txt", "b1"));
+
+		UnpackThread unpackThread = new UnpackThread(next, 2, new Progress());
+		unpackThread.addNextFile(archive, true);
+		unpackThread.finish();
+
+		assertEquals("updated", "a2", text(new File(next, "a.txt")));
+		assertEquals("active a.txt", "a1", text(new File(active, "a.txt")));
+		assertTrue("new manifest", new ExtractionManifest(next).contains("a.txt"));
+		assertTrue("active manifest", new ExtractionManifest(active).isEmpty());
+	}
+
+	/**
+	 * Activation switches the pointer and moves the workspace over
+	 */
+	public void testActivate() throws Exception
+	{
+		File next = versions.createNext("2.0", active);
+		versions.activate(next);
+
+		assertEquals("current", next, versions.getCurrent());
+		assertEquals("workspace", "w", text(new File(next, "workspace/settings")));
+	}
+
+	private static byte[] bytes(String s) throws IOException
+	{
+		return s.getBytes("UTF-8");
+	}
+
+	private static String text(File file) throws IOException
+	{
+		return new String(read(file), "UTF-8");
+	}
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Compares the text of the shortcuts in test/data/shortcut with the files
+ * next to them, which were written by the previous Shortcut.toString in UTC
+ * with '\n' as line separator. Checks the escaping of JSON strings and that
+ * the time of a dump grows linearly with the shell item list.
+ */
+public class ShortcutDumpTest extends TestCase
+{
+	private static final String LS = System.getProperty("line.separator");
+
+	private TimeZone            timeZone;
+
+	protected void setUp() throws Exception
+	{
+		timeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+	}
+
+	protected void tearDown() throws Exception
+	{
+		TimeZone.setDefault(timeZone);
+	}
+
+	public void testStrings() throws Exception
+	{
+		assertText("strings");
+	}
+
+	public void testLocal() throws Exception
+	{
+		assertText("local");
+	}
+
+	public void testNetwork() throws Exception
+	{
+		assertText("network");
+	}
+
+	/**
+	 * Quotes, backslashes and control characters are escaped, everything
+	 * else is written as it is
+	 */
+	public void testJsonEscaping() throws Exception
+	{
+		Shortcut shortcut = new Shortcut();
+		shortcut.description = "say \"hi\" \\ \u0000\u0001\t\n\r\u001f \u007f\u00e4";
+
+		StringBuilder json = new StringBuilder();
+		shortcut.dumpJson(json);
+
+		String expected =
+		        "\"description\": \"say \\\"hi\\\" \\\\ \\u0000\\u0001\\u0009\\u000A\\u000D\\u001F \u007f\u00e4\"";
+		assertTrue("escaped description in " + json, json.indexOf(expected) >= 0);
+		assertTrue("null values", json.indexOf("\"commandLine\": null") >= 0);
+	}
+
+	/**
+	 * Four times the shell item ids take about four times as long. Each
+	 * size is dumped several times and the fastest run is compared, a
+	 * quadratic dump would take sixteen times as long.
+	 */
+	public void testLinearTime() throws Exception
+	{
+		dump(shellItems(1000));
+
+		long small = fastestDump(shellItems(5000));
+		long large = fastestDump(shellItems(20000));
+
+		assertTrue("dump of 4 times the shell item ids took " + large + " ns instead of " + small + " ns",
+		        large < 8 * Math.max(small, 1000000));
+	}
+
+	/*
+	 * Compare text, toString and the fixture written by the previous toString
+	 */
+	private static void assertText(String name) throws Exception
+	{
+		File dir = new File(System.getProperty("test.data", "test/data"), "shortcut");
+		Shortcut shortcut = Shortcut.loadShortcut(new File(dir, name + ".lnk"));
+		String expected = new String(read(new File(dir, name + ".txt")), "UTF-8").replace("\n", LS);
+
+		StringBuilder text = new StringBuilder();
+		shortcut.dump(text);
+		assertEquals(name + " dump", expected, text.toString());
+		assertEquals(name + " toString", expected, shortcut.toString());
+	}
+
+	private static Shortcut shellItems(int count)
+	{
+		Shortcut shortcut = new Shortcut();
+		byte[] content = new byte[64];
+		for(int i = 0; i < content.length; ++i)
+			content[i] = (byte) i;
+		for(int i = 0; i < count; ++i)
+			shortcut.shellItemIDList.add(new Shortcut.ShellItemID(content));
+		return shortcut;
+	}
+
+	private static long fastestDump(Shortcut shortcut) throws IOException
+	{
+		long fastest = Long.MAX_VALUE;
+		for(int i = 0; i < 5; ++i)
+		{
+			long start = System.nanoTime();
+			long length = dump(shortcut);
+			fastest = Math.min(fastest, System.nanoTime() - start);
+			assertTrue("length", length > 128L * shortcut.shellItemIDList.size());
+		}
+		return fastest;
+	}
+
+	/*
+	 * Dump JSON and the text of every shell item id to a target which only
+	 * counts the chars, return their number
+	 */
+	private static long dump(Shortcut shortcut) throws IOException
+	{
+		CountingAppendable out = new CountingAppendable();
+		shortcut.dumpJson(out);
+		for(Shortcut.ShellItemID id: shortcut.shellItemIDList)
+			ShortcutDump.text(id, out);
+		return out.count;
+	}
+
+	private static class CountingAppendable implements Appendable
+	{
+		long count;
+
+		public Appendable append(CharSequence csq)
+		{
+			count += csq.length();
+			return this;
+		}
+
+		public Appendable append(CharSequence csq, int start, int end)
+		{
+			count += end - start;
+			return this;
+		}
+
+		public Appendable append(char c)
+		{
+			++count;
+			return this;
+		}
+	}
+}
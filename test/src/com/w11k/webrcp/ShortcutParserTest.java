@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Parses the files in test/data/shortcut and compares the fields with the
+ * shortcuts they were written from. The previous loadShortcut returned the
+ * same values, except for the ANSI strings of the file location, which it
+ * didn't end at their terminating NUL. These differences are listed with
+ * the tests. Truncated and corrupted files must only fail with
+ * MalformedShortcutException.
+ */
+public class ShortcutParserTest extends TestCase
+{
+	private static final String[] FIXTURES = new String[] {
+	        "strings.lnk",
+	        "empty.lnk",
+	        "local.lnk",
+	        "local-short-label.lnk",
+	        "local-long-label.lnk",
+	        "network.lnk",
+	        "network-short-share.lnk" };
+
+	/*
+	 * Offset of the flags in the header and of the description length in
+	 * strings.lnk, which follows the empty shell item id list
+	 */
+	private static final int      FLAGS    = 0x14;
+
+	private static final int      STRINGS  = 0x4C + 4;
+
+	private final ShortcutParser  parser   = new ShortcutParser();
+
+	public void testStrings() throws Exception
+	{
+		assertParsed("strings.lnk", ShortcutWriterTest.strings());
+	}
+
+	public void testEmpty() throws Exception
+	{
+		assertParsed("empty.lnk", new Shortcut());
+	}
+
+	/**
+	 * The previous code returned the base path followed by the bytes of the
+	 * remaining path, "C:\Program Files\App\\0app.ex"
+	 */
+	public void testLocal() throws Exception
+	{
+		assertParsed("local.lnk", ShortcutWriterTest.local("SYSTEM"));
+	}
+
+	/**
+	 * The previous writer cleared the type of the volume
+	 */
+	public void testLocalShortLabel() throws Exception
+	{
+		Shortcut expected = ShortcutWriterTest.local("DATA");
+		expected.fileLocationInfo.lvt.type = 0;
+		assertParsed("local-short-label.lnk", expected);
+	}
+
+	/**
+	 * The previous writer cleared the third char of the label. The previous
+	 * code returned "RE\0OVERY_PARTITION", the label ends at the NUL now.
+	 */
+	public void testLocalLongLabel() throws Exception
+	{
+		assertParsed("local-long-label.lnk", ShortcutWriterTest.local("RE"));
+	}
+
+	public void testNetwork() throws Exception
+	{
+		assertParsed("network.lnk", ShortcutWriterTest.network("\\\\server\\share"));
+	}
+
+	/**
+	 * The previous writer cleared the offset of the share name, so it is read
+	 * from the start of the volume table. The previous code returned
+	 * " \0\0\0\3\0\0\0", it ends at the first NUL now.
+	 */
+	public void testNetworkShortShare() throws Exception
+	{
+		assertParsed("network-short-share.lnk", ShortcutWriterTest.network(" "));
+	}
+
+	/**
+	 * Files above the threshold are mapped, the strings are decoded from the
+	 * mapped buffer instead of an array
+	 */
+	public void testMapped() throws Exception
+	{
+		Shortcut shortcut = ShortcutWriterTest.strings();
+		char[] description = new char[40 * 1024];
+		Arrays.fill(description, '\u00e4');
+		shortcut.description = new String(description);
+		File file = write(new File(getDir(), "large.lnk"), shortcut.getBytes());
+
+		assertFields("large.lnk", shortcut, parser.parse(file).toShortcut());
+		assertTrue("mapped", file.length() > 64 * 1024);
+
+		File truncated = write(new File(getDir(), "truncated.lnk"), Arrays.copyOf(shortcut.getBytes(),
+		        (int) file.length() - 100));
+		assertMalformed("mapped and truncated", truncated);
+	}
+
+	/**
+	 * A file ending within the header fails while reading the flags
+	 */
+	public void testTruncatedHeader() throws Exception
+	{
+		byte[] bytes = Arrays.copyOf(fixture("strings.lnk"), FLAGS + 2);
+		try
+		{
+			parser.parse(ByteBuffer.wrap(bytes));
+			fail("truncated header parsed");
+		}
+		catch(MalformedShortcutException ex)
+		{
+			assertTrue("cause", ex.getCause() instanceof IndexOutOfBoundsException);
+		}
+	}
+
+	/**
+	 * A string longer than the file fails the bounds check
+	 */
+	public void testStringBeyondEnd() throws Exception
+	{
+		byte[] bytes = fixture("strings.lnk");
+		bytes[STRINGS] = (byte) 0xFF;
+		bytes[STRINGS + 1] = (byte) 0x7F;
+		try
+		{
+			parser.parse(ByteBuffer.wrap(bytes));
+			fail("string beyond the end parsed");
+		}
+		catch(MalformedShortcutException ex)
+		{
+			assertEquals("message", "truncated shortcut", ex.getMessage());
+		}
+	}
+
+	/**
+	 * Every prefix of every fixture is parsed or rejected, but doesn't fail
+	 * with another exception
+	 */
+	public void testTruncated() throws Exception
+	{
+		for(String fixture: FIXTURES)
+		{
+			byte[] bytes = fixture(fixture);
+			for(int length = 0; length < bytes.length; ++length)
+				assertParsedOrMalformed(fixture + " cut at " + length, Arrays.copyOf(bytes, length));
+		}
+	}
+
+	/**
+	 * Random bytes after the header are overwritten, the flags included
+	 */
+	public void testCorrupted() throws Exception
+	{
+		Random random = new Random(1);
+		for(String fixture: FIXTURES)
+		{
+			byte[] bytes = fixture(fixture);
+			for(int i = 0; i < 2000; ++i)
+			{
+				byte[] corrupted = bytes.clone();
+				int count = 1 + random.nextInt(4);
+				for(int j = 0; j < count; ++j)
+					corrupted[FLAGS + random.nextInt(bytes.length - FLAGS)] = (byte) random.nextInt();
+				assertParsedOrMalformed(fixture + " corrupted #" + i, corrupted);
+			}
+		}
+	}
+
+	private void assertParsed(String fixture, Shortcut expected) throws Exception
+	{
+		File file = new File(System.getProperty("test.data", "test/data"), "shortcut/" + fixture);
+		assertFields(fixture, expected, parser.parse(file).toShortcut());
+	}
+
+	private void assertParsedOrMalformed(String message, byte[] bytes)
+	{
+		try
+		{
+			parser.parse(ByteBuffer.wrap(bytes)).toShortcut();
+		}
+		catch(MalformedShortcutException ex)
+		{
+			// Rejected
+		}
+		catch(RuntimeException ex)
+		{
+			throw new AssertionError(message + ": " + ex, ex);
+		}
+	}
+
+	private void assertMalformed(String message, File file) throws Exception
+	{
+		try
+		{
+			parser.parse(file);
+			fail(message + " parsed");
+		}
+		catch(MalformedShortcutException ex)
+		{
+			// Expected
+		}
+	}
+
+	private static void assertFields(String fixture, Shortcut expected, Shortcut actual)
+	{
+		assertEquals(fixture + " attributes", expected.attributes, actual.attributes);
+		assertEquals(fixture + " cTime", expected.cTime, actual.cTime);
+		assertEquals(fixture + " mTime", expected.mTime, actual.mTime);
+		assertEquals(fixture + " aTime", expected.aTime, actual.aTime);
+		assertEquals(fixture + " fileLength", expected.fileLength, actual.fileLength);
+		assertEquals(fixture + " iconID", expected.iconID, actual.iconID);
+		assertEquals(fixture + " showWnd", expected.showWnd, actual.showWnd);
+		assertEquals(fixture + " hotKey", expected.hotKey, actual.hotKey);
+		assertEquals(fixture + " description", expected.description, actual.description);
+		assertEquals(fixture + " relativePath", expected.relativePath, actual.relativePath);
+		assertEquals(fixture + " workingDirectory", expected.workingDirectory, actual.workingDirectory);
+		assertEquals(fixture + " commandLine", expected.commandLine, actual.commandLine);
+		assertEquals(fixture + " iconFileName", expected.iconFileName, actual.iconFileName);
+
+		// Like the previous code, a shortcut without shell item ids has an
+		// empty list
+		int ids = (expected.shellItemIDList != null)
+		        ? expected.shellItemIDList.size()
+		        : 0;
+		assertEquals(fixture + " shell item ids", ids, actual.shellItemIDList.size());
+		for(int i = 0; i < ids; ++i)
+			assertEquals(fixture + " shell item id " + i, expected.shellItemIDList.get(i).content,
+			        actual.shellItemIDList.get(i).content);
+
+		Shortcut.FileLocationInfo fli = expected.fileLocationInfo;
+		if(fli == null)
+		{
+			assertTrue(fixture + " location", actual.fileLocationInfo == null);
+			return;
+		}
+		assertEquals(fixture + " basePathName", fli.basePathName, actual.fileLocationInfo.basePathName);
+		assertEquals(fixture + " remainingPathName", fli.remainingPathName,
+		        actual.fileLocationInfo.remainingPathName);
+		if(fli.lvt != null)
+		{
+			assertEquals(fixture + " type", fli.lvt.type, actual.fileLocationInfo.lvt.type);
+			assertEquals(fixture + " serial", fli.lvt.serial, actual.fileLocationInfo.lvt.serial);
+			assertEquals(fixture + " label", fli.lvt.volumeLabel, actual.fileLocationInfo.lvt.volumeLabel);
+		}
+		else
+		{
+			assertEquals(fixture + " share", fli.nvt.shareName, actual.fileLocationInfo.nvt.shareName);
+			assertEquals(fixture + " mapping", fli.nvt.localShareMapping,
+			        actual.fileLocationInfo.nvt.localShareMapping);
+		}
+	}
+
+	private static byte[] fixture(String name) throws Exception
+	{
+		return read(new File(System.getProperty("test.data", "test/data"), "shortcut/" + name));
+	}
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a batch of shortcuts in which one target can't be written and one
+ * replaces an existing file
+ */
+public class ShortcutProvisionerTest extends TestCase
+{
+	private Shortcut                   shortcut;
+
+	private File                       created, blocked, existing;
+
+	private byte[]                     previous;
+
+	private ShortcutProvisioner.Result result;
+
+	protected void setUp() throws Exception
+	{
+		shortcut = ShortcutWriterTest.strings();
+		created = new File(getDir(), "alice/Desktop/App.lnk");
+		blocked = new File(getDir(), "bob/Desktop/App.lnk");
+		existing = new File(getDir(), "carol/Desktop/App.lnk");
+
+		// The parent of the target is a regular file
+		write(blocked.getParentFile(), new byte[] { 1, 2, 3 });
+		previous = ShortcutWriterTest.local("SYSTEM").getBytes();
+		write(existing, previous);
+	}
+
+	/**
+	 * The failed target is reported, the others are written anyway
+	 */
+	public void testFailureDoesNotStopOthers() throws Exception
+	{
+		provision();
+
+		assertEquals("written", 2, result.getWritten());
+		assertEquals("bytes", 2 * shortcut.getBytes().length, result.getBytes());
+		List<ShortcutProvisioner.Failure> failures = result.getFailures();
+		assertEquals("failures", 1, failures.size());
+		assertEquals("failed target", blocked, failures.get(0).getTarget().getFile());
+		assertTrue("error", failures.get(0).getError() != null);
+		assertEquals("created", shortcut.getBytes(), read(created));
+		assertEquals("blocking file", new byte[] { 1, 2, 3 }, read(blocked.getParentFile()));
+	}
+
+	/**
+	 * The existing file is replaced by a rename. A reader which opened it
+	 * before still reads the complete previous shortcut, no temporary file is
+	 * left behind.
+	 */
+	public void testExistingReplacedAtomically() throws Exception
+	{
+		InputStream in = new FileInputStream(existing);
+		try
+		{
+			provision();
+
+			byte[] read = new byte[previous.length + 1];
+			int length = 0;
+			for(int n; (n = in.read(read, length, read.length - length)) > 0;)
+				length += n;
+			assertEquals("previous shortcut", previous, Arrays.copyOf(read, length));
+		}
+		finally
+		{
+			in.close();
+		}
+
+		assertEquals("replaced", shortcut.getBytes(), read(existing));
+		assertEquals("files", Arrays.asList(existing.getName()), Arrays.asList(existing.getParentFile().list()));
+	}
+
+	private void provision() throws Exception
+	{
+		result = new ShortcutProvisioner(3).provision(Arrays.asList(
+		        new ShortcutProvisioner.Target(created, shortcut),
+		        new ShortcutProvisioner.Target(blocked, shortcut),
+		        new ShortcutProvisioner.Target(existing, shortcut)));
+	}
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Scans a tree of profiles with valid, truncated and other files and queries
+ * the index of the found shortcuts
+ */
+public class ShortcutScannerTest extends TestCase
+{
+	private static final String    INSTALL_DIR = "C:\\Temp\\app\\versions";
+
+	private static final String    CURRENT_DIR = INSTALL_DIR + "\\2.1-k3x9";
+
+	private File                   root;
+
+	private ShortcutIndex          index;
+
+	private List<Exception>        errors      = Collections.synchronizedList(new ArrayList<Exception>());
+
+	private ShortcutScanner.Result result;
+
+	protected void setUp() throws Exception
+	{
+		root = new File(getDir(), "profiles");
+		shortcut("alice/Desktop/App.lnk", "C:\\Temp\\app\\versions\\2.0-abc\\app.exe", null, null);
+		shortcut("bob/Start Menu/app.LNK", "c:/TEMP/App/Versions/2.0-abc/app.exe", null, null);
+		shortcut("carol/launcher.lnk", "C:\\Windows\\system32\\javaw.exe", null,
+		        "-jar \"C:\\Temp\\app\\versions\\2.0-abc\\plugins\\launcher.jar\" -clean");
+		shortcut("current.lnk", CURRENT_DIR + "\\app.exe", "\"" + CURRENT_DIR + "\"", null);
+		shortcut("other.lnk", "C:\\Temp\\app\\versions-old\\app.exe", null, null);
+
+		byte[] valid = new Shortcut(INSTALL_DIR + "\\2.0-abc\\app.exe").getBytes();
+		write(new File(root, "alice/broken.lnk"), Arrays.copyOf(valid, valid.length / 2));
+		write(new File(root, "alice/readme.txt"), valid);
+
+		File outside = new File(getDir(), "outside");
+		write(new File(outside, "linked.lnk"), valid);
+		Files.createSymbolicLink(new File(root, "dave").toPath(), outside.toPath());
+
+		index = new ShortcutIndex() {
+			public void failed(File file, Exception error)
+			{
+				errors.add(error);
+				super.failed(file, error);
+			}
+		};
+		result = new ShortcutScanner(4).scan(root, index);
+	}
+
+	/**
+	 * Only the files ending with .lnk are parsed, in any case. A truncated
+	 * one is reported to the listener and doesn't stop the scan.
+	 */
+	public void testScan() throws Exception
+	{
+		assertEquals("found", 5, result.getFound());
+		assertEquals("indexed", 5, index.size());
+		assertEquals("failed", 1, result.getFailed());
+		assertEquals("failures", Arrays.asList(new File(root, "alice/broken.lnk")), index.getFailures());
+		assertTrue("error", errors.get(0) instanceof MalformedShortcutException);
+	}
+
+	/**
+	 * The link to a directory outside of the tree is not followed
+	 */
+	public void testSymlinkedDirectoryNotFollowed() throws Exception
+	{
+		Set<String> names = names(index.find(new ShortcutIndex.Filter() {
+			public boolean accept(ShortcutScanner.Entry entry)
+			{
+				return true;
+			}
+		}));
+		assertTrue("linked shortcut", !names.contains("linked.lnk"));
+		assertEquals("names", new TreeSet<String>(Arrays.asList("App.lnk", "app.LNK", "launcher.lnk",
+		        "current.lnk", "other.lnk")), names);
+	}
+
+	/**
+	 * Paths match regardless of case and separator, command lines also
+	 * inside quotes. Directories which only share the prefix of the name
+	 * don't match.
+	 */
+	public void testFindOutdated() throws Exception
+	{
+		assertEquals("outdated", new TreeSet<String>(Arrays.asList("App.lnk", "app.LNK", "launcher.lnk")),
+		        names(index.findOutdated(INSTALL_DIR, CURRENT_DIR)));
+		assertEquals("outdated with other case and separators",
+		        new TreeSet<String>(Arrays.asList("App.lnk", "app.LNK", "launcher.lnk")),
+		        names(index.findOutdated("c:/temp/APP/versions/", "c:/temp/app/VERSIONS/2.1-K3X9")));
+	}
+
+	private void shortcut(String path, String target, String workingDirectory, String commandLine)
+	        throws Exception
+	{
+		Shortcut shortcut = new Shortcut(target);
+		shortcut.workingDirectory = workingDirectory;
+		shortcut.commandLine = commandLine;
+		write(new File(root, path), shortcut.getBytes());
+	}
+
+	private static Set<String> names(List<ShortcutScanner.Entry> entries)
+	{
+		Set<String> names = new TreeSet<String>();
+		for(ShortcutScanner.Entry entry: entries)
+			names.add(entry.getFile().getName());
+		return names;
+	}
+}
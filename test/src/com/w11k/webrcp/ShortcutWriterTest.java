@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+/**
+ * Compares the output of ShortcutWriter with the files in test/data/shortcut,
+ * which were written by the previous Shortcut.getBytes. Where the previous
+ * code was wrong, the expected difference is listed with the test.
+ */
+public class ShortcutWriterTest extends TestCase
+{
+	/*
+	 * Offset of the file location in shortcuts without shell item ids, and of
+	 * its volume table
+	 */
+	private static final int LOCATION = 0x4C;
+
+	private static final int VOLUME   = LOCATION + 0x1C;
+
+	public void testStrings() throws Exception
+	{
+		assertWritten("strings.lnk", strings());
+	}
+
+	public void testEmpty() throws Exception
+	{
+		assertWritten("empty.lnk", new Shortcut());
+	}
+
+	/**
+	 * Label of 6 chars, the previous code cleared byte 6 of the volume table,
+	 * which is zero in the type anyway
+	 */
+	public void testLocal() throws Exception
+	{
+		Shortcut shortcut = local("SYSTEM");
+		assertWritten("local.lnk", shortcut);
+		assertLocal(shortcut);
+	}
+
+	/**
+	 * Label of 4 chars, the previous code cleared byte 4 of the volume table,
+	 * the type of the volume
+	 */
+	public void testLocalShortLabel() throws Exception
+	{
+		Shortcut shortcut = local("DATA");
+		assertWritten("local-short-label.lnk", shortcut, VOLUME + 0x04, 0x00, 0x03);
+		assertLocal(shortcut);
+	}
+
+	/**
+	 * Label of 18 chars, the previous code cleared the third char of the label
+	 */
+	public void testLocalLongLabel() throws Exception
+	{
+		Shortcut shortcut = local("RECOVERY_PARTITION");
+		assertWritten("local-long-label.lnk", shortcut, VOLUME + 0x10 + 2, 0x00, 'C');
+		assertLocal(shortcut);
+	}
+
+	/**
+	 * Share name of 14 chars, the previous code cleared byte 14 of the volume
+	 * table, which is zero in the offset of the mapping anyway
+	 */
+	public void testNetwork() throws Exception
+	{
+		Shortcut shortcut = network("\\\\server\\share");
+		assertWritten("network.lnk", shortcut);
+		assertNetwork(shortcut);
+	}
+
+	/**
+	 * Share name of 8 chars, the previous code cleared byte 8 of the volume
+	 * table, the offset of the share name
+	 */
+	public void testNetworkShortShare() throws Exception
+	{
+		Shortcut shortcut = network("\\\\srv\\s2");
+		assertWritten("network-short-share.lnk", shortcut, VOLUME + 0x08, 0x00, 0x14);
+		assertNetwork(shortcut);
+	}
+
+	/**
+	 * Writing to a buffer with another byte order and position or to a
+	 * channel gives the same bytes
+	 */
+	public void testTargets() throws Exception
+	{
+		Shortcut shortcut = strings();
+		byte[] expected = shortcut.getBytes();
+		assertEquals("size", expected.length, ShortcutWriter.size(shortcut));
+
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10).order(ByteOrder.BIG_ENDIAN);
+		buffer.position(3);
+		ShortcutWriter.write(shortcut, buffer);
+		assertEquals("order", ByteOrder.BIG_ENDIAN, buffer.order());
+		assertEquals("position", 3 + expected.length, buffer.position());
+		assertEquals("buffer", expected, Arrays.copyOfRange(buffer.array(), 3, 3 + expected.length));
+
+		ByteArrayOutputStream channel = new ByteArrayOutputStream();
+		new ShortcutWriter().write(shortcut, Channels.newChannel(channel));
+		assertEquals("channel", expected, channel.toByteArray());
+	}
+
+	static Shortcut strings()
+	{
+		Shortcut shortcut = new Shortcut("C:\\App\\app.exe", "C:\\App");
+		shortcut.description = "Start App \u00e4\u00f6\u00fc";
+		shortcut.commandLine = "-clean -data @user.home/app";
+		shortcut.iconFileName = "C:\\App\\app.ico";
+		shortcut.cTime = 0x01D2A3B4C5D6E7F8L;
+		shortcut.mTime = 0x01D2A3B4C5D6E7F9L;
+		shortcut.fileLength = 123456;
+		shortcut.hotKey = 0x0641;
+		shortcut.showWnd = Shortcut.SW_SHOWMAXIMIZED;
+		return shortcut;
+	}
+
+	static Shortcut local(String label)
+	{
+		Shortcut shortcut = new Shortcut("C:\\Program Files\\App\\app.exe");
+		shortcut.shellItemIDList = null;
+		shortcut.fileLocationInfo = new Shortcut.FileLocationInfo();
+		shortcut.fileLocationInfo.lvt = new Shortcut.LocalVolumeTable();
+		shortcut.fileLocationInfo.lvt.type = 3;
+		shortcut.fileLocationInfo.lvt.serial = 0x1A2B3C4D;
+		shortcut.fileLocationInfo.lvt.volumeLabel = label;
+		shortcut.fileLocationInfo.basePathName = "C:\\Program Files\\App\\";
+		shortcut.fileLocationInfo.remainingPathName = "app.exe";
+		return shortcut;
+	}
+
+	static Shortcut network(String share)
+	{
+		Shortcut shortcut = new Shortcut("Z:\\apps\\app.exe");
+		shortcut.shellItemIDList = null;
+		shortcut.fileLocationInfo = new Shortcut.FileLocationInfo();
+		shortcut.fileLocationInfo.nvt = new Shortcut.NetworkVolumeTable();
+		shortcut.fileLocationInfo.nvt.shareName = share;
+		shortcut.fileLocationInfo.nvt.localShareMapping = "Z:";
+		shortcut.fileLocationInfo.remainingPathName = "apps\\app.exe";
+		return shortcut;
+	}
+
+	/*
+	 * Compare the written shortcut with the fixture, differences are given
+	 * as triples of offset, byte of the fixture and byte written now
+	 */
+	private static void assertWritten(String fixture, Shortcut shortcut, int... differences) throws Exception
+	{
+		byte[] expected = read(new File(System.getProperty("test.data", "test/data"), "shortcut/" + fixture));
+		for(int i = 0; i < differences.length; i += 3)
+		{
+			int offset = differences[i];
+			assertEquals(fixture + " previous byte at " + offset, differences[i + 1], expected[offset] & 0xFF);
+			expected[offset] = (byte) differences[i + 2];
+		}
+		assertEquals(fixture, expected, shortcut.getBytes());
+	}
+
+	private void assertLocal(Shortcut shortcut) throws Exception
+	{
+		Shortcut.LocalVolumeTable lvt = parse(shortcut).fileLocationInfo.lvt;
+		assertEquals("type", 3, lvt.type);
+		assertEquals("serial", 0x1A2B3C4D, lvt.serial);
+		assertEquals("label", shortcut.fileLocationInfo.lvt.volumeLabel, lvt.volumeLabel);
+	}
+
+	private void assertNetwork(Shortcut shortcut) throws Exception
+	{
+		Shortcut.NetworkVolumeTable nvt = parse(shortcut).fileLocationInfo.nvt;
+		assertEquals("share", shortcut.fileLocationInfo.nvt.shareName, nvt.shareName);
+		assertEquals("mapping", "Z:", nvt.localShareMapping);
+	}
+
+	private Shortcut parse(Shortcut shortcut) throws Exception
+	{
+		File file = write(new File(getDir(), "parsed.lnk"), shortcut.getBytes());
+		return Shortcut.loadShortcut(file);
+	}
+}
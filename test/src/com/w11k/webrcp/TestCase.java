@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Base class of the tests. Every public method whose name starts with
+ * "test" is a test, it runs on a new instance between setUp and tearDown.
+ * Each test gets an empty directory, which is deleted afterwards.
+ */
+abstract class TestCase
+{
+	private File dir;
+
+	/**
+	 * Called before every test
+	 */
+	protected void setUp() throws Exception
+	{
+	}
+
+	/**
+	 * Called after every test, even if it failed
+	 */
+	protected void tearDown() throws Exception
+	{
+	}
+
+	/**
+	 * Empty directory of the running test
+	 */
+	protected File getDir()
+	{
+		return dir;
+	}
+
+	void setDir(File dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Zip archive of the given entries, alternating name and content. Names
+	 * ending with '/' are directories, their content is ignored.
+	 */
+	protected static byte[] zip(String... entries) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		for(int i = 0; i < entries.length; i += 2)
+		{
+			out.putNextEntry(new ZipEntry(entries[i]));
+			if(!entries[i].endsWith("/"))
+				out.write(entries[i + 1].getBytes("UTF-8"));
+			out.closeEntry();
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	protected static File write(File file, byte[] content) throws IOException
+	{
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(content);
+		}
+		finally
+		{
+			out.close();
+		}
+		return file;
+	}
+
+	protected static byte[] read(File file) throws IOException
+	{
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Delete file, directories with their content
+	 */
+	protected static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child: children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	protected static void fail(String message)
+	{
+		throw new AssertionError(message);
+	}
+
+	protected static void assertTrue(String message, boolean condition)
+	{
+		if(!condition)
+			fail(message);
+	}
+
+	protected static void assertEquals(String message, Object expected, Object actual)
+	{
+		if(expected == null
+		        ? actual != null
+		        : !expected.equals(actual))
+			fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	protected static void assertEquals(String message, long expected, long actual)
+	{
+		if(expected != actual)
+			fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	protected static void assertEquals(String message, byte[] expected, byte[] actual)
+	{
+		if(!Arrays.equals(expected, actual))
+		{
+			int i = 0;
+			while(i < Math.min(expected.length, actual.length) && expected[i] == actual[i])
+				++i;
+			fail(message + ": " + expected.length + " bytes expected, " + actual.length + " bytes differing at "
+			        + i);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests and exits with 1 if one of them failed. The console output
+ * of the tested code is discarded.
+ *
+ * System properties: test.filter (only run tests whose class or method name
+ * contains it), test.data (directory of the test fixtures).
+ */
+public class TestRunner
+{
+	public static void main(String[] args) throws Exception
+	{
+		String filter = System.getProperty("test.filter", "");
+
+		List<Class<? extends TestCase>> tests = new ArrayList<Class<? extends TestCase>>();
+		tests.add(ContentStoreTest.class);
+		tests.add(DeltaArchiveTest.class);
+		tests.add(DownloadSchedulerTest.class);
+		tests.add(ExtractionPipelineTest.class);
+		tests.add(InstallVersionsTest.class);
+		tests.add(ShortcutDumpTest.class);
+		tests.add(ShortcutParserTest.class);
+		tests.add(ShortcutProvisionerTest.class);
+		tests.add(ShortcutScannerTest.class);
+		tests.add(ShortcutWriterTest.class);
+
+		PrintStream console = System.out;
+		int run = 0, failed = 0;
+		for(Class<? extends TestCase> test: tests)
+		{
+			Method[] methods = test.getDeclaredMethods();
+			Arrays.sort(methods, new Comparator<Method>() {
+				public int compare(Method a, Method b)
+				{
+					return a.getName().compareTo(b.getName());
+				}
+			});
+
+			for(Method method: methods)
+			{
+				String name = test.getSimpleName() + "." + method.getName();
+				if(!method.getName().startsWith("test") || !Modifier.isPublic(method.getModifiers())
+				        || method.getParameterTypes().length > 0 || !name.contains(filter))
+					continue;
+
+				++run;
+				Throwable error = run(test, method, console);
+				if(error == null)
+				{
+					console.println("ok     " + name);
+				}
+				else
+				{
+					++failed;
+					console.println("FAILED " + name + ": " + error);
+					error.printStackTrace(console);
+				}
+			}
+		}
+
+		console.println(run + " tests, " + failed + " failed");
+		System.exit((failed > 0)
+		        ? 1
+		        : 0);
+	}
+
+	/*
+	 * Run a single test on a new instance, returns its failure or null
+	 */
+	private static Throwable run(Class<? extends TestCase> test, Method method, PrintStream console)
+	{
+		PrintStream discard = new PrintStream(new OutputStream() {
+			public void write(int b)
+			{
+			}
+
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		});
+
+		File dir = null;
+		System.setOut(discard);
+		try
+		{
+			dir = Files.createTempDirectory("webrcp-test").toFile();
+			TestCase instance = test.getDeclaredConstructor().newInstance();
+			instance.setDir(dir);
+			instance.setUp();
+			try
+			{
+				method.invoke(instance);
+			}
+			finally
+			{
+				instance.tearDown();
+			}
+			return null;
+		}
+		catch(InvocationTargetException ex)
+		{
+			return ex.getCause();
+		}
+		catch(Throwable ex)
+		{
+			return ex;
+		}
+		finally
+		{
+			System.setOut(console);
+			if(dir != null)
+				TestCase.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Creates the deltas between the archives of two application versions. Every
+ * archive of the new version which exists in the old version too gets a
+ * delta next to it on the server, named by DeltaArchive.fileName. Clients
+ * which can't use a delta download the full archive. Large changed entries
+ * are contained as binary patch if it's smaller than the entry.
+ *
+ * Usage: DeltaGenerator fromDir toDir fromVersion toVersion outDir
+ */
+public class DeltaGenerator
+{
+	/*
+	 * Smaller entries are always contained completely
+	 */
+	private static final long PATCH_THRESHOLD = 256 * 1024;
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 5)
+		{
+			System.out.println("Usage: DeltaGenerator fromDir toDir fromVersion toVersion outDir");
+			System.exit(2);
+		}
+
+		File fromDir = new File(args[0]);
+		File toDir = new File(args[1]);
+		File outDir = new File(args[4]);
+		outDir.mkdirs();
+
+		File[] archives = toDir.listFiles();
+		if(archives == null)
+		{
+			System.out.println("Not a directory: " + toDir);
+			System.exit(2);
+		}
+
+		for(File archive: archives)
+		{
+			String name = archive.getName();
+			File base = new File(fromDir, name);
+			if(!name.endsWith(".zip") || !base.isFile())
+				continue;
+
+			name = name.substring(0, name.length() - ".zip".length());
+			File delta = new File(outDir, DeltaArchive.fileName(name, args[2], args[3]));
+			int changed = generate(base, archive, delta);
+			System.out.println(name + ": " + changed + " changed entries, " + (delta.length() >> 10) + " of "
+			        + (archive.length() >> 10) + " KB");
+		}
+	}
+
+	/*
+	 * Write the entries of target which aren't in base with the same CRC and
+	 * size, followed by the index of target. Directories are only written if
+	 * they are new. Returns the number of file entries written (completely
+	 * or as patch).
+	 */
+	static int generate(File base, File target, File delta) throws IOException
+	{
+		ZipFile baseZip = new ZipFile(base);
+		ZipFile targetZip = new ZipFile(target);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(delta));
+		try
+		{
+			int changed = 0;
+			byte[] buffer = new byte[32768];
+			Enumeration<? extends ZipEntry> entries = targetZip.entries();
+			while(entries.hasMoreElements())
+			{
+				ZipEntry entry = entries.nextElement();
+				ZipEntry baseEntry = baseZip.getEntry(entry.getName());
+				if(entry.isDirectory())
+				{
+					if(baseEntry == null)
+					{
+						out.putNextEntry(new ZipEntry(entry.getName()));
+						out.closeEntry();
+					}
+					continue;
+				}
+
+				if(baseEntry != null && baseEntry.getCrc() == entry.getCrc() && baseEntry.getSize() == entry.getSize())
+					continue;
+
+				++changed;
+				if(baseEntry != null && entry.getSize() >= PATCH_THRESHOLD)
+				{
+					byte[] old = read(baseZip, baseEntry);
+					byte[] content = read(targetZip, entry);
+					byte[] patch = PatchGenerator.create(old, content);
+					if(patch.length < entry.getCompressedSize())
+					{
+						PatchGenerator.verify(old, content, patch);
+						out.putNextEntry(new ZipEntry(entry.getName() + BinaryPatch.SUFFIX));
+						out.write(patch);
+						out.closeEntry();
+						System.out.println("  " + entry.getName() + ": patch " + (patch.length >> 10) + " of "
+						        + (entry.getCompressedSize() >> 10) + " KB");
+						continue;
+					}
+				}
+
+				out.putNextEntry(new ZipEntry(entry.getName()));
+				InputStream in = targetZip.getInputStream(entry);
+				try
+				{
+					int size;
+					while((size = in.read(buffer)) > 0)
+						out.write(buffer, 0, size);
+				}
+				finally
+				{
+					in.close();
+				}
+				out.closeEntry();
+			}
+
+			out.putNextEntry(new ZipEntry(DeltaArchive.INDEX));
+			Writer index = new OutputStreamWriter(new NonClosingStream(out), "UTF-8");
+			DeltaArchive.writeIndex(targetZip, index);
+			index.close();
+			out.closeEntry();
+			return changed;
+		}
+		finally
+		{
+			out.close();
+			targetZip.close();
+			baseZip.close();
+		}
+	}
+
+	private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(0, entry.getSize()));
+		InputStream in = zip.getInputStream(entry);
+		try
+		{
+			byte[] buffer = new byte[32768];
+			int size;
+			while((size = in.read(buffer)) > 0)
+				bytes.write(buffer, 0, size);
+		}
+		finally
+		{
+			in.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Keeps the zip stream open when the index writer is closed
+	 */
+	private static class NonClosingStream extends OutputStream
+	{
+		private final OutputStream out;
+
+		NonClosingStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2013 WeigleWilczek GmbH formerly iMedic GmbH
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.opensource.org/licenses/eclipse-1.0.php
+ *
+ * Contributors:
+ *   WeigleWilczek GmbH [http://www.w11k.com] - initial API and implementation
+ *******************************************************************************/
+
+package com.w11k.webrcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Creates binary patches (see BinaryPatch). The old file is indexed by the
+ * hashes of its blocks, the new file is scanned with a rolling hash for
+ * blocks of the old file. Every match is extended in both directions and
+ * becomes a copy instruction, the bytes in between are added literally. The
+ * unchanged entries of a jar are found wherever they moved to, so a patch
+ * mainly consists of the changed classes.
+ *
+ * Every patch is verified by applying it before it's used.
+ *
+ * Usage: PatchGenerator oldFile newFile patchFile
+ */
+public class PatchGenerator
+{
+	private static final int BLOCK       = 64;
+
+	private static final int PRIME       = 31;
+
+	private static final int MAX_CHAIN   = 32;
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 3)
+		{
+			System.out.println("Usage: PatchGenerator oldFile newFile patchFile");
+			System.exit(2);
+		}
+
+		byte[] base = Files.readAllBytes(new File(args[0]).toPath());
+		byte[] target = Files.readAllBytes(new File(args[1]).toPath());
+		long start = System.currentTimeMillis();
+		byte[] patch = create(base, target);
+		verify(base, target, patch);
+
+		OutputStream out = new FileOutputStream(args[2]);
+		try
+		{
+			out.write(patch);
+		}
+		finally
+		{
+			out.close();
+		}
+		System.out.println(args[2] + ": " + (patch.length >> 10) + " of " + (target.length >> 10) + " KB, "
+		        + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Create the patch which turns base into target
+	 */
+	public static byte[] create(byte[] base, byte[] target) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream patch = new DataOutputStream(bytes);
+		patch.writeInt(BinaryPatch.MAGIC);
+		patch.writeLong(base.length);
+		patch.write(hash(base));
+		patch.writeLong(target.length);
+		patch.write(hash(target));
+
+		// Chained hash table of the blocks of base
+		int blocks = base.length / BLOCK;
+		int bits = Math.max(4, 33 - Integer.numberOfLeadingZeros(Math.max(1, blocks)));
+		int[] head = new int[1 << bits];
+		int[] next = new int[blocks];
+		Arrays.fill(head, -1);
+		for(int block = blocks - 1; block >= 0; --block)
+		{
+			int slot = slot(hash(base, block * BLOCK), bits);
+			next[block] = head[slot];
+			head[slot] = block;
+		}
+
+		int power = 1;
+		for(int i = 1; i < BLOCK; ++i)
+			power *= PRIME;
+
+		int pos = 0, literal = 0;
+		int hash = (target.length >= BLOCK)
+		        ? hash(target, 0)
+		        : 0;
+		while(pos + BLOCK <= target.length)
+		{
+			int match = -1, chain = 0;
+			for(int block = head[slot(hash, bits)]; block >= 0 && chain < MAX_CHAIN; block = next[block], ++chain)
+			{
+				if(equal(base, block * BLOCK, target, pos, BLOCK))
+				{
+					match = block * BLOCK;
+					break;
+				}
+			}
+
+			if(match < 0)
+			{
+				if(pos + BLOCK < target.length)
+					hash = (hash - (target[pos] & 0xff) * power) * PRIME + (target[pos + BLOCK] & 0xff);
+				++pos;
+				continue;
+			}
+
+			int start = pos, from = match;
+			while(start > literal && from > 0 && target[start - 1] == base[from - 1])
+			{
+				--start;
+				--from;
+			}
+			int end = pos + BLOCK, to = match + BLOCK;
+			while(end < target.length && to < base.length && target[end] == base[to])
+			{
+				++end;
+				++to;
+			}
+
+			writeAdd(patch, target, literal, start);
+			patch.writeByte(BinaryPatch.COPY);
+			patch.writeLong(from);
+			patch.writeInt(end - start);
+
+			pos = literal = end;
+			if(pos + BLOCK <= target.length)
+				hash = hash(target, pos);
+		}
+
+		writeAdd(patch, target, literal, target.length);
+		patch.writeByte(BinaryPatch.END);
+		patch.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Apply patch to base and check that it results in target
+	 */
+	public static void verify(byte[] base, byte[] target, byte[] patch) throws IOException
+	{
+		File baseFile = File.createTempFile("base", ".tmp");
+		try
+		{
+			Files.write(baseFile.toPath(), base);
+			ByteArrayOutputStream result = new ByteArrayOutputStream(target.length);
+			BinaryPatch.apply(baseFile, new ByteArrayInputStream(patch), result);
+			if(!Arrays.equals(result.toByteArray(), target))
+				throw new IOException("Patch doesn't reproduce the new file");
+		}
+		finally
+		{
+			baseFile.delete();
+		}
+	}
+
+	private static void writeAdd(DataOutputStream patch, byte[] target, int start, int end) throws IOException
+	{
+		if(end > start)
+		{
+			patch.writeByte(BinaryPatch.ADD);
+			patch.writeInt(end - start);
+			patch.write(target, start, end - start);
+		}
+	}
+
+	/*
+	 * Polynomial hash of a block, rolled along the new file one byte at a time
+	 */
+	private static int hash(byte[] data, int offset)
+	{
+		int hash = 0;
+		for(int i = 0; i < BLOCK; ++i)
+			hash = hash * PRIME + (data[offset + i] & 0xff);
+		return hash;
+	}
+
+	private static int slot(int hash, int bits)
+	{
+		return (hash * 0x9E3779B1) >>> (32 - bits);
+	}
+
+	private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length)
+	{
+		for(int i = 0; i < length; ++i)
+		{
+			if(a[aOffset + i] != b[bOffset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] hash(byte[] data)
+	{
+		MessageDigest digest = DownloadScheduler.createDigest();
+		return digest.digest(data);
+	}
+}